@@ -0,0 +1,62 @@
+package com.shinet.storm.influxdb.benchmarks;
+
+import org.apache.storm.generated.StormTopology;
+import org.apache.storm.task.GeneralTopologyContext;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Tuple;
+import org.apache.storm.tuple.TupleImpl;
+import org.apache.storm.tuple.Values;
+import org.apache.storm.utils.Utils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Builds tuples shaped like the ones a metrics spout emits, with a real {@link TupleImpl} so field lookups
+ * go through the topology context like they do in a worker.
+ */
+final class BenchmarkTuples {
+    static final String SOURCE_COMPONENT = "metrics-spout";
+    static final Fields FIELDS = new Fields("metric", "timestamp", "tags", "fields", "value");
+
+    private BenchmarkTuples() {
+    }
+
+    /**
+     * Create tuples spread over the given number of series, each tuple holding its own tags and fields maps
+     * as if it had been deserialized.
+     */
+    static Tuple[] tuples(int count, int series) {
+        GeneralTopologyContext context = context();
+        Random random = new Random(42);
+        long timestamp = System.currentTimeMillis() * 1000000L;
+        Tuple[] tuples = new Tuple[count];
+        for (int i = 0; i < count; i++) {
+            int serie = i % series;
+            Map<String, String> tags = new HashMap<>();
+            tags.put("host", "worker-" + (serie % 64) + ".storm.example.com");
+            tags.put("region", serie % 2 == 0 ? "eu-west-1" : "us-east-1");
+            tags.put("service", "checkout-" + (serie % 8));
+            tags.put("instance", Integer.toString(serie));
+            Map<String, Object> fields = new HashMap<>();
+            fields.put("count", (long) random.nextInt(1000));
+            fields.put("mean", random.nextDouble() * 100);
+            fields.put("status", "ok");
+            Values values = new Values("request.latency", timestamp + i, tags, fields, random.nextDouble() * 250);
+            tuples[i] = new TupleImpl(context, values, SOURCE_COMPONENT, 1, Utils.DEFAULT_STREAM_ID);
+        }
+        return tuples;
+    }
+
+    private static GeneralTopologyContext context() {
+        Map<Integer, String> taskToComponent = Collections.singletonMap(1, SOURCE_COMPONENT);
+        Map<String, List<Integer>> componentToSortedTasks = Collections.singletonMap(SOURCE_COMPONENT, Collections.singletonList(1));
+        Map<String, Map<String, Fields>> componentToStreamToFields = Collections.singletonMap(SOURCE_COMPONENT,
+                Collections.singletonMap(Utils.DEFAULT_STREAM_ID, FIELDS));
+        return new GeneralTopologyContext(new StormTopology(), new HashMap<String, Object>(), taskToComponent,
+                componentToSortedTasks, componentToStreamToFields, "influxdb-benchmark-1-1");
+    }
+}
@@ -0,0 +1,120 @@
+package com.shinet.storm.influxdb.benchmarks;
+
+import com.shinet.storm.influxdb.bolt.InfluxdbBolt;
+import com.shinet.storm.influxdb.bolt.TupleInfluxdbFieldsDatapointMapper;
+import com.shinet.storm.influxdb.client.InfluxdbClient;
+import org.apache.storm.task.IOutputCollector;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.tuple.Tuple;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole {@link InfluxdbBolt#execute(Tuple)} loop: mapping, batching, encoding and the HTTP write
+ * against {@link InfluxdbHttpStub}. One operation is one tuple, the flush cost is spread over the batch.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class InfluxdbBoltBenchmark {
+    private static final int TUPLES = 8192;
+
+    @Param({"1000"})
+    public int batchSize;
+
+    @Param({"false", "true"})
+    public boolean lineProtocol;
+
+    @Param({"0", "2"})
+    public int asyncWrites;
+
+    private InfluxdbHttpStub influxdbStub;
+    private InfluxdbBolt influxdbBolt;
+    private Tuple[] tuples;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        this.influxdbStub = new InfluxdbHttpStub();
+        this.tuples = BenchmarkTuples.tuples(TUPLES, 512);
+
+        InfluxdbClient.Builder builder = InfluxdbClient.newBuilder(this.influxdbStub.getUrl(), "benchmark");
+        if (this.lineProtocol) {
+            builder.enableLineProtocolEncoder();
+        }
+        this.influxdbBolt = new InfluxdbBolt(builder, TupleInfluxdbFieldsDatapointMapper.DEFAULT_MAPPER)
+                .withBatchSize(this.batchSize);
+        if (this.asyncWrites > 0) {
+            this.influxdbBolt.withAsyncWrites(this.asyncWrites);
+        }
+        this.influxdbBolt.prepare(new HashMap<String, Object>(), Mockito.mock(TopologyContext.class),
+                new OutputCollector(new NoopOutputCollector()));
+    }
+
+    @Benchmark
+    public void execute() {
+        this.influxdbBolt.execute(this.tuples[this.next++ & (TUPLES - 1)]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.influxdbBolt.cleanup();
+        this.influxdbStub.stop();
+    }
+
+    /**
+     * Swallows acks and fails, the benchmark only looks at the bolt.
+     */
+    private static final class NoopOutputCollector implements IOutputCollector {
+        @Override
+        public List<Integer> emit(String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void emitDirect(int taskId, String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+        }
+
+        @Override
+        public void ack(Tuple input) {
+        }
+
+        @Override
+        public void fail(Tuple input) {
+        }
+
+        @Override
+        public void resetTimeout(Tuple input) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void reportError(Throwable error) {
+        }
+    }
+}
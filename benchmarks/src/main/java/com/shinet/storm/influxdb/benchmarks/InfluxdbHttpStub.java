@@ -0,0 +1,83 @@
+package com.shinet.storm.influxdb.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for the InfluxDB HTTP API: answers /ping, /query and /write without storing anything,
+ * so a benchmark measures the connector and not the database.
+ */
+final class InfluxdbHttpStub {
+    private static final byte[] EMPTY_QUERY_RESULT = "{\"results\":[{\"statement_id\":0}]}".getBytes(StandardCharsets.UTF_8);
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong writtenBytes = new AtomicLong();
+
+    InfluxdbHttpStub() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newFixedThreadPool(4);
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/ping", exchange -> this.respond(exchange, 204, null));
+        this.server.createContext("/query", exchange -> this.respond(exchange, 200, EMPTY_QUERY_RESULT));
+        this.server.createContext("/write", exchange -> {
+            this.writes.incrementAndGet();
+            this.writtenBytes.addAndGet(this.drain(exchange.getRequestBody()));
+            this.respond(exchange, 204, null);
+        });
+        this.server.start();
+    }
+
+    String getUrl() {
+        return "http://" + this.server.getAddress().getHostString() + ":" + this.server.getAddress().getPort();
+    }
+
+    long getWrites() {
+        return this.writes.get();
+    }
+
+    long getWrittenBytes() {
+        return this.writtenBytes.get();
+    }
+
+    void stop() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    private void respond(HttpExchange exchange, int code, byte[] body) throws IOException {
+        this.drain(exchange.getRequestBody());
+        exchange.getResponseHeaders().add("X-Influxdb-Version", "1.7.9");
+        if (body == null) {
+            exchange.sendResponseHeaders(code, -1);
+        } else {
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(code, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+        exchange.close();
+    }
+
+    private long drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[16 * 1024];
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            total += read;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,53 @@
+package com.shinet.storm.influxdb.benchmarks;
+
+import com.shinet.storm.influxdb.InfluxdbMetricDatapoint;
+import com.shinet.storm.influxdb.bolt.TupleInfluxdbDatapointMapper;
+import com.shinet.storm.influxdb.bolt.TupleInfluxdbFieldsDatapointMapper;
+import org.apache.storm.tuple.Tuple;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tuple to data point mapping, the first step of every tuple going through InfluxdbBolt.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MapperBenchmark {
+    private static final int TUPLES = 1024;
+
+    private Tuple[] tuples;
+    private int next;
+
+    @Setup
+    public void setup() {
+        this.tuples = BenchmarkTuples.tuples(TUPLES, 256);
+    }
+
+    @Benchmark
+    public InfluxdbMetricDatapoint tupleMapper() {
+        return TupleInfluxdbDatapointMapper.DEFAULT_MAPPER.getMetricPoint(this.nextTuple());
+    }
+
+    @Benchmark
+    public InfluxdbMetricDatapoint tupleFieldsMapper() {
+        return TupleInfluxdbFieldsDatapointMapper.DEFAULT_MAPPER.getMetricPoint(this.nextTuple());
+    }
+
+    private Tuple nextTuple() {
+        return this.tuples[this.next++ & (TUPLES - 1)];
+    }
+}
@@ -0,0 +1,103 @@
+package com.shinet.storm.influxdb.benchmarks;
+
+import com.shinet.storm.influxdb.client.InfluxdbClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point encoding with {@link InfluxdbClient#prepareDataPoint}, for every value type it handles and both
+ * the influxdb-java Point path and the line protocol encoder. Nothing is sent, the prepared points are
+ * discarded after each invocation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PrepareDataPointBenchmark {
+    private static final int POINTS = 1000;
+
+    @Param({"String", "Double", "Float", "Integer", "Long", "Boolean"})
+    public String valueType;
+
+    @Param({"false", "true"})
+    public boolean lineProtocol;
+
+    private InfluxdbClient influxdbClient;
+    private Map<String, String> tags;
+    private Map<String, Object> fields;
+    private Object[] values;
+
+    @Setup
+    public void setup() {
+        // the client only connects lazily, nothing listens on this port
+        InfluxdbClient.Builder builder = InfluxdbClient.newBuilder("http://127.0.0.1:1", "benchmark");
+        if (this.lineProtocol) {
+            builder.enableLineProtocolEncoder();
+        }
+        this.influxdbClient = builder.build();
+
+        this.tags = new HashMap<>();
+        this.tags.put("host", "worker-12.storm.example.com");
+        this.tags.put("region", "eu-west-1");
+        this.tags.put("service", "checkout-3");
+        this.fields = new HashMap<>();
+        this.fields.put("count", 42L);
+        this.fields.put("mean", 12.5d);
+
+        this.values = new Object[POINTS];
+        for (int i = 0; i < POINTS; i++) {
+            this.values[i] = value(this.valueType, i);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void prepareDataPoint() {
+        long time = 1577836800000000000L;
+        for (int i = 0; i < POINTS; i++) {
+            this.influxdbClient.prepareDataPoint("request.latency", this.tags, this.fields, this.values[i], time + i);
+        }
+        this.influxdbClient.discardPoints();
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.influxdbClient.closeConnection();
+    }
+
+    private static Object value(String valueType, int i) {
+        switch (valueType) {
+            case "String":
+                return "status-" + (i % 16);
+            case "Double":
+                return i * 1.37d;
+            case "Float":
+                return i * 1.37f;
+            case "Integer":
+                return i;
+            case "Long":
+                return 1000000000000L + i;
+            case "Boolean":
+                return i % 2 == 0;
+            default:
+                throw new IllegalArgumentException("Unknown value type " + valueType);
+        }
+    }
+}
@@ -5,13 +5,22 @@ import com.google.common.collect.Maps;
 import java.io.Serializable;
 import java.util.Collections;
 import java.util.Map;
+import java.util.Objects;
 
+/**
+ * A data point to write: the value is written as the "value" field next to the other fields. Integer, Short, Byte
+ * and Long values can be written as InfluxDB integers, Float and Double as floats and {@link UnsignedLong} as unsigned
+ * integers. The value may be null when the point has other fields.
+ * The database and retention policy are optional, the client's are used when null.
+ */
 public class InfluxdbMetricDatapoint implements Serializable {
     private final String metric;
     private final Map<String, String> tags;
     private final Map<String, Object> fields;
     private final long timestamp;
     private final Number value;
+    private final String database;
+    private final String retentionPolicy;
 
     private InfluxdbMetricDatapoint() {
         this((String)null, (Map)null, (Map)null, 0L, (Number)null);
@@ -22,18 +31,29 @@ public class InfluxdbMetricDatapoint implements Serializable {
         this.timestamp = timestamp;
         this.value = value;
         this.fields = Maps.newHashMap();
-        if (!(value instanceof Integer) && !(value instanceof Long) && !(value instanceof Float)) {
-            throw new RuntimeException("Received tuple contains unsupported value: " + value + " field. It must be Integer/Long/Float.");
-        }
+        this.database = null;
+        this.retentionPolicy = null;
+        checkValue(value, this.fields);
     }
     public InfluxdbMetricDatapoint(String metric, Map<String, String> tags, Map<String, Object> fields,long timestamp, Number value) {
+        this(metric, tags, fields, timestamp, value, null, null);
+    }
+    public InfluxdbMetricDatapoint(String metric, Map<String, String> tags, Map<String, Object> fields, long timestamp, Number value,
+                                   String database, String retentionPolicy) {
         this.metric = metric;
         this.tags = Collections.unmodifiableMap(tags);
         this.fields = Collections.unmodifiableMap(fields);
         this.timestamp = timestamp;
         this.value = value;
-        if (!(value instanceof Integer) && !(value instanceof Long) && !(value instanceof Float)) {
-            throw new RuntimeException("Received tuple contains unsupported value: " + value + " field. It must be Integer/Long/Float.");
+        this.database = database;
+        this.retentionPolicy = retentionPolicy;
+        checkValue(value, this.fields);
+    }
+
+    private static void checkValue(Number value, Map<String, Object> fields) {
+        if (value == null ? fields.isEmpty() : !(value instanceof Integer) && !(value instanceof Long) && !(value instanceof Float)
+                && !(value instanceof Double) && !(value instanceof Short) && !(value instanceof Byte) && !(value instanceof UnsignedLong)) {
+            throw new RuntimeException("Received tuple contains unsupported value: " + value + " field. It must be Integer/Long/Float/Double/UnsignedLong, or null with other fields.");
         }
     }
 
@@ -57,8 +77,23 @@ public class InfluxdbMetricDatapoint implements Serializable {
         return this.value;
     }
 
+    /**
+     * Retrieve the database to write the point to, null for the client's.
+     */
+    public String getDatabase() {
+        return this.database;
+    }
+
+    /**
+     * Retrieve the retention policy to write the point to, null for the client's.
+     */
+    public String getRetentionPolicy() {
+        return this.retentionPolicy;
+    }
+
     public String toString() {
-        return "InfluxdbMetricDatapoint{metric='" + this.metric + '\'' + ", tags=" + this.tags + "， fields=" + this.fields + ", timestamp=" + this.timestamp + ", value=" + this.value + '}';
+        return "InfluxdbMetricDatapoint{metric='" + this.metric + '\'' + ", tags=" + this.tags + "， fields=" + this.fields + ", timestamp=" + this.timestamp + ", value=" + this.value
+                + (this.database != null || this.retentionPolicy != null ? ", database=" + this.database + ", retentionPolicy=" + this.retentionPolicy : "") + '}';
     }
 
     @Override
@@ -71,7 +106,9 @@ public class InfluxdbMetricDatapoint implements Serializable {
             InfluxdbMetricDatapoint that = (InfluxdbMetricDatapoint)o;
             if (this.timestamp != that.timestamp) {
                 return false;
-            } else if (this.value != that.value) {
+            } else if (!Objects.equals(this.value, that.value)) {
+                return false;
+            } else if (!Objects.equals(this.database, that.database) || !Objects.equals(this.retentionPolicy, that.retentionPolicy)) {
                 return false;
             } else {
                 return !this.metric.equals(that.metric) ? false : this.tags.equals(that.tags);
@@ -84,7 +121,8 @@ public class InfluxdbMetricDatapoint implements Serializable {
         result = 31 * result + this.tags.hashCode();
         result = 31 * result + this.fields.hashCode();
         result = 31 * result + (int)(this.timestamp ^ this.timestamp >>> 32);
-        result = 31 * result + this.value.hashCode();
+        result = 31 * result + Objects.hashCode(this.value);
+        result = 31 * result + Objects.hash(this.database, this.retentionPolicy);
         return result;
     }
 }
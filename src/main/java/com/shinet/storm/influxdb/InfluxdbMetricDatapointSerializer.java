@@ -0,0 +1,183 @@
+package com.shinet.storm.influxdb;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import org.apache.storm.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Kryo serializer of {@link InfluxdbMetricDatapoint}, much smaller and faster than the Java serialization Storm falls
+ * back to: varint integer values, fixed 8 byte timestamps as nanosecond timestamps do not fit a shorter varint, and the
+ * metric, tag and field names, tag values and destination written once per serialized tuple then referenced by index,
+ * so the tags repeated by the points of a tuple cost a byte or two.
+ * Register it with {@link #register(Map)}.
+ */
+public class InfluxdbMetricDatapointSerializer extends Serializer<InfluxdbMetricDatapoint> {
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_INTEGER = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_FLOAT = 3;
+    private static final byte TYPE_DOUBLE = 4;
+    private static final byte TYPE_SHORT = 5;
+    private static final byte TYPE_BYTE = 6;
+    private static final byte TYPE_UNSIGNED_LONG = 7;
+    private static final byte TYPE_STRING = 8;
+    private static final byte TYPE_BOOLEAN = 9;
+    private static final byte TYPE_OBJECT = 10;
+
+    /**
+     * Register the serializer in the topology configuration.
+     */
+    public static void register(Map<String, Object> topoConf) {
+        Config.registerSerialization(topoConf, InfluxdbMetricDatapoint.class, InfluxdbMetricDatapointSerializer.class);
+    }
+
+    @Override
+    public void write(Kryo kryo, Output output, InfluxdbMetricDatapoint datapoint) {
+        this.writeString(kryo, output, datapoint.getMetric());
+        output.writeLong(datapoint.getTimestamp());
+        this.writeValue(kryo, output, datapoint.getValue());
+        output.writeVarInt(datapoint.getTags().size(), true);
+        for (Map.Entry<String, String> tag : datapoint.getTags().entrySet()) {
+            this.writeString(kryo, output, tag.getKey());
+            this.writeString(kryo, output, tag.getValue());
+        }
+        output.writeVarInt(datapoint.getFields().size(), true);
+        for (Map.Entry<String, Object> field : datapoint.getFields().entrySet()) {
+            this.writeString(kryo, output, field.getKey());
+            this.writeValue(kryo, output, field.getValue());
+        }
+        this.writeString(kryo, output, datapoint.getDatabase());
+        this.writeString(kryo, output, datapoint.getRetentionPolicy());
+    }
+
+    @Override
+    public InfluxdbMetricDatapoint read(Kryo kryo, Input input, Class<InfluxdbMetricDatapoint> type) {
+        String metric = this.readString(kryo, input);
+        long timestamp = input.readLong();
+        Number value = (Number) this.readValue(kryo, input);
+        int tagCount = input.readVarInt(true);
+        Map<String, String> tags = new HashMap<>(tagCount * 4 / 3 + 1);
+        for (int i = 0; i < tagCount; i++) {
+            tags.put(this.readString(kryo, input), this.readString(kryo, input));
+        }
+        int fieldCount = input.readVarInt(true);
+        Map<String, Object> fields = new HashMap<>(fieldCount * 4 / 3 + 1);
+        for (int i = 0; i < fieldCount; i++) {
+            fields.put(this.readString(kryo, input), this.readValue(kryo, input));
+        }
+        String database = this.readString(kryo, input);
+        String retentionPolicy = this.readString(kryo, input);
+        return new InfluxdbMetricDatapoint(metric, tags, fields, timestamp, value, database, retentionPolicy);
+    }
+
+    /**
+     * Write a string as its index in the dictionary of the serialized tuple, or as 0 followed by the string the first time.
+     * The dictionary lives in the Kryo graph context, reset after each tuple, as tuples are not deserialized in the order
+     * nor by the Kryo instance they are serialized with.
+     */
+    private void writeString(Kryo kryo, Output output, String string) {
+        @SuppressWarnings("unchecked")
+        Map<String, Integer> dictionary = (Map<String, Integer>) kryo.getGraphContext().get(this);
+        if (dictionary == null) {
+            dictionary = new HashMap<>();
+            kryo.getGraphContext().put(this, dictionary);
+        }
+        Integer index = dictionary.get(string);
+        if (index != null) {
+            output.writeVarInt(index, true);
+            return;
+        }
+        output.writeVarInt(0, true);
+        output.writeString(string);
+        dictionary.put(string, dictionary.size() + 1);
+    }
+
+    private String readString(Kryo kryo, Input input) {
+        @SuppressWarnings("unchecked")
+        List<String> dictionary = (List<String>) kryo.getGraphContext().get(this);
+        if (dictionary == null) {
+            dictionary = new ArrayList<>();
+            kryo.getGraphContext().put(this, dictionary);
+        }
+        int index = input.readVarInt(true);
+        if (index > 0) {
+            return dictionary.get(index - 1);
+        }
+        String string = input.readString();
+        dictionary.add(string);
+        return string;
+    }
+
+    private void writeValue(Kryo kryo, Output output, Object value) {
+        if (value == null) {
+            output.writeByte(TYPE_NULL);
+        } else if (value instanceof Integer) {
+            output.writeByte(TYPE_INTEGER);
+            output.writeVarInt((Integer) value, false);
+        } else if (value instanceof Long) {
+            output.writeByte(TYPE_LONG);
+            output.writeVarLong((Long) value, false);
+        } else if (value instanceof Float) {
+            output.writeByte(TYPE_FLOAT);
+            output.writeFloat((Float) value);
+        } else if (value instanceof Double) {
+            output.writeByte(TYPE_DOUBLE);
+            output.writeDouble((Double) value);
+        } else if (value instanceof Short) {
+            output.writeByte(TYPE_SHORT);
+            output.writeVarInt((Short) value, false);
+        } else if (value instanceof Byte) {
+            output.writeByte(TYPE_BYTE);
+            output.writeByte((Byte) value);
+        } else if (value instanceof UnsignedLong) {
+            output.writeByte(TYPE_UNSIGNED_LONG);
+            output.writeVarLong(((UnsignedLong) value).longValue(), true);
+        } else if (value instanceof String) {
+            output.writeByte(TYPE_STRING);
+            output.writeString((String) value);
+        } else if (value instanceof Boolean) {
+            output.writeByte(TYPE_BOOLEAN);
+            output.writeBoolean((Boolean) value);
+        } else {
+            output.writeByte(TYPE_OBJECT);
+            kryo.writeClassAndObject(output, value);
+        }
+    }
+
+    private Object readValue(Kryo kryo, Input input) {
+        byte type = input.readByte();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_INTEGER:
+                return input.readVarInt(false);
+            case TYPE_LONG:
+                return input.readVarLong(false);
+            case TYPE_FLOAT:
+                return input.readFloat();
+            case TYPE_DOUBLE:
+                return input.readDouble();
+            case TYPE_SHORT:
+                return (short) input.readVarInt(false);
+            case TYPE_BYTE:
+                return input.readByte();
+            case TYPE_UNSIGNED_LONG:
+                return UnsignedLong.valueOf(input.readVarLong(true));
+            case TYPE_STRING:
+                return input.readString();
+            case TYPE_BOOLEAN:
+                return input.readBoolean();
+            case TYPE_OBJECT:
+                return kryo.readClassAndObject(input);
+            default:
+                throw new RuntimeException("Unknown InfluxdbMetricDatapoint value type: " + type);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.shinet.storm.influxdb;
+
+/**
+ * Unsigned 64 bit value, written as an InfluxDB unsigned integer field ({@code u} suffix, InfluxDB 1.8+ or 2.x)
+ * by the line protocol encoder. The raw bits are kept in a long, values over {@link Long#MAX_VALUE} are negative.
+ */
+public final class UnsignedLong extends Number implements Comparable<UnsignedLong> {
+    private final long bits;
+
+    private UnsignedLong(long bits) {
+        this.bits = bits;
+    }
+
+    /**
+     * @param bits the value as the bits of an unsigned long, see {@link Long#parseUnsignedLong(String)}
+     */
+    public static UnsignedLong valueOf(long bits) {
+        return new UnsignedLong(bits);
+    }
+
+    public static UnsignedLong valueOf(String value) {
+        return new UnsignedLong(Long.parseUnsignedLong(value));
+    }
+
+    /**
+     * Retrieve the raw bits of the value, negative for values over {@link Long#MAX_VALUE}.
+     */
+    @Override
+    public long longValue() {
+        return this.bits;
+    }
+
+    @Override
+    public int intValue() {
+        return (int) this.bits;
+    }
+
+    @Override
+    public float floatValue() {
+        return (float) this.doubleValue();
+    }
+
+    @Override
+    public double doubleValue() {
+        double value = (double) (this.bits >>> 1) * 2.0;
+        return value + (this.bits & 1);
+    }
+
+    @Override
+    public int compareTo(UnsignedLong that) {
+        return Long.compareUnsigned(this.bits, that.bits);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof UnsignedLong && ((UnsignedLong) o).bits == this.bits;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(this.bits);
+    }
+
+    @Override
+    public String toString() {
+        return Long.toUnsignedString(this.bits);
+    }
+}
@@ -0,0 +1,92 @@
+package com.shinet.storm.influxdb.bolt;
+
+import java.io.Serializable;
+
+/**
+ * Decides when {@link InfluxdbBolt} flushes: on whichever comes first of the target point count, the encoded
+ * byte size or the linger time of the oldest point. The target point count adapts to InfluxDB like AIMD:
+ * it grows by minPoints after each write answered within the target latency, and is halved after a slow or
+ * failed write. Batches are full size under load and flushed after the linger time when traffic is quiet.
+ * Not thread safe, the bolt only uses it from its executor thread.
+ */
+public class AdaptiveBatchPolicy implements Serializable {
+    public static final long DEFAULT_MAX_BYTES = 4L * 1024 * 1024;
+    public static final long DEFAULT_MAX_LINGER_MILLIS = 1000;
+    public static final long DEFAULT_TARGET_LATENCY_MILLIS = 500;
+
+    private final int minPoints;
+    private final int maxPoints;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private long maxLingerMillis = DEFAULT_MAX_LINGER_MILLIS;
+    private long targetLatencyMillis = DEFAULT_TARGET_LATENCY_MILLIS;
+    private transient int targetPoints;
+
+    public AdaptiveBatchPolicy(int minPoints, int maxPoints) {
+        if (minPoints <= 0 || maxPoints < minPoints) {
+            throw new IllegalArgumentException("Expected 0 < minPoints <= maxPoints, got " + minPoints + " and " + maxPoints);
+        }
+        this.minPoints = minPoints;
+        this.maxPoints = maxPoints;
+    }
+
+    /**
+     * Flush once the encoded points reach maxBytes, only measured with the line protocol encoder.
+     */
+    public AdaptiveBatchPolicy withMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Flush once the oldest point of the batch waited maxLingerMillis.
+     */
+    public AdaptiveBatchPolicy withMaxLingerMillis(long maxLingerMillis) {
+        this.maxLingerMillis = maxLingerMillis;
+        return this;
+    }
+
+    /**
+     * Keep growing the batches as long as InfluxDB answers within targetLatencyMillis.
+     */
+    public AdaptiveBatchPolicy withTargetLatencyMillis(long targetLatencyMillis) {
+        this.targetLatencyMillis = targetLatencyMillis;
+        return this;
+    }
+
+    public long getMaxLingerMillis() {
+        return this.maxLingerMillis;
+    }
+
+    /**
+     * Retrieve the current target point count.
+     */
+    public int getTargetPoints() {
+        if (this.targetPoints == 0) {
+            this.targetPoints = this.minPoints;
+        }
+        return this.targetPoints;
+    }
+
+    /**
+     * @param points the number of points in the batch
+     * @param bytes the encoded size of the batch, negative when unknown
+     * @param lingerNanos the time since the first point of the batch
+     */
+    public boolean shouldFlush(int points, long bytes, long lingerNanos) {
+        return points >= this.getTargetPoints()
+                || bytes >= this.maxBytes
+                || (points > 0 && lingerNanos >= this.maxLingerMillis * 1000000L);
+    }
+
+    /**
+     * Adapt the target point count to the outcome of a write.
+     */
+    public void onWriteCompleted(long latencyNanos, boolean failed) {
+        int target = this.getTargetPoints();
+        if (failed || latencyNanos > this.targetLatencyMillis * 1000000L) {
+            this.targetPoints = Math.max(this.minPoints, target / 2);
+        } else {
+            this.targetPoints = (int) Math.min(this.maxPoints, (long) target + this.minPoints);
+        }
+    }
+}
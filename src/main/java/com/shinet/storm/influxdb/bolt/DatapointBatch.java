@@ -0,0 +1,93 @@
+package com.shinet.storm.influxdb.bolt;
+
+import com.shinet.storm.influxdb.InfluxdbMetricDatapoint;
+import org.apache.storm.tuple.Tuple;
+
+import java.util.Arrays;
+
+/**
+ * Append-only buffer of the data points of a batch, with the tuple each point comes from.
+ * Points and tuple indices are kept in parallel arrays, so adding a point never hashes its tags or fields,
+ * and equal points coming from different tuples are all kept. The arrays are reused across flushes.
+ * Not thread safe.
+ */
+final class DatapointBatch {
+    private InfluxdbMetricDatapoint[] points;
+    private int[] tupleIndices;
+    private Tuple[] tuples;
+    private int size;
+    private int tupleCount;
+
+    DatapointBatch(int expectedTuples, int pointsPerTuple) {
+        int tupleCapacity = Math.max(expectedTuples, 16);
+        this.tuples = new Tuple[tupleCapacity];
+        this.points = new InfluxdbMetricDatapoint[tupleCapacity * Math.max(pointsPerTuple, 1)];
+        this.tupleIndices = new int[this.points.length];
+    }
+
+    /**
+     * Register the tuple the next points come from.
+     * @return the index to give to {@link #add(InfluxdbMetricDatapoint, int)}
+     */
+    int addTuple(Tuple tuple) {
+        if (this.tupleCount == this.tuples.length) {
+            this.tuples = Arrays.copyOf(this.tuples, this.tuples.length << 1);
+        }
+        this.tuples[this.tupleCount] = tuple;
+        return this.tupleCount++;
+    }
+
+    void add(InfluxdbMetricDatapoint point, int tupleIndex) {
+        if (this.size == this.points.length) {
+            this.points = Arrays.copyOf(this.points, this.points.length << 1);
+            this.tupleIndices = Arrays.copyOf(this.tupleIndices, this.tupleIndices.length << 1);
+        }
+        this.points[this.size] = point;
+        this.tupleIndices[this.size] = tupleIndex;
+        this.size++;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    InfluxdbMetricDatapoint point(int index) {
+        return this.points[index];
+    }
+
+    /**
+     * Retrieve the tuple the point at the given index comes from.
+     */
+    Tuple tupleOf(int index) {
+        return this.tuples[this.tupleIndices[index]];
+    }
+
+    /**
+     * Retrieve the index of the tuple the point at the given index comes from.
+     */
+    int tupleIndexOf(int index) {
+        return this.tupleIndices[index];
+    }
+
+    int tupleCount() {
+        return this.tupleCount;
+    }
+
+    Tuple tuple(int tupleIndex) {
+        return this.tuples[tupleIndex];
+    }
+
+    /**
+     * Forget the points and tuples, keeping the allocated arrays for the next batch.
+     */
+    void reset() {
+        Arrays.fill(this.points, 0, this.size, null);
+        Arrays.fill(this.tuples, 0, this.tupleCount, null);
+        this.size = 0;
+        this.tupleCount = 0;
+    }
+}
@@ -0,0 +1,26 @@
+package com.shinet.storm.influxdb.bolt;
+
+import org.apache.storm.topology.OutputFieldsDeclarer;
+import org.apache.storm.tuple.ITuple;
+import org.apache.storm.tuple.Values;
+import org.influxdb.dto.QueryResult;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Builds the InfluxQL query enriching a tuple and the tuples emitted from its result, for {@link InfluxdbLookupBolt}.
+ */
+public interface ITupleInfluxdbLookupMapper extends Serializable {
+    /**
+     * Retrieve the query of the tuple, tuples with the same query share its cached result and in-flight query.
+     */
+    String getQuery(ITuple tuple);
+
+    /**
+     * Retrieve the tuples to emit, anchored to the input tuple, from the result of its query.
+     */
+    List<Values> toTuples(ITuple tuple, QueryResult result);
+
+    void declareOutputFields(OutputFieldsDeclarer declarer);
+}
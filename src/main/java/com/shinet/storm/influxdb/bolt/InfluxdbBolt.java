@@ -2,22 +2,38 @@
 package com.shinet.storm.influxdb.bolt;
 
 import com.shinet.storm.influxdb.InfluxdbMetricDatapoint;
+import com.shinet.storm.influxdb.client.InfluxdbBatch;
 import com.shinet.storm.influxdb.client.InfluxdbClient;
 import com.shinet.storm.influxdb.client.InfluxdbClient.Builder;
+import com.shinet.storm.influxdb.client.InfluxdbClientMetrics;
+import com.shinet.storm.influxdb.client.InfluxdbPartialWriteException;
+import org.apache.storm.Config;
+import org.apache.storm.metric.api.IMetric;
 import org.apache.storm.task.OutputCollector;
 import org.apache.storm.task.TopologyContext;
 import org.apache.storm.topology.OutputFieldsDeclarer;
 import org.apache.storm.topology.base.BaseRichBolt;
+import org.apache.storm.tuple.Fields;
 import org.apache.storm.tuple.Tuple;
+import org.apache.storm.tuple.Values;
 import org.apache.storm.utils.BatchHelper;
+import org.apache.storm.utils.ObjectReader;
 import org.apache.storm.utils.TupleUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class InfluxdbBolt extends BaseRichBolt {
     private static final Logger LOG = LoggerFactory.getLogger(InfluxdbBolt.class);
+    public static final int DEFAULT_AGGREGATION_WINDOW_IN_SECONDS = 10;
+    public static final String DEAD_LETTER_STREAM = "influxdb-dead-letter";
+    public static final Fields DEAD_LETTER_FIELDS = new Fields("metric", "timestamp", "tags", "fields", "value", "error");
+    public static final String METRIC_NAME = "influxdb";
+    public static final String SHARED_WRITER_METRIC_NAME = "influxdb-shared-writer";
     private final Builder influxdbClientBuilder;
     private final List<? extends ITupleInfluxdbDataPointMapper> tupleInfluxdbDatapointMappers;
     private int batchSize;
@@ -25,8 +41,20 @@ public class InfluxdbBolt extends BaseRichBolt {
     private boolean failTupleForFailedMetrics;
     private BatchHelper batchHelper;
     private InfluxdbClient influxdbClient;
-    private Map<InfluxdbMetricDatapoint, Tuple> metricPointsWithTuple = new HashMap();
+    private DatapointBatch metricPointsWithTuple;
     private OutputCollector collector;
+    private int maxInFlightBatches;
+    private BlockingQueue<WrittenPart> writtenParts;
+    private final Map<String, Integer> inFlightParts = new HashMap<>();
+    private int inFlightBatches;
+    private long maxOutstandingBytes;
+    private long inFlightBytes;
+    private double[] aggregationPercentiles;
+    private SeriesAggregator seriesAggregator;
+    private boolean deadLetterRejectedPoints;
+    private AdaptiveBatchPolicy adaptiveBatchPolicy;
+    private long batchStartNanos;
+    private final Deque<DatapointBatch> idleDatapointBatches = new ArrayDeque<>();
 
     public InfluxdbBolt(Builder influxdbClientBuilder, ITupleInfluxdbDataPointMapper tupleInfluxdbDatapointMapper) {
         this.influxdbClientBuilder = influxdbClientBuilder;
@@ -48,6 +76,56 @@ public class InfluxdbBolt extends BaseRichBolt {
         return this;
     }
 
+    /**
+     * Write batches on the writer threads of the client, keeping at most maxInFlightBatches requests outstanding
+     * per endpoint. The parts of a sharded batch complete independently: a tuple is acked or failed on the executor
+     * thread once the parts holding its points are written, so a slow node only holds back the tuples it stores.
+     */
+    public InfluxdbBolt withAsyncWrites(int maxInFlightBatches) {
+        this.maxInFlightBatches = maxInFlightBatches;
+        return this;
+    }
+
+    /**
+     * Bound the encoded bytes of the batches being written, on top of the maxInFlightBatches of async writes:
+     * execute() blocks until enough writes complete, so Storm's backpressure slows the spouts down instead of
+     * tuples timing out and replaying. A batch reaching maxOutstandingBytes is flushed.
+     * Only measured with the line protocol encoder.
+     */
+    public InfluxdbBolt withMaxOutstandingBytes(long maxOutstandingBytes) {
+        this.maxOutstandingBytes = maxOutstandingBytes;
+        return this;
+    }
+
+    /**
+     * Aggregate numeric points per series (metric plus tags) between two tick tuples and write one point
+     * per series and window, with count, sum, min, max, last and the given percentiles as fields and the mean as value.
+     * The window is the flush interval, {@link #DEFAULT_AGGREGATION_WINDOW_IN_SECONDS} when none is set; batches are
+     * only flushed on tick tuples, whatever the batch size.
+     */
+    public InfluxdbBolt withAggregation(double... percentiles) {
+        this.aggregationPercentiles = percentiles;
+        return this;
+    }
+
+    /**
+     * Emit the points InfluxDB rejected in a partial write on {@link #DEAD_LETTER_STREAM}, anchored to their tuple,
+     * and ack the tuple instead of failing it. Without a dead letter stream only the tuples of rejected points are failed.
+     */
+    public InfluxdbBolt withDeadLetterStream() {
+        this.deadLetterRejectedPoints = true;
+        return this;
+    }
+
+    /**
+     * Flush on whichever comes first of the policy's adaptive point count, encoded byte size and linger time,
+     * on top of the batch size and flush interval. The point count follows the observed write latency and errors.
+     */
+    public InfluxdbBolt withAdaptiveBatching(AdaptiveBatchPolicy adaptiveBatchPolicy) {
+        this.adaptiveBatchPolicy = adaptiveBatchPolicy;
+        return this;
+    }
+
     public InfluxdbBolt failTupleForFailedMetrics() {
         this.failTupleForFailedMetrics = true;
         return this;
@@ -56,77 +134,405 @@ public class InfluxdbBolt extends BaseRichBolt {
     public void prepare(Map<String, Object> topoConf, TopologyContext context, OutputCollector collector) {
         this.collector = collector;
         this.batchHelper = new BatchHelper(this.batchSize, collector);
+        this.metricPointsWithTuple = new DatapointBatch(this.batchSize, this.tupleInfluxdbDatapointMappers.size());
         this.influxdbClient = this.influxdbClientBuilder.build();
+        context.registerMetric(METRIC_NAME, (IMetric) this.influxdbClient.getMetrics()::getValueAndReset,
+                ObjectReader.getInt(topoConf.get(Config.TOPOLOGY_BUILTIN_METRICS_BUCKET_SIZE_SECS), 60));
+        InfluxdbClientMetrics sharedWriterMetrics = this.influxdbClient.takeSharedWriterMetrics();
+        if (sharedWriterMetrics != null) {
+            // the requests of the shared writer are reported by one task of the worker
+            context.registerMetric(SHARED_WRITER_METRIC_NAME, (IMetric) sharedWriterMetrics::getValueAndReset,
+                    ObjectReader.getInt(topoConf.get(Config.TOPOLOGY_BUILTIN_METRICS_BUCKET_SIZE_SECS), 60));
+        }
+        if (this.aggregationPercentiles != null) {
+            this.seriesAggregator = new SeriesAggregator(this.aggregationPercentiles);
+        }
+        if (this.maxInFlightBatches <= 0 && this.influxdbClient.isRetrying()) {
+            LOG.info("{}: Writing batches on a writer thread, retries must not block the executor", this.getClass().getSimpleName());
+            this.maxInFlightBatches = 1;
+        }
+        if (this.maxInFlightBatches <= 0 && this.influxdbClient.getEndpointCount() > 1) {
+            LOG.info("{}: Writing sharded batches on the endpoint writer threads, a slow node must not block the executor",
+                    this.getClass().getSimpleName());
+            this.maxInFlightBatches = 1;
+        }
+        if (this.influxdbClient.isSharedWriter()) {
+            // the shared writer threads write the batches
+            this.maxInFlightBatches = Math.max(this.maxInFlightBatches, 1);
+        }
+        if (this.maxInFlightBatches > 0) {
+            // the written parts are handed back to the executor thread, which acks their tuples
+            this.writtenParts = new LinkedBlockingQueue<>();
+        }
     }
 
     @Override
     public void execute(Tuple tuple) {
+        if (this.writtenParts != null) {
+            this.completeWrittenParts();
+        }
         try {
             if (batchHelper.shouldHandle(tuple)) {
-                final List<InfluxdbMetricDatapoint> metricDataPoints = getMetricPoints(tuple);
-                for (InfluxdbMetricDatapoint metricDataPoint : metricDataPoints) {
-                    metricPointsWithTuple.put(metricDataPoint, tuple);
+                final int tupleIndex = metricPointsWithTuple.addTuple(tuple);
+                if (tupleIndex == 0) {
+                    this.batchStartNanos = System.nanoTime();
+                }
+                for (ITupleInfluxdbDataPointMapper tupleInfluxdbDataPointMapper : tupleInfluxdbDatapointMappers) {
+                    InfluxdbMetricDatapoint metricDataPoint = tupleInfluxdbDataPointMapper.getMetricPoint(tuple);
+                    if (this.seriesAggregator == null || !this.seriesAggregator.add(metricDataPoint)) {
+                        this.prepareMetricPoint(metricDataPoint, metricPointsWithTuple.size());
+                        metricPointsWithTuple.add(metricDataPoint, tupleIndex);
+                    }
                 }
                 batchHelper.addBatch(tuple);
             }
 
-            if (batchHelper.shouldFlush()) {
+            if (this.seriesAggregator != null && !TupleUtils.isTick(tuple)) {
+                return;
+            }
+            final boolean shouldFlush = batchHelper.shouldFlush() || this.shouldFlushAdaptively() || this.isOverOutstandingBytes();
+            if (shouldFlush && this.writtenParts != null) {
+                this.flushAsync();
+            } else if (shouldFlush) {
                 LOG.debug("Sending metrics of size [{}]", metricPointsWithTuple.size());
 
+                final long startNanos = System.nanoTime();
                 try{
-                    this.writeMetricPoints(this.metricPointsWithTuple.keySet());
+                    this.prepareAggregatedPoints();
+                    this.influxdbClient.sendPoints();
+                    this.adaptBatching(startNanos, null);
 
                     LOG.debug("Acknowledging batched tuples");
                     this.batchHelper.ack();
 
+                }catch (InfluxdbPartialWriteException e){
+                    this.adaptBatching(startNanos, e);
+                    this.completePartialWrite(this.batchHelper, this.metricPointsWithTuple, e);
+                    this.batchHelper = new BatchHelper(this.batchSize, this.collector);
                 }catch (RuntimeException e){
+                    this.adaptBatching(startNanos, e);
 
                     for (Tuple batchedTuple : batchHelper.getBatchTuples()) {
                             collector.fail(batchedTuple);
                     }
-                    this.failTupleForFailedMetrics();
+                    this.batchHelper = new BatchHelper(this.batchSize, this.collector);
                     LOG.error("the metric points failed with details: " + e.getMessage());
                 }
 
-                metricPointsWithTuple.clear();
+                metricPointsWithTuple.reset();
             }
         } catch (Exception e) {
             batchHelper.fail(e);
-            metricPointsWithTuple.clear();
+            metricPointsWithTuple.reset();
+            this.influxdbClient.discardPoints();
         }
     }
 
-    private List<InfluxdbMetricDatapoint> getMetricPoints(Tuple tuple) {
-        List<InfluxdbMetricDatapoint> metricDataPoints = new ArrayList();
-        for (ITupleInfluxdbDataPointMapper tupleInfluxdbDataPointMapper : tupleInfluxdbDatapointMappers) {
-            metricDataPoints.add(tupleInfluxdbDataPointMapper.getMetricPoint(tuple));
+    private boolean shouldFlushAdaptively() {
+        return this.adaptiveBatchPolicy != null && this.adaptiveBatchPolicy.shouldFlush(this.metricPointsWithTuple.size(),
+                this.influxdbClient.getPendingBytes(), System.nanoTime() - this.batchStartNanos);
+    }
+
+    private boolean isOverOutstandingBytes() {
+        return this.maxOutstandingBytes > 0 && this.influxdbClient.getPendingBytes() >= this.maxOutstandingBytes;
+    }
+
+    /**
+     * Feed the outcome of a write to the adaptive batching policy, a partial write is not a capacity problem.
+     */
+    private void adaptBatching(long startNanos, RuntimeException error) {
+        if (this.adaptiveBatchPolicy != null) {
+            this.adaptiveBatchPolicy.onWriteCompleted(System.nanoTime() - startNanos,
+                    error != null && !(error instanceof InfluxdbPartialWriteException));
         }
+    }
 
-        return metricDataPoints;
+    /**
+     * Hand the current batch to the writer threads and start a new one, waiting for written parts first when
+     * maxInFlightBatches requests are already outstanding to one of its endpoints or maxOutstandingBytes overall.
+     */
+    private void flushAsync() throws InterruptedException {
+        final BatchHelper batch = this.batchHelper;
+        if (batch.getBatchTuples().isEmpty()) {
+            batch.ack();
+            return;
+        }
+        this.prepareAggregatedPoints();
+        final InfluxdbBatch influxdbBatch = this.influxdbClient.takeBatch();
+        final DatapointBatch points = this.metricPointsWithTuple;
+        this.batchHelper = new BatchHelper(this.batchSize, this.collector);
+        this.metricPointsWithTuple = this.idleDatapointBatches.isEmpty()
+                ? new DatapointBatch(this.batchSize, this.tupleInfluxdbDatapointMappers.size())
+                : this.idleDatapointBatches.poll();
+        if (influxdbBatch == null) {
+            // every point was discarded
+            batch.ack();
+            this.recycle(points);
+            return;
+        }
+
+        final InFlightBatch flight = new InFlightBatch(points, influxdbBatch);
+        if (this.isBackpressured(flight)) {
+            final long waitStartNanos = System.nanoTime();
+            while (this.isBackpressured(flight)) {
+                this.completeWrittenPart(this.writtenParts.take());
+            }
+            this.influxdbClient.getMetrics().backpressured(System.nanoTime() - waitStartNanos);
+        }
+        LOG.debug("Sending metrics of size [{}] asynchronously in {} parts", points.size(), flight.partEndpoints.length);
+
+        this.inFlightBatches++;
+        for (int part = 0; part < flight.partEndpoints.length; part++) {
+            this.inFlightParts.merge(flight.partEndpoints[part], 1, Integer::sum);
+            this.inFlightBytes += flight.partBytes[part];
+        }
+        flight.startNanos = System.nanoTime();
+        this.influxdbClient.sendBatchAsync(influxdbBatch, (part, e) -> this.writtenParts.add(new WrittenPart(flight, part, e)));
     }
 
-    public void writeMetricPoints(Collection<InfluxdbMetricDatapoint> metricDataPoints){
-        for( InfluxdbMetricDatapoint metricDataPoint : metricDataPoints)
-        {
-            if (metricDataPoint.getValue() != null) {
-                this.influxdbClient.prepareDataPoint(metricDataPoint.getMetric(),metricDataPoint.getTags(),metricDataPoint.getFields(),
-                        metricDataPoint.getValue(),metricDataPoint.getTimestamp());
+    /**
+     * A batch has to wait while one of its endpoints has maxInFlightBatches parts in flight, or while its bytes would
+     * exceed maxOutstandingBytes, at least one batch is always in flight.
+     */
+    private boolean isBackpressured(InFlightBatch flight) {
+        long bytes = 0;
+        for (int part = 0; part < flight.partEndpoints.length; part++) {
+            if (this.inFlightParts.getOrDefault(flight.partEndpoints[part], 0) >= this.maxInFlightBatches) {
+                return true;
+            }
+            bytes += flight.partBytes[part];
+        }
+        return this.maxOutstandingBytes > 0 && this.inFlightBatches > 0 && this.inFlightBytes + bytes > this.maxOutstandingBytes;
+    }
+
+    private void completeWrittenParts() {
+        WrittenPart writtenPart;
+        while ((writtenPart = this.writtenParts.poll()) != null) {
+            this.completeWrittenPart(writtenPart);
+        }
+    }
+
+    /**
+     * Settle the tuples of a written part: a tuple is acked once every part holding its points is written, failed
+     * when one of them failed or rejected one of its points without a dead letter stream.
+     */
+    private void completeWrittenPart(WrittenPart writtenPart) {
+        final InFlightBatch flight = writtenPart.flight;
+        final int part = writtenPart.part;
+        this.inFlightParts.merge(flight.partEndpoints[part], -1, Integer::sum);
+        this.inFlightBytes -= flight.partBytes[part];
+        if (this.adaptiveBatchPolicy != null) {
+            this.adaptiveBatchPolicy.onWriteCompleted(writtenPart.latencyNanos,
+                    writtenPart.error != null && !(writtenPart.error instanceof InfluxdbPartialWriteException));
+        }
+
+        if (writtenPart.error instanceof InfluxdbPartialWriteException) {
+            InfluxdbPartialWriteException e = (InfluxdbPartialWriteException) writtenPart.error;
+            for (int source : e.getRejectedSources()) {
+                int tupleIndex = flight.points.tupleIndexOf(source);
+                if (this.deadLetterRejectedPoints) {
+                    InfluxdbMetricDatapoint metricDataPoint = flight.points.point(source);
+                    collector.emit(DEAD_LETTER_STREAM, flight.points.tuple(tupleIndex), new Values(metricDataPoint.getMetric(),
+                            metricDataPoint.getTimestamp(), metricDataPoint.getTags(), metricDataPoint.getFields(),
+                            metricDataPoint.getValue(), e.getMessage()));
+                } else {
+                    flight.failedTuples[tupleIndex] = true;
+                }
+            }
+            LOG.warn("{}: InfluxDB rejected {} points written to {}: {}",
+                    new Object[]{this.getClass().getSimpleName(), e.getRejectedPoints(), flight.partEndpoints[part], e.getMessage()});
+        } else if (writtenPart.error != null) {
+            for (int tupleIndex : flight.partTuples[part]) {
+                flight.failedTuples[tupleIndex] = true;
+            }
+            LOG.error("the metric points failed with details: " + writtenPart.error.getMessage());
+        }
+
+        for (int tupleIndex : flight.partTuples[part]) {
+            if (--flight.pendingTupleParts[tupleIndex] == 0) {
+                if (flight.failedTuples[tupleIndex]) {
+                    collector.fail(flight.points.tuple(tupleIndex));
+                } else {
+                    collector.ack(flight.points.tuple(tupleIndex));
+                }
+            }
+        }
+        if (--flight.pendingParts == 0) {
+            this.inFlightBatches--;
+            this.recycle(flight.points);
+        }
+    }
+
+    private void recycle(DatapointBatch points) {
+        points.reset();
+        this.idleDatapointBatches.push(points);
+    }
+
+    /**
+     * Ack the tuples whose points were written, and fail or dead letter the tuples of the rejected points.
+     */
+    private void completePartialWrite(BatchHelper batch, DatapointBatch points, InfluxdbPartialWriteException e) {
+        Set<Tuple> rejectedTuples = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int source : e.getRejectedSources()) {
+            Tuple tuple = points.tupleOf(source);
+            rejectedTuples.add(tuple);
+            if (this.deadLetterRejectedPoints) {
+                InfluxdbMetricDatapoint metricDataPoint = points.point(source);
+                collector.emit(DEAD_LETTER_STREAM, tuple, new Values(metricDataPoint.getMetric(), metricDataPoint.getTimestamp(),
+                        metricDataPoint.getTags(), metricDataPoint.getFields(), metricDataPoint.getValue(), e.getMessage()));
+            }
+        }
+        for (Tuple batchedTuple : batch.getBatchTuples()) {
+            if (this.deadLetterRejectedPoints || !rejectedTuples.contains(batchedTuple)) {
+                collector.ack(batchedTuple);
             } else {
-                LOG.warn("{}: Discarding dataPoint: {}, value is null", this.getClass().getSimpleName(), metricDataPoint.getMetric());
+                collector.fail(batchedTuple);
             }
         }
+        LOG.warn("{}: InfluxDB rejected {} points of {} tuples: {}",
+                new Object[]{this.getClass().getSimpleName(), e.getRejectedPoints(), rejectedTuples.size(), e.getMessage()});
+    }
+
+    public void writeMetricPoints(Collection<InfluxdbMetricDatapoint> metricDataPoints){
+        this.prepareAggregatedPoints();
+        this.prepareMetricPoints(metricDataPoints);
         this.influxdbClient.sendPoints();
     }
 
+    private void prepareAggregatedPoints() {
+        if (this.seriesAggregator != null) {
+            this.seriesAggregator.drainTo(this.influxdbClient);
+        }
+    }
+
+    private void prepareMetricPoints(Collection<InfluxdbMetricDatapoint> metricDataPoints) {
+        for( InfluxdbMetricDatapoint metricDataPoint : metricDataPoints)
+        {
+            this.prepareMetricPoint(metricDataPoint, -1);
+        }
+    }
+
+    private void prepareMetricPoint(InfluxdbMetricDatapoint metricDataPoint, int source) {
+        if (metricDataPoint.getValue() != null || !metricDataPoint.getFields().isEmpty()) {
+            this.influxdbClient.prepareDataPoint(metricDataPoint.getDatabase(), metricDataPoint.getRetentionPolicy(),
+                    metricDataPoint.getMetric(),metricDataPoint.getTags(),metricDataPoint.getFields(),
+                    metricDataPoint.getValue(),metricDataPoint.getTimestamp(), source);
+        } else {
+            this.influxdbClient.getMetrics().discardedNull();
+            LOG.warn("{}: Discarding dataPoint: {}, value is null", this.getClass().getSimpleName(), metricDataPoint.getMetric());
+        }
+    }
+
 
     public void cleanup() {
+        if (this.writtenParts != null) {
+            final long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            try {
+                while (this.inFlightBatches > 0) {
+                    WrittenPart writtenPart = this.writtenParts.poll(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (writtenPart == null) {
+                        LOG.warn("{}: Timed out waiting for {} in-flight batches", this.getClass().getSimpleName(), this.inFlightBatches);
+                        break;
+                    }
+                    this.completeWrittenPart(writtenPart);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         this.influxdbClient.closeConnection();
     }
 
     public void declareOutputFields(OutputFieldsDeclarer declarer) {
+        if (this.deadLetterRejectedPoints) {
+            declarer.declareStream(DEAD_LETTER_STREAM, DEAD_LETTER_FIELDS);
+        }
     }
 
     public Map<String, Object> getComponentConfiguration() {
-        return TupleUtils.putTickFrequencyIntoComponentConfig(super.getComponentConfiguration(), this.flushIntervalInSeconds);
+        int tickFrequencyInSeconds = this.flushIntervalInSeconds;
+        if (tickFrequencyInSeconds <= 0 && this.aggregationPercentiles != null) {
+            // aggregation windows are only flushed on ticks
+            tickFrequencyInSeconds = DEFAULT_AGGREGATION_WINDOW_IN_SECONDS;
+        } else if (tickFrequencyInSeconds <= 0 && this.adaptiveBatchPolicy != null) {
+            // ticks let a quiet stream flush after the linger time
+            tickFrequencyInSeconds = (int) Math.max(1, (this.adaptiveBatchPolicy.getMaxLingerMillis() + 999) / 1000);
+        }
+        return TupleUtils.putTickFrequencyIntoComponentConfig(super.getComponentConfiguration(), tickFrequencyInSeconds);
+    }
+
+    /**
+     * A batch handed to the writer threads, with the tuples held by each of its parts and the parts each tuple waits for.
+     * Tuples without points in any part, e.g. aggregated into a window, wait for every part.
+     */
+    private static final class InFlightBatch {
+        private final DatapointBatch points;
+        private final String[] partEndpoints;
+        private final int[] partBytes;
+        private final int[][] partTuples;
+        private final int[] pendingTupleParts;
+        private final boolean[] failedTuples;
+        private int pendingParts;
+        private long startNanos;
+
+        private InFlightBatch(DatapointBatch points, InfluxdbBatch influxdbBatch) {
+            final int parts = influxdbBatch.getPartCount();
+            final int tuples = points.tupleCount();
+            this.points = points;
+            this.partEndpoints = new String[parts];
+            this.partBytes = new int[parts];
+            this.partTuples = new int[parts][];
+            this.pendingTupleParts = new int[tuples];
+            this.failedTuples = new boolean[tuples];
+            this.pendingParts = parts;
+
+            int[] lastPart = new int[tuples];
+            Arrays.fill(lastPart, -1);
+            for (int part = 0; part < parts; part++) {
+                this.partEndpoints[part] = influxdbBatch.getPartEndpoint(part);
+                this.partBytes[part] = influxdbBatch.getPartBytes(part);
+                int[] sources = influxdbBatch.getPartSources(part);
+                int[] partTuples = new int[Math.min(sources.length, tuples)];
+                int count = 0;
+                for (int source : sources) {
+                    int tupleIndex = points.tupleIndexOf(source);
+                    if (lastPart[tupleIndex] != part) {
+                        lastPart[tupleIndex] = part;
+                        partTuples[count++] = tupleIndex;
+                        this.pendingTupleParts[tupleIndex]++;
+                    }
+                }
+                this.partTuples[part] = Arrays.copyOf(partTuples, count);
+            }
+            int unsourced = 0;
+            int[] unsourcedTuples = new int[tuples];
+            for (int tupleIndex = 0; tupleIndex < tuples; tupleIndex++) {
+                if (this.pendingTupleParts[tupleIndex] == 0) {
+                    unsourcedTuples[unsourced++] = tupleIndex;
+                    this.pendingTupleParts[tupleIndex] = parts;
+                }
+            }
+            if (unsourced > 0) {
+                for (int part = 0; part < parts; part++) {
+                    int count = this.partTuples[part].length;
+                    this.partTuples[part] = Arrays.copyOf(this.partTuples[part], count + unsourced);
+                    System.arraycopy(unsourcedTuples, 0, this.partTuples[part], count, unsourced);
+                }
+            }
+        }
+    }
+
+    private static final class WrittenPart {
+        private final InFlightBatch flight;
+        private final int part;
+        private final long latencyNanos;
+        private final RuntimeException error;
+
+        private WrittenPart(InFlightBatch flight, int part, RuntimeException error) {
+            this.flight = flight;
+            this.part = part;
+            this.latencyNanos = System.nanoTime() - flight.startNanos;
+            this.error = error;
+        }
     }
 }
@@ -0,0 +1,197 @@
+package com.shinet.storm.influxdb.bolt;
+
+import com.shinet.storm.influxdb.client.InfluxdbClient;
+import com.shinet.storm.influxdb.client.InfluxdbClient.Builder;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.topology.OutputFieldsDeclarer;
+import org.apache.storm.topology.base.BaseRichBolt;
+import org.apache.storm.tuple.Tuple;
+import org.apache.storm.tuple.Values;
+import org.apache.storm.utils.TupleUtils;
+import org.influxdb.dto.QueryResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enriches tuples with the result of an InfluxDB query built by a {@link ITupleInfluxdbLookupMapper}, e.g. the latest
+ * value or a recent aggregate of a series. Results are cached for ttlMillis in a bounded LRU cache, and refreshed ahead
+ * of expiry in the background once older than refreshAfterMillis. Tuples missing the cache wait for a single query per
+ * distinct query string. Queries never block the executor: their results are emitted, anchored and acked on the
+ * executor thread with the next tuple, or the next tick tuple when the stream is quiet.
+ */
+public class InfluxdbLookupBolt extends BaseRichBolt {
+    private static final Logger LOG = LoggerFactory.getLogger(InfluxdbLookupBolt.class);
+    private final Builder influxdbClientBuilder;
+    private final ITupleInfluxdbLookupMapper lookupMapper;
+    private int maxCachedResults = 1000;
+    private long ttlMillis = 60000;
+    private long refreshAfterMillis = 45000;
+    private int tickFrequencyInSeconds = 1;
+    private InfluxdbClient influxdbClient;
+    private OutputCollector collector;
+    private Map<String, CachedResult> cachedResults;
+    private final Map<String, List<Tuple>> pendingQueries = new HashMap<>();
+    private final Queue<CompletedQuery> completedQueries = new ConcurrentLinkedQueue<>();
+
+    public InfluxdbLookupBolt(Builder influxdbClientBuilder, ITupleInfluxdbLookupMapper lookupMapper) {
+        this.influxdbClientBuilder = influxdbClientBuilder;
+        this.lookupMapper = lookupMapper;
+    }
+
+    /**
+     * Cache at most maxCachedResults query results for ttlMillis, refreshing a result used after refreshAfterMillis
+     * in the background. A refreshAfterMillis not below ttlMillis disables the refresh ahead.
+     */
+    public InfluxdbLookupBolt withCache(int maxCachedResults, long ttlMillis, long refreshAfterMillis) {
+        this.maxCachedResults = maxCachedResults;
+        this.ttlMillis = ttlMillis;
+        this.refreshAfterMillis = refreshAfterMillis;
+        return this;
+    }
+
+    /**
+     * Frequency of the tick tuples emitting the completed lookups of a quiet stream, one second by default.
+     */
+    public InfluxdbLookupBolt withTickFrequency(int tickFrequencyInSeconds) {
+        this.tickFrequencyInSeconds = tickFrequencyInSeconds;
+        return this;
+    }
+
+    @Override
+    public void prepare(Map<String, Object> topoConf, TopologyContext context, OutputCollector collector) {
+        this.collector = collector;
+        this.influxdbClient = this.influxdbClientBuilder.build();
+        final int maxCachedResults = this.maxCachedResults;
+        this.cachedResults = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+                return this.size() > maxCachedResults;
+            }
+        };
+    }
+
+    @Override
+    public void execute(Tuple tuple) {
+        this.completeQueries();
+        if (TupleUtils.isTick(tuple)) {
+            return;
+        }
+        final String query;
+        try {
+            query = this.lookupMapper.getQuery(tuple);
+        } catch (RuntimeException e) {
+            LOG.warn("{}: Failed to build the query of tuple {}", this.getClass().getSimpleName(), tuple, e);
+            this.collector.reportError(e);
+            this.collector.fail(tuple);
+            return;
+        }
+
+        final long nowNanos = System.nanoTime();
+        final CachedResult cachedResult = this.cachedResults.get(query);
+        if (cachedResult != null && nowNanos - cachedResult.loadedNanos < TimeUnit.MILLISECONDS.toNanos(this.ttlMillis)) {
+            this.emit(tuple, cachedResult.result);
+            if (nowNanos - cachedResult.loadedNanos >= TimeUnit.MILLISECONDS.toNanos(this.refreshAfterMillis)
+                    && !this.pendingQueries.containsKey(query)) {
+                this.startQuery(query);
+            }
+            return;
+        }
+        List<Tuple> waitingTuples = this.pendingQueries.get(query);
+        if (waitingTuples == null) {
+            waitingTuples = this.startQuery(query);
+        }
+        waitingTuples.add(tuple);
+    }
+
+    private List<Tuple> startQuery(final String query) {
+        final List<Tuple> waitingTuples = new ArrayList<>();
+        this.pendingQueries.put(query, waitingTuples);
+        this.influxdbClient.queryAsync(query).whenComplete((result, e) ->
+                this.completedQueries.add(new CompletedQuery(query, result, e instanceof CompletionException ? e.getCause() : e)));
+        return waitingTuples;
+    }
+
+    private void completeQueries() {
+        CompletedQuery completedQuery;
+        while ((completedQuery = this.completedQueries.poll()) != null) {
+            final List<Tuple> waitingTuples = this.pendingQueries.remove(completedQuery.query);
+            if (completedQuery.error != null) {
+                // a failed refresh keeps serving the cached result until it expires
+                LOG.warn("{}: Failed to query {} for {} tuples", new Object[]{this.getClass().getSimpleName(), completedQuery.query,
+                        waitingTuples.size(), completedQuery.error});
+                if (!waitingTuples.isEmpty()) {
+                    this.collector.reportError(completedQuery.error);
+                }
+                for (Tuple tuple : waitingTuples) {
+                    this.collector.fail(tuple);
+                }
+                continue;
+            }
+            this.cachedResults.put(completedQuery.query, new CachedResult(completedQuery.result, System.nanoTime()));
+            for (Tuple tuple : waitingTuples) {
+                this.emit(tuple, completedQuery.result);
+            }
+        }
+    }
+
+    private void emit(Tuple tuple, QueryResult result) {
+        try {
+            for (Values values : this.lookupMapper.toTuples(tuple, result)) {
+                this.collector.emit(tuple, values);
+            }
+            this.collector.ack(tuple);
+        } catch (RuntimeException e) {
+            LOG.warn("{}: Failed to map the lookup result of tuple {}", this.getClass().getSimpleName(), tuple, e);
+            this.collector.reportError(e);
+            this.collector.fail(tuple);
+        }
+    }
+
+    @Override
+    public void cleanup() {
+        this.influxdbClient.closeConnection();
+    }
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+        this.lookupMapper.declareOutputFields(declarer);
+    }
+
+    @Override
+    public Map<String, Object> getComponentConfiguration() {
+        return TupleUtils.putTickFrequencyIntoComponentConfig(super.getComponentConfiguration(), this.tickFrequencyInSeconds);
+    }
+
+    private static final class CachedResult {
+        private final QueryResult result;
+        private final long loadedNanos;
+
+        private CachedResult(QueryResult result, long loadedNanos) {
+            this.result = result;
+            this.loadedNanos = loadedNanos;
+        }
+    }
+
+    private static final class CompletedQuery {
+        private final String query;
+        private final QueryResult result;
+        private final Throwable error;
+
+        private CompletedQuery(String query, QueryResult result, Throwable error) {
+            this.query = query;
+            this.result = result;
+            this.error = error;
+        }
+    }
+}
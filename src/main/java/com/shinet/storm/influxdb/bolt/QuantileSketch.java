@@ -0,0 +1,136 @@
+package com.shinet.storm.influxdb.bolt;
+
+import java.util.Arrays;
+
+/**
+ * Mergeable quantile sketch with bounded relative error, values are counted in logarithmically sized buckets.
+ */
+public final class QuantileSketch {
+    private final double gamma;
+    private final double logGamma;
+    private final Buckets positive = new Buckets();
+    private final Buckets negative = new Buckets();
+    private long zeroCount;
+    private long count;
+
+    /**
+     * @param relativeAccuracy the relative error of the returned quantiles, e.g. 0.01 for 1%
+     */
+    public QuantileSketch(double relativeAccuracy) {
+        if (relativeAccuracy <= 0 || relativeAccuracy >= 1) {
+            throw new IllegalArgumentException("relativeAccuracy must be in (0, 1): " + relativeAccuracy);
+        }
+        this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.logGamma = Math.log(this.gamma);
+    }
+
+    public void add(double value) {
+        if (value > Double.MIN_NORMAL) {
+            this.positive.add(this.index(value), 1);
+        } else if (value < -Double.MIN_NORMAL) {
+            this.negative.add(this.index(-value), 1);
+        } else {
+            this.zeroCount++;
+        }
+        this.count++;
+    }
+
+    /**
+     * Add all values counted by another sketch built with the same relative accuracy.
+     */
+    public void merge(QuantileSketch other) {
+        if (this.gamma != other.gamma) {
+            throw new IllegalArgumentException("Cannot merge sketches with different relative accuracy");
+        }
+        this.positive.merge(other.positive);
+        this.negative.merge(other.negative);
+        this.zeroCount += other.zeroCount;
+        this.count += other.count;
+    }
+
+    /**
+     * Retrieve the value at the given quantile.
+     * @param quantile between 0 and 1
+     * @return the estimated value, NaN when the sketch is empty
+     */
+    public double quantile(double quantile) {
+        if (this.count == 0) {
+            return Double.NaN;
+        }
+        long rank = (long) (quantile * (this.count - 1));
+        long seen = 0;
+        for (int i = this.negative.counts.length - 1; i >= 0; i--) {
+            seen += this.negative.counts[i];
+            if (seen > rank) {
+                return -this.value(i + this.negative.offset);
+            }
+        }
+        seen += this.zeroCount;
+        if (seen > rank) {
+            return 0;
+        }
+        for (int i = 0; i < this.positive.counts.length; i++) {
+            seen += this.positive.counts[i];
+            if (seen > rank) {
+                return this.value(i + this.positive.offset);
+            }
+        }
+        return this.value(this.positive.counts.length - 1 + this.positive.offset);
+    }
+
+    public long getCount() {
+        return this.count;
+    }
+
+    /**
+     * Forget all values but keep the allocated buckets.
+     */
+    public void reset() {
+        this.positive.reset();
+        this.negative.reset();
+        this.zeroCount = 0;
+        this.count = 0;
+    }
+
+    private int index(double value) {
+        return (int) Math.ceil(Math.log(value) / this.logGamma);
+    }
+
+    private double value(int index) {
+        return 2 * Math.pow(this.gamma, index) / (this.gamma + 1);
+    }
+
+    private static final class Buckets {
+        private long[] counts = new long[0];
+        private int offset;
+
+        private void add(int index, long increment) {
+            if (this.counts.length == 0) {
+                this.counts = new long[16];
+                this.offset = index - 8;
+            }
+            if (index < this.offset) {
+                int shift = Math.max(this.offset - index, this.counts.length);
+                long[] grown = new long[this.counts.length + shift];
+                System.arraycopy(this.counts, 0, grown, shift, this.counts.length);
+                this.counts = grown;
+                this.offset -= shift;
+            } else if (index >= this.offset + this.counts.length) {
+                this.counts = Arrays.copyOf(this.counts, Math.max(index - this.offset + 1, this.counts.length << 1));
+            }
+            this.counts[index - this.offset] += increment;
+        }
+
+        private void merge(Buckets other) {
+            for (int i = 0; i < other.counts.length; i++) {
+                if (other.counts[i] != 0) {
+                    this.add(i + other.offset, other.counts[i]);
+                }
+            }
+        }
+
+        private void reset() {
+            Arrays.fill(this.counts, 0);
+        }
+    }
+}
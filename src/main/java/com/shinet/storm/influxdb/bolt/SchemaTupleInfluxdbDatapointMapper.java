@@ -0,0 +1,276 @@
+package com.shinet.storm.influxdb.bolt;
+
+import com.shinet.storm.influxdb.InfluxdbMetricDatapoint;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.ITuple;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Converts {@link ITuple} to {@link InfluxdbMetricDatapoint} from a declarative spec: the metric, timestamp and value
+ * fields, tuple fields mapped to tags and fields one by one, and optionally tuple fields already holding tags and
+ * fields maps. The field indexes are resolved once per source stream, then every tuple is read with
+ * {@link ITuple#getValue(int)}, so producers can emit tags as plain tuple fields instead of a map per tuple.
+ */
+public final class SchemaTupleInfluxdbDatapointMapper implements ITupleInfluxdbDataPointMapper {
+    private static final int MAX_CACHED_SCHEMAS = 64;
+
+    private final String metricField;
+    private final String timestampField;
+    private final String valueField;
+    private final List<String> tagFields = new ArrayList<>();
+    private final List<String> tagKeys = new ArrayList<>();
+    private final List<String> fieldFields = new ArrayList<>();
+    private final List<String> fieldKeys = new ArrayList<>();
+    private String tagsMapField;
+    private String fieldsMapField;
+    private transient volatile Schema lastSchema;
+    private transient Map<Fields, Schema> schemas;
+
+    public SchemaTupleInfluxdbDatapointMapper(String metricField, String timestampField, String valueField) {
+        this.metricField = metricField;
+        this.timestampField = timestampField;
+        this.valueField = valueField;
+    }
+
+    /**
+     * Map a tuple field to the tag of the same name.
+     */
+    public SchemaTupleInfluxdbDatapointMapper withTagField(String tupleField) {
+        return this.withTagField(tupleField, tupleField);
+    }
+
+    /**
+     * Map a tuple field to a tag, null values are left out.
+     */
+    public SchemaTupleInfluxdbDatapointMapper withTagField(String tupleField, String tagKey) {
+        this.tagFields.add(tupleField);
+        this.tagKeys.add(tagKey);
+        return this;
+    }
+
+    /**
+     * Map a tuple field to the InfluxDB field of the same name.
+     */
+    public SchemaTupleInfluxdbDatapointMapper withField(String tupleField) {
+        return this.withField(tupleField, tupleField);
+    }
+
+    /**
+     * Map a tuple field to an InfluxDB field, null values are left out.
+     */
+    public SchemaTupleInfluxdbDatapointMapper withField(String tupleField, String fieldKey) {
+        this.fieldFields.add(tupleField);
+        this.fieldKeys.add(fieldKey);
+        return this;
+    }
+
+    /**
+     * Read more tags from a tuple field holding a {@code Map<String, String>}.
+     */
+    public SchemaTupleInfluxdbDatapointMapper withTagsMapField(String tagsMapField) {
+        this.tagsMapField = tagsMapField;
+        return this;
+    }
+
+    /**
+     * Read more InfluxDB fields from a tuple field holding a {@code Map<String, Object>}.
+     */
+    public SchemaTupleInfluxdbDatapointMapper withFieldsMapField(String fieldsMapField) {
+        this.fieldsMapField = fieldsMapField;
+        return this;
+    }
+
+    @Override
+    public InfluxdbMetricDatapoint getMetricPoint(ITuple tuple) {
+        Schema schema = this.schemaOf(tuple.getFields());
+        Object timestamp = tuple.getValue(schema.timestampIndex);
+        return new InfluxdbMetricDatapoint(
+                (String) tuple.getValue(schema.metricIndex),
+                this.<String>readMap(tuple, schema.tagKeys, schema.tagIndices, schema.tagsMapIndex, true),
+                this.readMap(tuple, schema.fieldKeys, schema.fieldIndices, schema.fieldsMapIndex, false),
+                ((Number) timestamp).longValue(),
+                (Number) tuple.getValue(schema.valueIndex));
+    }
+
+    private Schema schemaOf(Fields fields) {
+        Schema schema = this.lastSchema;
+        if (schema != null && schema.fields == fields) {
+            return schema;
+        }
+        synchronized (this) {
+            if (this.schemas == null) {
+                this.schemas = new IdentityHashMap<>();
+            }
+            schema = this.schemas.get(fields);
+            if (schema == null) {
+                if (this.schemas.size() >= MAX_CACHED_SCHEMAS) {
+                    // tuples not sharing their Fields instance, keep the cache bounded
+                    this.schemas.clear();
+                }
+                schema = new Schema(fields);
+                this.schemas.put(fields, schema);
+            }
+        }
+        this.lastSchema = schema;
+        return schema;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <V> Map<String, V> readMap(ITuple tuple, String[] keys, int[] indices, int mapIndex, boolean asString) {
+        Object[] values = new Object[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            Object value = tuple.getValue(indices[i]);
+            values[i] = asString && value != null ? value.toString() : value;
+        }
+        Map<String, V> mapped = new FixedKeyMap<>(keys, (V[]) values);
+        if (mapIndex < 0) {
+            return mapped;
+        }
+        Map<String, V> tupleMap = (Map<String, V>) tuple.getValue(mapIndex);
+        if (keys.length == 0) {
+            return tupleMap != null ? tupleMap : Collections.<String, V>emptyMap();
+        }
+        Map<String, V> merged = new HashMap<>(tupleMap != null ? tupleMap : Collections.<String, V>emptyMap());
+        merged.putAll(mapped);
+        return merged;
+    }
+
+    private static int indexOf(Fields fields, String field) {
+        if (!fields.contains(field)) {
+            throw new IllegalArgumentException("Tuple fields " + fields.toList() + " have no field '" + field + "'");
+        }
+        return fields.fieldIndex(field);
+    }
+
+    @Override
+    public String toString() {
+        return "SchemaTupleInfluxdbDatapointMapper{"
+                + "metricField='" + metricField + '\''
+                + ", timestampField='" + timestampField + '\''
+                + ", valueField='" + valueField + '\''
+                + ", tagFields=" + tagFields
+                + ", fieldFields=" + fieldFields
+                + ", tagsMapField='" + tagsMapField + '\''
+                + ", fieldsMapField='" + fieldsMapField + '\''
+                + '}';
+    }
+
+    /**
+     * Field indexes of one source stream.
+     */
+    private final class Schema {
+        private final Fields fields;
+        private final int metricIndex;
+        private final int timestampIndex;
+        private final int valueIndex;
+        private final int tagsMapIndex;
+        private final int fieldsMapIndex;
+        private final String[] tagKeys;
+        private final int[] tagIndices;
+        private final String[] fieldKeys;
+        private final int[] fieldIndices;
+
+        private Schema(Fields fields) {
+            this.fields = fields;
+            this.metricIndex = indexOf(fields, metricField);
+            this.timestampIndex = indexOf(fields, timestampField);
+            this.valueIndex = indexOf(fields, valueField);
+            this.tagsMapIndex = tagsMapField == null ? -1 : indexOf(fields, tagsMapField);
+            this.fieldsMapIndex = fieldsMapField == null ? -1 : indexOf(fields, fieldsMapField);
+            this.tagKeys = SchemaTupleInfluxdbDatapointMapper.this.tagKeys.toArray(new String[0]);
+            this.tagIndices = new int[tagFields.size()];
+            for (int i = 0; i < this.tagIndices.length; i++) {
+                this.tagIndices[i] = indexOf(fields, tagFields.get(i));
+            }
+            this.fieldKeys = SchemaTupleInfluxdbDatapointMapper.this.fieldKeys.toArray(new String[0]);
+            this.fieldIndices = new int[fieldFields.size()];
+            for (int i = 0; i < this.fieldIndices.length; i++) {
+                this.fieldIndices[i] = indexOf(fields, fieldFields.get(i));
+            }
+        }
+    }
+
+    /**
+     * Read only map over keys shared by every tuple of a stream and the values of one tuple, null values are left out.
+     */
+    private static final class FixedKeyMap<V> extends AbstractMap<String, V> {
+        private final String[] keys;
+        private final V[] values;
+
+        private FixedKeyMap(String[] keys, V[] values) {
+            this.keys = keys;
+            this.values = values;
+        }
+
+        @Override
+        public V get(Object key) {
+            for (int i = 0; i < this.keys.length; i++) {
+                if (this.keys[i].equals(key)) {
+                    return this.values[i];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return this.get(key) != null;
+        }
+
+        @Override
+        public Set<Entry<String, V>> entrySet() {
+            return new AbstractSet<Entry<String, V>>() {
+                @Override
+                public Iterator<Entry<String, V>> iterator() {
+                    return new Iterator<Entry<String, V>>() {
+                        private int next = this.skipNulls(0);
+
+                        private int skipNulls(int index) {
+                            while (index < values.length && values[index] == null) {
+                                index++;
+                            }
+                            return index;
+                        }
+
+                        @Override
+                        public boolean hasNext() {
+                            return this.next < values.length;
+                        }
+
+                        @Override
+                        public Entry<String, V> next() {
+                            if (this.next >= values.length) {
+                                throw new NoSuchElementException();
+                            }
+                            Entry<String, V> entry = new SimpleImmutableEntry<>(keys[this.next], values[this.next]);
+                            this.next = this.skipNulls(this.next + 1);
+                            return entry;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    int size = 0;
+                    for (V value : values) {
+                        if (value != null) {
+                            size++;
+                        }
+                    }
+                    return size;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.shinet.storm.influxdb.bolt;
+
+import com.shinet.storm.influxdb.InfluxdbMetricDatapoint;
+import com.shinet.storm.influxdb.client.InfluxdbClient;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pre-aggregates numeric data points per series (metric plus tags) over a window.
+ * {@link #drainTo(InfluxdbClient)} prepares one point per series holding count, sum, min, max, last
+ * and optionally percentiles, with the mean as value. Not thread safe.
+ */
+public class SeriesAggregator {
+    private static final double SKETCH_RELATIVE_ACCURACY = 0.01;
+
+    private final double[] percentiles;
+    private final String[] percentileFields;
+    private final Map<String, Map<Map<String, String>, Accumulator>> series = new HashMap<>();
+    private final Map<String, Object> fields = new HashMap<>();
+
+    /**
+     * @param percentiles the percentiles to emit, between 0 and 100, none to skip the percentile sketch
+     */
+    public SeriesAggregator(double... percentiles) {
+        this.percentiles = percentiles.clone();
+        this.percentileFields = new String[percentiles.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            String percentile = Double.toString(percentiles[i]);
+            this.percentileFields[i] = "p" + (percentile.endsWith(".0") ? percentile.substring(0, percentile.length() - 2) : percentile.replace('.', '_'));
+        }
+    }
+
+    /**
+     * Add a data point to its series.
+     * @return false when the value is not numeric, is NaN or infinite, or the point has its own database or retention
+     * policy, such points have to be written as they are: the client then discards and counts the non finite ones
+     * instead of letting them poison the sum, min and max of the window
+     */
+    public boolean add(InfluxdbMetricDatapoint metricDataPoint) {
+        if (!(metricDataPoint.getValue() instanceof Number) || metricDataPoint.getDatabase() != null
+                || metricDataPoint.getRetentionPolicy() != null) {
+            return false;
+        }
+        final double value = ((Number) metricDataPoint.getValue()).doubleValue();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return false;
+        }
+        Map<Map<String, String>, Accumulator> metricSeries = this.series.get(metricDataPoint.getMetric());
+        if (metricSeries == null) {
+            metricSeries = new HashMap<>();
+            this.series.put(metricDataPoint.getMetric(), metricSeries);
+        }
+        Accumulator accumulator = metricSeries.get(metricDataPoint.getTags());
+        if (accumulator == null) {
+            accumulator = new Accumulator(new TreeMap<>(metricDataPoint.getTags()), this.percentiles.length > 0);
+            metricSeries.put(accumulator.tags, accumulator);
+        }
+        accumulator.add(value, metricDataPoint.getTimestamp());
+        return true;
+    }
+
+    /**
+     * Prepare one point per series seen in the window and start a new window.
+     * Series which did not receive a point during the whole window are forgotten.
+     */
+    public void drainTo(InfluxdbClient influxdbClient) {
+        Iterator<Map.Entry<String, Map<Map<String, String>, Accumulator>>> metrics = this.series.entrySet().iterator();
+        while (metrics.hasNext()) {
+            Map.Entry<String, Map<Map<String, String>, Accumulator>> metric = metrics.next();
+            Iterator<Accumulator> accumulators = metric.getValue().values().iterator();
+            while (accumulators.hasNext()) {
+                Accumulator accumulator = accumulators.next();
+                if (accumulator.count == 0) {
+                    accumulators.remove();
+                    continue;
+                }
+                this.fields.clear();
+                this.fields.put("count", accumulator.count);
+                this.fields.put("sum", accumulator.sum);
+                this.fields.put("min", accumulator.min);
+                this.fields.put("max", accumulator.max);
+                this.fields.put("last", accumulator.last);
+                for (int i = 0; i < this.percentiles.length; i++) {
+                    this.fields.put(this.percentileFields[i], accumulator.sketch.quantile(this.percentiles[i] / 100));
+                }
+                influxdbClient.prepareDataPoint(metric.getKey(), accumulator.tags, this.fields,
+                        accumulator.sum / accumulator.count, accumulator.timestamp);
+                accumulator.reset();
+            }
+            if (metric.getValue().isEmpty()) {
+                metrics.remove();
+            }
+        }
+        this.fields.clear();
+    }
+
+    private static final class Accumulator {
+        private final Map<String, String> tags;
+        private final QuantileSketch sketch;
+        private long count;
+        private double sum;
+        private double min;
+        private double max;
+        private double last;
+        private long timestamp;
+
+        private Accumulator(Map<String, String> tags, boolean withSketch) {
+            this.tags = tags;
+            this.sketch = withSketch ? new QuantileSketch(SKETCH_RELATIVE_ACCURACY) : null;
+        }
+
+        private void add(double value, long timestamp) {
+            if (this.count == 0) {
+                this.min = value;
+                this.max = value;
+            } else {
+                this.min = Math.min(this.min, value);
+                this.max = Math.max(this.max, value);
+            }
+            this.count++;
+            this.sum += value;
+            if (timestamp >= this.timestamp) {
+                this.last = value;
+                this.timestamp = timestamp;
+            }
+            if (this.sketch != null) {
+                this.sketch.add(value);
+            }
+        }
+
+        private void reset() {
+            this.count = 0;
+            this.sum = 0;
+            this.timestamp = 0;
+            if (this.sketch != null) {
+                this.sketch.reset();
+            }
+        }
+    }
+}
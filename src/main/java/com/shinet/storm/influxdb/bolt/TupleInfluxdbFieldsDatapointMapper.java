@@ -8,6 +8,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * Converts {@link ITuple} to {@link InfluxdbMetricDatapoint}.
@@ -26,13 +27,26 @@ public final class TupleInfluxdbFieldsDatapointMapper implements ITupleInfluxdbD
     private final String valueField;
     private final String tagsField;
     private final String fieldsField;
+    private final String databaseField;
+    private final String retentionPolicyField;
 
     public TupleInfluxdbFieldsDatapointMapper(String metricField, String timestampField, String tagsField, String fieldsField, String valueField) {
+        this(metricField, timestampField, tagsField, fieldsField, valueField, null, null);
+    }
+
+    /**
+     * Mapper writing each point to the database and retention policy held by the given tuple fields, a null field
+     * name or value falls back to the client's database or retention policy.
+     */
+    public TupleInfluxdbFieldsDatapointMapper(String metricField, String timestampField, String tagsField, String fieldsField, String valueField,
+                                              String databaseField, String retentionPolicyField) {
         this.metricField = metricField;
         this.timestampField = timestampField;
         this.tagsField = tagsField;
         this.valueField = valueField;
         this.fieldsField = fieldsField;
+        this.databaseField = databaseField;
+        this.retentionPolicyField = retentionPolicyField;
     }
 
     @Override
@@ -42,7 +56,9 @@ public final class TupleInfluxdbFieldsDatapointMapper implements ITupleInfluxdbD
                 (Map<String, String>) tuple.getValueByField(tagsField),
                 (Map<String, Object>) tuple.getValueByField(fieldsField),
                 tuple.getLongByField(timestampField),
-                (Number) tuple.getValueByField(valueField));
+                (Number) tuple.getValueByField(valueField),
+                databaseField == null ? null : tuple.getStringByField(databaseField),
+                retentionPolicyField == null ? null : tuple.getStringByField(retentionPolicyField));
     }
 
     /**
@@ -81,6 +97,14 @@ public final class TupleInfluxdbFieldsDatapointMapper implements ITupleInfluxdbD
         return fieldsField;
     }
 
+    public String getDatabaseField() {
+        return databaseField;
+    }
+
+    public String getRetentionPolicyField() {
+        return retentionPolicyField;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) {
@@ -101,7 +125,8 @@ public final class TupleInfluxdbFieldsDatapointMapper implements ITupleInfluxdbD
         if (!valueField.equals(that.valueField)) {
             return false;
         }
-        return tagsField.equals(that.tagsField) && fieldsField.equals(that.fieldsField);
+        return tagsField.equals(that.tagsField) && fieldsField.equals(that.fieldsField)
+                && Objects.equals(databaseField, that.databaseField) && Objects.equals(retentionPolicyField, that.retentionPolicyField);
     }
 
     @Override
@@ -111,6 +136,7 @@ public final class TupleInfluxdbFieldsDatapointMapper implements ITupleInfluxdbD
         result = 31 * result + valueField.hashCode();
         result = 31 * result + tagsField.hashCode();
         result = 31 * result + fieldsField.hashCode();
+        result = 31 * result + Objects.hash(databaseField, retentionPolicyField);
         return result;
     }
 
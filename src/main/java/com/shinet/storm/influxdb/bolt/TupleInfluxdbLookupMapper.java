@@ -0,0 +1,89 @@
+package com.shinet.storm.influxdb.bolt;
+
+import org.apache.storm.topology.OutputFieldsDeclarer;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.ITuple;
+import org.apache.storm.tuple.Values;
+import org.influxdb.dto.QueryResult;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Looks up a single value: the ? placeholders of the query template are bound in order to the query fields of the
+ * tuple, strings as quoted InfluxQL literals, and the input values are emitted followed by the last column of the
+ * first row of the result, null when the query returned nothing.
+ * e.g. {@code SELECT last("value") FROM "threshold" WHERE "host" = ?}
+ */
+public final class TupleInfluxdbLookupMapper implements ITupleInfluxdbLookupMapper {
+    private final String queryTemplate;
+    private final Fields queryFields;
+    private final Fields outputFields;
+
+    /**
+     * @param outputFields the fields of the input tuple followed by the field of the looked up value
+     */
+    public TupleInfluxdbLookupMapper(String queryTemplate, Fields queryFields, Fields outputFields) {
+        this.queryTemplate = queryTemplate;
+        this.queryFields = queryFields;
+        this.outputFields = outputFields;
+    }
+
+    @Override
+    public String getQuery(ITuple tuple) {
+        StringBuilder query = new StringBuilder(this.queryTemplate.length() + 32);
+        int field = 0;
+        for (int i = 0; i < this.queryTemplate.length(); i++) {
+            char c = this.queryTemplate.charAt(i);
+            if (c != '?') {
+                query.append(c);
+            } else if (field < this.queryFields.size()) {
+                appendLiteral(query, tuple.getValueByField(this.queryFields.get(field++)));
+            } else {
+                throw new RuntimeException("More placeholders than query fields " + this.queryFields + " in " + this.queryTemplate);
+            }
+        }
+        return query.toString();
+    }
+
+    private static void appendLiteral(StringBuilder query, Object value) {
+        if (value instanceof Number || value instanceof Boolean) {
+            query.append(value);
+            return;
+        }
+        String string = String.valueOf(value);
+        query.append('\'');
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c == '\'' || c == '\\') {
+                query.append('\\');
+            }
+            query.append(c);
+        }
+        query.append('\'');
+    }
+
+    @Override
+    public List<Values> toTuples(ITuple tuple, QueryResult result) {
+        Values values = new Values(tuple.getValues().toArray());
+        values.add(lastColumnOfFirstRow(result));
+        return Collections.singletonList(values);
+    }
+
+    private static Object lastColumnOfFirstRow(QueryResult result) {
+        if (result.getResults() == null || result.getResults().isEmpty()) {
+            return null;
+        }
+        List<QueryResult.Series> series = result.getResults().get(0).getSeries();
+        if (series == null || series.isEmpty() || series.get(0).getValues() == null || series.get(0).getValues().isEmpty()) {
+            return null;
+        }
+        List<Object> row = series.get(0).getValues().get(0);
+        return row.isEmpty() ? null : row.get(row.size() - 1);
+    }
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+        declarer.declare(this.outputFields);
+    }
+}
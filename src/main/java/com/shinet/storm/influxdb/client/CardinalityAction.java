@@ -0,0 +1,19 @@
+package com.shinet.storm.influxdb.client;
+
+/**
+ * What the cardinality guard does with a tag key over its budget, see {@link InfluxdbClient.Builder#cardinalityGuard}.
+ */
+public enum CardinalityAction {
+    /**
+     * Write the points without the tag.
+     */
+    DROP_TAG,
+    /**
+     * Replace the tag value with one of a fixed number of hash buckets.
+     */
+    HASH_BUCKET,
+    /**
+     * Write the points to the overflow measurement, without the tag and with the original measurement as a tag.
+     */
+    OVERFLOW_MEASUREMENT
+}
@@ -0,0 +1,171 @@
+package com.shinet.storm.influxdb.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Contains series explosions before they reach InfluxDB: HyperLogLog sketches estimate the series of each measurement
+ * and the values of each of its tag keys in bounded memory. A tag key over maxValuesPerTagKey, or the tag key with the
+ * most values of a measurement over maxSeriesPerMeasurement, is limited with the {@link CardinalityAction} for the
+ * rest of the client's life. Budgets are per client, so per bolt task. Not thread safe.
+ */
+final class CardinalityGuard {
+    private static final Logger LOG = LoggerFactory.getLogger(CardinalityGuard.class);
+    static final String OVERFLOW_MEASUREMENT_TAG = "measurement";
+    private static final int PRECISION = 9;
+    private static final int MAX_TRACKED_MEASUREMENTS = 1000;
+
+    private final long maxSeriesPerMeasurement;
+    private final long maxValuesPerTagKey;
+    private final CardinalityAction action;
+    private final int hashBuckets;
+    private final String overflowMeasurement;
+    private final InfluxdbClientMetrics metrics;
+    private final Map<String, MeasurementSketch> measurements = new HashMap<>();
+
+    /**
+     * @param maxSeriesPerMeasurement the series budget of a measurement, 0 for none
+     * @param maxValuesPerTagKey the values budget of a tag key, 0 for none
+     */
+    CardinalityGuard(long maxSeriesPerMeasurement, long maxValuesPerTagKey, CardinalityAction action, int hashBuckets,
+                     String overflowMeasurement, InfluxdbClientMetrics metrics) {
+        this.maxSeriesPerMeasurement = maxSeriesPerMeasurement > 0 ? maxSeriesPerMeasurement : Long.MAX_VALUE;
+        this.maxValuesPerTagKey = maxValuesPerTagKey > 0 ? maxValuesPerTagKey : Long.MAX_VALUE;
+        this.action = action;
+        this.hashBuckets = Math.max(hashBuckets, 1);
+        this.overflowMeasurement = overflowMeasurement;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Count the series of a point and limit its tags.
+     * @return the measurement and tags to write the point with
+     */
+    Series guard(String measurement, Map<String, String> tags) {
+        if (tags == null || tags.isEmpty() || measurement.equals(this.overflowMeasurement)) {
+            return new Series(measurement, tags);
+        }
+        MeasurementSketch sketch = this.measurements.get(measurement);
+        if (sketch == null) {
+            if (this.measurements.size() >= MAX_TRACKED_MEASUREMENTS) {
+                if (this.measurements.size() == MAX_TRACKED_MEASUREMENTS) {
+                    LOG.warn("{}: Tracking the cardinality of {} measurements already, {} and the next ones are not guarded",
+                            new Object[]{this.getClass().getSimpleName(), MAX_TRACKED_MEASUREMENTS, measurement});
+                    this.measurements.put(measurement, null);
+                }
+                return new Series(measurement, tags);
+            }
+            sketch = new MeasurementSketch();
+            this.measurements.put(measurement, sketch);
+        }
+
+        boolean limited = false;
+        long seriesHash = 0;
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            if (isSkipped(tag)) {
+                continue;
+            }
+            TagSketch tagSketch = sketch.tagKeys.get(tag.getKey());
+            if (tagSketch == null) {
+                tagSketch = new TagSketch(tag.getKey());
+                sketch.tagKeys.put(tag.getKey(), tagSketch);
+            }
+            if (tagSketch.limited) {
+                limited = true;
+                continue;
+            }
+            long valueHash = HyperLogLog.hash(tag.getValue());
+            if (tagSketch.values.offer(valueHash) && tagSketch.values.estimate() > this.maxValuesPerTagKey) {
+                this.limit(measurement, tagSketch, "values");
+                limited = true;
+                continue;
+            }
+            // order independent, the tag maps of a series may iterate differently
+            seriesHash += ConsistentHashShardRouter.mix(tagSketch.keyHash ^ valueHash);
+        }
+        if (sketch.series.offer(ConsistentHashShardRouter.mix(seriesHash)) && sketch.series.estimate() > this.maxSeriesPerMeasurement) {
+            TagSketch culprit = null;
+            for (TagSketch tagSketch : sketch.tagKeys.values()) {
+                if (!tagSketch.limited && (culprit == null || tagSketch.values.estimate() > culprit.values.estimate())) {
+                    culprit = tagSketch;
+                }
+            }
+            if (culprit != null) {
+                this.limit(measurement, culprit, "series");
+                // count again the series without the limited tag
+                sketch.series.clear();
+                limited = true;
+            }
+        }
+        return limited ? this.limitTags(measurement, tags, sketch) : new Series(measurement, tags);
+    }
+
+    /**
+     * Null and empty tag values are not written, like the encoders do.
+     */
+    private static boolean isSkipped(Map.Entry<String, String> tag) {
+        return tag.getKey() == null || tag.getValue() == null || tag.getValue().isEmpty();
+    }
+
+    private void limit(String measurement, TagSketch tagSketch, String budget) {
+        tagSketch.limited = true;
+        this.metrics.cardinalityLimitedTag();
+        LOG.warn("{}: Tag {} of measurement {} is over its {} budget with about {} values, applying {}",
+                new Object[]{this.getClass().getSimpleName(), tagSketch.key, measurement, budget,
+                        tagSketch.values.estimate(), this.action});
+    }
+
+    private Series limitTags(String measurement, Map<String, String> tags, MeasurementSketch sketch) {
+        Map<String, String> limitedTags = new HashMap<>(tags.size() * 4 / 3 + 2);
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            if (isSkipped(tag)) {
+                continue;
+            }
+            TagSketch tagSketch = sketch.tagKeys.get(tag.getKey());
+            if (!tagSketch.limited) {
+                limitedTags.put(tag.getKey(), tag.getValue());
+            } else if (this.action == CardinalityAction.HASH_BUCKET) {
+                limitedTags.put(tag.getKey(), "bucket-" + Math.floorMod(HyperLogLog.hash(tag.getValue()), this.hashBuckets));
+            }
+        }
+        this.metrics.cardinalityLimitedPoint();
+        if (this.action == CardinalityAction.OVERFLOW_MEASUREMENT) {
+            limitedTags.put(OVERFLOW_MEASUREMENT_TAG, measurement);
+            return new Series(this.overflowMeasurement, limitedTags);
+        }
+        return new Series(measurement, limitedTags);
+    }
+
+    /**
+     * The measurement and tags a point is written with.
+     */
+    static final class Series {
+        final String measurement;
+        final Map<String, String> tags;
+
+        private Series(String measurement, Map<String, String> tags) {
+            this.measurement = measurement;
+            this.tags = tags;
+        }
+    }
+
+    private static final class MeasurementSketch {
+        private final HyperLogLog series = new HyperLogLog(PRECISION);
+        private final Map<String, TagSketch> tagKeys = new HashMap<>();
+    }
+
+    private static final class TagSketch {
+        private final String key;
+        private final long keyHash;
+        private final HyperLogLog values = new HyperLogLog(PRECISION);
+        private boolean limited;
+
+        private TagSketch(String key) {
+            this.key = key;
+            this.keyHash = HyperLogLog.hash(key);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.shinet.storm.influxdb.client;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Short-circuits the writes to an endpoint known to be down: after failureThreshold consecutive transient failures
+ * writes fail immediately for openMillis, then a single trial write decides whether to close the circuit again.
+ * Thread safe.
+ */
+final class CircuitBreaker {
+    private final int failureThreshold;
+    private final long openNanos;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean trialInFlight = new AtomicBoolean();
+    private volatile long openUntilNanos;
+    private volatile boolean open;
+
+    CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openMillis * 1000000L;
+    }
+
+    /**
+     * @return false when the write must fail without reaching the endpoint
+     */
+    boolean allowRequest() {
+        if (!this.open) {
+            return true;
+        }
+        // half open once the open time elapsed, a single trial write goes through
+        return System.nanoTime() - this.openUntilNanos >= 0 && this.trialInFlight.compareAndSet(false, true);
+    }
+
+    void onSuccess() {
+        this.consecutiveFailures.set(0);
+        this.open = false;
+        this.trialInFlight.set(false);
+    }
+
+    void onFailure() {
+        if (this.consecutiveFailures.incrementAndGet() >= this.failureThreshold || this.open) {
+            this.openUntilNanos = System.nanoTime() + this.openNanos;
+            this.open = true;
+            this.trialInFlight.set(false);
+        }
+    }
+
+    boolean isOpen() {
+        return this.open;
+    }
+}
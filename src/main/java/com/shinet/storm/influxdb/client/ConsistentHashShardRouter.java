@@ -0,0 +1,65 @@
+package com.shinet.storm.influxdb.client;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Routes series with a consistent hash ring, either on the measurement alone or on the measurement and tags.
+ * Adding or removing an endpoint only moves the series of the neighbouring ring segments.
+ */
+public class ConsistentHashShardRouter implements ShardRouter {
+    private static final int VIRTUAL_NODES = 160;
+
+    private final boolean includeTags;
+    private final long[] ringPositions;
+    private final int[] ringEndpoints;
+
+    public ConsistentHashShardRouter(List<String> endpoints, boolean includeTags) {
+        this.includeTags = includeTags;
+        long[][] ring = new long[endpoints.size() * VIRTUAL_NODES][];
+        for (int endpoint = 0; endpoint < endpoints.size(); endpoint++) {
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                long position = mix((endpoints.get(endpoint) + "#" + node).hashCode() * 0x9E3779B97F4A7C15L + node);
+                ring[endpoint * VIRTUAL_NODES + node] = new long[]{position, endpoint};
+            }
+        }
+        Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+        this.ringPositions = new long[ring.length];
+        this.ringEndpoints = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            this.ringPositions[i] = ring[i][0];
+            this.ringEndpoints[i] = (int) ring[i][1];
+        }
+    }
+
+    @Override
+    public int route(String measurement, Map<String, String> tags) {
+        long hash = mix(measurement.hashCode());
+        if (this.includeTags && tags != null) {
+            // order independent, the tags maps are not sorted
+            long tagsHash = 0;
+            for (Map.Entry<String, String> tag : tags.entrySet()) {
+                tagsHash += mix(((long) tag.getKey().hashCode() << 32) ^ (tag.getValue() == null ? 0 : tag.getValue().hashCode()));
+            }
+            hash = mix(hash ^ tagsHash);
+        }
+        int index = Arrays.binarySearch(this.ringPositions, hash);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return this.ringEndpoints[index == this.ringPositions.length ? 0 : index];
+    }
+
+    /**
+     * The murmur3 64 bit finalizer, spreading the bits of a hash.
+     */
+    static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
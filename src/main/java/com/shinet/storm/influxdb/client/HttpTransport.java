@@ -0,0 +1,69 @@
+package com.shinet.storm.influxdb.client;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP settings shared by the influxdb-java clients and the line protocol writers of an {@link InfluxdbClient}:
+ * timeouts, one connection pool for every endpoint, HTTP/2 and the gzip level and threshold.
+ * Thread safe.
+ */
+final class HttpTransport {
+    private final long connectTimeoutMillis;
+    private final long readTimeoutMillis;
+    private final long writeTimeoutMillis;
+    private final boolean http2;
+    private final boolean gzip;
+    private final int gzipLevel;
+    private final int gzipMinBytes;
+    private final ConnectionPool connectionPool;
+
+    HttpTransport(long connectTimeoutMillis, long readTimeoutMillis, long writeTimeoutMillis, int maxIdleConnections,
+                  long keepAliveMillis, boolean http2, boolean gzip, int gzipLevel, int gzipMinBytes) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+        this.http2 = http2;
+        this.gzip = gzip;
+        this.gzipLevel = gzipLevel;
+        this.gzipMinBytes = gzipMinBytes;
+        this.connectionPool = new ConnectionPool(maxIdleConnections, keepAliveMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Retrieve a new OkHttp builder sharing the connection pool, each client keeps its own dispatcher.
+     */
+    OkHttpClient.Builder newClientBuilder() {
+        return new OkHttpClient.Builder()
+                .connectTimeout(this.connectTimeoutMillis, TimeUnit.MILLISECONDS)
+                .readTimeout(this.readTimeoutMillis, TimeUnit.MILLISECONDS)
+                .writeTimeout(this.writeTimeoutMillis, TimeUnit.MILLISECONDS)
+                .connectionPool(this.connectionPool)
+                // HTTP/2 is negotiated with ALPN over https, plain http stays HTTP/1.1
+                .protocols(this.http2 ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1) : Collections.singletonList(Protocol.HTTP_1_1));
+    }
+
+    boolean isGzip() {
+        return this.gzip;
+    }
+
+    /**
+     * Tell whether a body of the given size is worth compressing.
+     */
+    boolean shouldCompress(int size) {
+        return this.gzip && size >= this.gzipMinBytes;
+    }
+
+    int getGzipLevel() {
+        return this.gzipLevel;
+    }
+
+    void close() {
+        this.connectionPool.evictAll();
+    }
+}
@@ -0,0 +1,77 @@
+package com.shinet.storm.influxdb.client;
+
+import java.util.Arrays;
+
+/**
+ * HyperLogLog sketch estimating the number of distinct hashes offered in 2^precision bytes, with a standard error
+ * of about 1.04 / sqrt(2^precision) and linear counting for small cardinalities. Not thread safe.
+ */
+final class HyperLogLog {
+    private final int precision;
+    private final byte[] registers;
+    private final double alphaMM;
+    private long estimate;
+    private boolean changed;
+
+    HyperLogLog(int precision) {
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+        int m = this.registers.length;
+        this.alphaMM = 0.7213 / (1 + 1.079 / m) * m * m;
+    }
+
+    /**
+     * @return true when the sketch changed, the estimate may then have grown
+     */
+    boolean offer(long hash) {
+        int index = (int) (hash >>> (64 - this.precision));
+        // the leading zeros of the remaining bits, capped by a sentinel bit
+        byte rank = (byte) (Long.numberOfLeadingZeros((hash << this.precision) | (1L << (this.precision - 1))) + 1);
+        if (rank > this.registers[index]) {
+            this.registers[index] = rank;
+            this.changed = true;
+            return true;
+        }
+        return false;
+    }
+
+    long estimate() {
+        if (!this.changed) {
+            return this.estimate;
+        }
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : this.registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double estimate = this.alphaMM / sum;
+        int m = this.registers.length;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log((double) m / zeros);
+        }
+        this.estimate = Math.round(estimate);
+        this.changed = false;
+        return this.estimate;
+    }
+
+    void clear() {
+        Arrays.fill(this.registers, (byte) 0);
+        this.estimate = 0;
+        this.changed = false;
+    }
+
+    /**
+     * 64 bit hash of a string, FNV-1a finished with the murmur3 mixer.
+     */
+    static long hash(String string) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < string.length(); i++) {
+            hash ^= string.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return ConsistentHashShardRouter.mix(hash);
+    }
+}
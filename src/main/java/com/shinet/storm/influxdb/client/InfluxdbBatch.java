@@ -0,0 +1,162 @@
+package com.shinet.storm.influxdb.client;
+
+import org.influxdb.dto.BatchPoints;
+import org.influxdb.dto.Point;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Points detached from an {@link InfluxdbClient} by {@link InfluxdbClient#takeBatch()}, ready to be sent
+ * from any thread with {@link InfluxdbClient#sendBatch(InfluxdbBatch)}.
+ * The batch holds one part per endpoint that received points.
+ */
+public final class InfluxdbBatch {
+    final List<Part> parts;
+
+    InfluxdbBatch(List<Part> parts) {
+        this.parts = parts;
+    }
+
+    /**
+     * Retrieve the number of parts, one per endpoint, database and retention policy, written independently
+     * by {@link InfluxdbClient#sendBatchAsync(InfluxdbBatch, PartListener)}.
+     */
+    public int getPartCount() {
+        return this.parts.size();
+    }
+
+    /**
+     * Retrieve the url of the endpoint a part is written to.
+     */
+    public String getPartEndpoint(int part) {
+        return this.parts.get(part).endpoint.getUrl();
+    }
+
+    /**
+     * Retrieve the encoded size of a part, 0 when its points are not encoded yet.
+     */
+    public int getPartBytes(int part) {
+        InfluxdbBatch.Part batchPart = this.parts.get(part);
+        return batchPart.lineProtocol != null ? batchPart.lineProtocol.size() : 0;
+    }
+
+    /**
+     * Retrieve the sorted sources of the points of a part, points without a source are left out.
+     * Only valid until the batch is sent, the parts are recycled once written.
+     */
+    public int[] getPartSources(int part) {
+        return this.parts.get(part).sources();
+    }
+
+    /**
+     * Retrieve the number of points in the batch.
+     * @return the number of points
+     */
+    public int size() {
+        int size = 0;
+        for (Part part : this.parts) {
+            size += part.size();
+        }
+        return size;
+    }
+
+    /**
+     * Callback of an asynchronous write, called once per part.
+     */
+    public interface PartListener {
+        /**
+         * @param error null when the part was written, an {@link InfluxdbPartialWriteException} when InfluxDB only
+         *              rejected some of its points
+         */
+        void partWritten(int part, RuntimeException error);
+    }
+
+    /**
+     * Points going to a single endpoint, either as influxdb-java points or as encoded line protocol.
+     * The part remembers the source index of each of its lines to report rejected points.
+     */
+    static final class Part {
+        final InfluxdbEndpoint endpoint;
+        final String database;
+        final String retentionPolicy;
+        final BatchPoints batchPoints;
+        final LineProtocolBuffer lineProtocol;
+        private int[] lineSources = new int[64];
+        private int lines;
+
+        Part(InfluxdbEndpoint endpoint, String database, String retentionPolicy, BatchPoints batchPoints) {
+            this.endpoint = endpoint;
+            this.database = database;
+            this.retentionPolicy = retentionPolicy;
+            this.batchPoints = batchPoints;
+            this.lineProtocol = null;
+        }
+
+        Part(InfluxdbEndpoint endpoint, String database, String retentionPolicy, LineProtocolBuffer lineProtocol) {
+            this.endpoint = endpoint;
+            this.database = database;
+            this.retentionPolicy = retentionPolicy;
+            this.batchPoints = null;
+            this.lineProtocol = lineProtocol;
+        }
+
+        int size() {
+            return this.lineProtocol != null ? this.lineProtocol.lineCount() : this.batchPoints.getPoints().size();
+        }
+
+        void add(Point point, int source) {
+            this.batchPoints.point(point);
+            this.lineAdded(source);
+        }
+
+        /**
+         * Record the source of the line just appended, -1 when the point has no source.
+         */
+        void lineAdded(int source) {
+            if (this.lines == this.lineSources.length) {
+                this.lineSources = Arrays.copyOf(this.lineSources, this.lines << 1);
+            }
+            this.lineSources[this.lines++] = source;
+        }
+
+        /**
+         * Split the part back into its lines, only used on the error path.
+         */
+        String[] lines() {
+            return this.lineProtocol != null
+                    ? PartialWriteErrors.lines(this.lineProtocol)
+                    : PartialWriteErrors.lines(this.batchPoints.lineProtocol());
+        }
+
+        int[] sources() {
+            int[] sources = new int[this.lines];
+            int count = 0;
+            for (int line = 0; line < this.lines; line++) {
+                if (this.lineSources[line] >= 0) {
+                    sources[count++] = this.lineSources[line];
+                }
+            }
+            sources = Arrays.copyOf(sources, count);
+            Arrays.sort(sources);
+            return sources;
+        }
+
+        /**
+         * Retrieve the sorted sources of the given lines, lines without a source are left out.
+         */
+        int[] sourcesOf(BitSet rejectedLines) {
+            int[] sources = new int[rejectedLines.cardinality()];
+            int count = 0;
+            for (int line = rejectedLines.nextSetBit(0); line >= 0 && line < this.lines; line = rejectedLines.nextSetBit(line + 1)) {
+                if (this.lineSources[line] >= 0) {
+                    sources[count++] = this.lineSources[line];
+                }
+            }
+            sources = Arrays.copyOf(sources, count);
+            Arrays.sort(sources);
+            return sources;
+        }
+    }
+}
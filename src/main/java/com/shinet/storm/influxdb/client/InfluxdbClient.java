@@ -2,17 +2,38 @@
 package com.shinet.storm.influxdb.client;
 
 import com.google.common.collect.Maps;
-import org.influxdb.InfluxDB;
+import com.shinet.storm.influxdb.UnsignedLong;
 import org.influxdb.InfluxDB.ConsistencyLevel;
-import org.influxdb.InfluxDBFactory;
+import org.influxdb.InfluxDBException;
 import org.influxdb.dto.BatchPoints;
+import org.influxdb.dto.Cancellable;
 import org.influxdb.dto.Point;
+import org.influxdb.dto.Query;
+import org.influxdb.dto.QueryResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.InterruptedIOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
 
 public class InfluxdbClient {
     private static final Logger LOG = LoggerFactory.getLogger(InfluxdbClient.class);
@@ -22,21 +43,116 @@ public class InfluxdbClient {
     public static final String KEY_INFLUXDB_DATABASE = "metrics.influxdb.database";
     public static final String KEY_INFLUXDB_MEASUREMENT_PREFIX = "metrics.influxdb.measurement.prefix";
     public static final String KEY_INFLUXDB_ENABLE_GZIP = "metrics.influxdb.enable.gzip";
+    public static final String KEY_INFLUXDB_GZIP_LEVEL = "metrics.influxdb.gzip.level";
+    public static final String KEY_INFLUXDB_GZIP_MIN_BYTES = "metrics.influxdb.gzip.min.bytes";
+    public static final String KEY_INFLUXDB_CONNECT_TIMEOUT_MS = "metrics.influxdb.connect.timeout.ms";
+    public static final String KEY_INFLUXDB_READ_TIMEOUT_MS = "metrics.influxdb.read.timeout.ms";
+    public static final String KEY_INFLUXDB_WRITE_TIMEOUT_MS = "metrics.influxdb.write.timeout.ms";
+    public static final String KEY_INFLUXDB_POOL_MAX_IDLE_CONNECTIONS = "metrics.influxdb.pool.max.idle.connections";
+    public static final String KEY_INFLUXDB_POOL_KEEP_ALIVE_MS = "metrics.influxdb.pool.keep.alive.ms";
+    public static final String KEY_INFLUXDB_HTTP2 = "metrics.influxdb.http2";
+    public static final String KEY_INFLUXDB_RETENTION_POLICY = "metrics.influxdb.retention.policy";
+    public static final String KEY_INFLUXDB_CONSISTENCY_LEVEL = "metrics.influxdb.consistency.level";
+    public static final String KEY_INFLUXDB_CARDINALITY_MAX_SERIES = "metrics.influxdb.cardinality.max.series";
+    public static final String KEY_INFLUXDB_CARDINALITY_MAX_TAG_VALUES = "metrics.influxdb.cardinality.max.tag.values";
+    public static final String KEY_INFLUXDB_CARDINALITY_ACTION = "metrics.influxdb.cardinality.action";
+    public static final String KEY_INFLUXDB_CARDINALITY_HASH_BUCKETS = "metrics.influxdb.cardinality.hash.buckets";
+    public static final String KEY_INFLUXDB_CARDINALITY_OVERFLOW_MEASUREMENT = "metrics.influxdb.cardinality.overflow.measurement";
+    public static final String KEY_INFLUXDB_SHARED_WRITER = "metrics.influxdb.shared.writer";
+    public static final String KEY_INFLUXDB_SHARED_WRITER_THREADS = "metrics.influxdb.shared.writer.threads";
+    public static final String KEY_INFLUXDB_SHARED_WRITER_MAX_REQUEST_BYTES = "metrics.influxdb.shared.writer.max.request.bytes";
+    public static final String KEY_INFLUXDB_LINE_PROTOCOL = "metrics.influxdb.line.protocol";
+    public static final String KEY_INFLUXDB_TYPED_VALUES = "metrics.influxdb.typed.values";
+    public static final String KEY_INFLUXDB_UDP_DATAGRAM_BYTES = "metrics.influxdb.udp.datagram.bytes";
+    public static final String KEY_INFLUXDB_RETRY_MAX_ATTEMPTS = "metrics.influxdb.retry.max.attempts";
+    public static final String KEY_INFLUXDB_RETRY_INITIAL_BACKOFF_MS = "metrics.influxdb.retry.initial.backoff.ms";
+    public static final String KEY_INFLUXDB_RETRY_MAX_BACKOFF_MS = "metrics.influxdb.retry.max.backoff.ms";
+    public static final String KEY_INFLUXDB_RETRY_MAX_TIME_MS = "metrics.influxdb.retry.max.time.ms";
+    public static final String KEY_INFLUXDB_CIRCUIT_FAILURE_THRESHOLD = "metrics.influxdb.circuit.failure.threshold";
+    public static final String KEY_INFLUXDB_CIRCUIT_OPEN_MS = "metrics.influxdb.circuit.open.ms";
+    public static final String KEY_INFLUXDB_SPOOL_DIRECTORY = "metrics.influxdb.spool.directory";
+    public static final String KEY_INFLUXDB_SPOOL_MAX_BYTES = "metrics.influxdb.spool.max.bytes";
+    public static final String KEY_INFLUXDB_SPOOL_SEGMENT_BYTES = "metrics.influxdb.spool.segment.bytes";
+    public static final String KEY_INFLUXDB_SPOOL_DRAIN_INTERVAL_SECS = "metrics.influxdb.spool.drain.interval.secs";
+    public static final String KEY_INFLUXDB_SERIES_CACHE_SIZE = "metrics.influxdb.series.cache.size";
+    public static final String KEY_INFLUXDB_ROUTING = "metrics.influxdb.routing";
+    public static final String KEY_INFLUXDB_ROUTING_PREFIXES = "metrics.influxdb.routing.prefixes";
+    public static final String KEY_INFLUXDB_WRITER_THREADS = "metrics.influxdb.writer.threads";
+    public static final String ROUTING_MEASUREMENT = "measurement";
+    public static final String ROUTING_SERIES = "series";
     public static final String DEFAULT_INFLUXDB_URL = "http://localhost:8086";
     public static final String DEFAULT_INFLUXDB_USERNAME = "";
     public static final String DEFAULT_INFLUXDB_PASSWORD = "";
     public static final String DEFAULT_INFLUXDB_DATABASE = "apache-storm-metrics";
     public static final String DEFAULT_INFLUXDB_MEASUREMENT_PREFIX = "storm-";
     public static final Boolean DEFAULT_INFLUXDB_ENABLE_GZIP = true;
-    private InfluxDB influxDB;
-    private BatchPoints batchPoints;
+    public static final Integer DEFAULT_INFLUXDB_GZIP_LEVEL = Deflater.DEFAULT_COMPRESSION;
+    public static final Integer DEFAULT_INFLUXDB_GZIP_MIN_BYTES = 0;
+    public static final Long DEFAULT_INFLUXDB_CONNECT_TIMEOUT_MS = 10000L;
+    public static final Long DEFAULT_INFLUXDB_READ_TIMEOUT_MS = 10000L;
+    public static final Long DEFAULT_INFLUXDB_WRITE_TIMEOUT_MS = 10000L;
+    public static final Integer DEFAULT_INFLUXDB_POOL_MAX_IDLE_CONNECTIONS = 5;
+    public static final Long DEFAULT_INFLUXDB_POOL_KEEP_ALIVE_MS = 5L * 60 * 1000;
+    public static final Boolean DEFAULT_INFLUXDB_HTTP2 = false;
+    public static final String DEFAULT_INFLUXDB_CONSISTENCY_LEVEL = ConsistencyLevel.ALL.name();
+    public static final Long DEFAULT_INFLUXDB_CARDINALITY_MAX_SERIES = 0L;
+    public static final Long DEFAULT_INFLUXDB_CARDINALITY_MAX_TAG_VALUES = 0L;
+    public static final String DEFAULT_INFLUXDB_CARDINALITY_ACTION = CardinalityAction.DROP_TAG.name();
+    public static final Integer DEFAULT_INFLUXDB_CARDINALITY_HASH_BUCKETS = 100;
+    public static final String DEFAULT_INFLUXDB_CARDINALITY_OVERFLOW_MEASUREMENT = "cardinality_overflow";
+    public static final Boolean DEFAULT_INFLUXDB_SHARED_WRITER = false;
+    public static final Integer DEFAULT_INFLUXDB_SHARED_WRITER_THREADS = 2;
+    public static final Long DEFAULT_INFLUXDB_SHARED_WRITER_MAX_REQUEST_BYTES = 8L * 1024 * 1024;
+    public static final Boolean DEFAULT_INFLUXDB_LINE_PROTOCOL = false;
+    public static final Boolean DEFAULT_INFLUXDB_TYPED_VALUES = false;
+    public static final Integer DEFAULT_INFLUXDB_UDP_DATAGRAM_BYTES = 1400;
+    public static final Integer DEFAULT_INFLUXDB_RETRY_MAX_ATTEMPTS = 1;
+    public static final Long DEFAULT_INFLUXDB_RETRY_INITIAL_BACKOFF_MS = 100L;
+    public static final Long DEFAULT_INFLUXDB_RETRY_MAX_BACKOFF_MS = 10000L;
+    public static final Long DEFAULT_INFLUXDB_RETRY_MAX_TIME_MS = 30000L;
+    public static final Integer DEFAULT_INFLUXDB_CIRCUIT_FAILURE_THRESHOLD = 0;
+    public static final Long DEFAULT_INFLUXDB_CIRCUIT_OPEN_MS = 30000L;
+    public static final String DEFAULT_INFLUXDB_SPOOL_DIRECTORY = null;
+    public static final Long DEFAULT_INFLUXDB_SPOOL_MAX_BYTES = 1024L * 1024 * 1024;
+    public static final Long DEFAULT_INFLUXDB_SPOOL_SEGMENT_BYTES = 64L * 1024 * 1024;
+    public static final Integer DEFAULT_INFLUXDB_SPOOL_DRAIN_INTERVAL_SECS = 10;
+    public static final Integer DEFAULT_INFLUXDB_SERIES_CACHE_SIZE = LineProtocolEncoder.DEFAULT_MAX_CACHED_SERIES;
+    public static final String DEFAULT_INFLUXDB_ROUTING = ROUTING_MEASUREMENT;
+    public static final Integer DEFAULT_INFLUXDB_WRITER_THREADS = 4;
+    public static final String DEFAULT_RETENTION_POLICY = "autogen";
+    private InfluxdbEndpoint[] endpoints;
+    private InfluxdbBatch.Part[] pendingParts;
+    // the pending parts of the points with their own database or retention policy, by database and retention policy
+    private final Map<String, Map<String, InfluxdbBatch.Part[]>> routedParts = new HashMap<>();
+    private ShardRouter shardRouter;
+    private int influxdbWriterThreads;
     private String influxdbUrl;
     private String influxdbUsername;
     private String influxdbPassword;
     private String influxdbDatabase;
     private String influxdbMeasurementPrefix;
+    private String influxdbRetentionPolicy;
+    private ConsistencyLevel influxdbConsistencyLevel;
     private Boolean influxdbEnableGzip;
-    private boolean databaseWasCreated = false;
+    private HttpTransport httpTransport;
+    private Boolean influxdbLineProtocol;
+    private Boolean influxdbTypedValues;
+    private int influxdbUdpDatagramBytes;
+    private RetryPolicy retryPolicy;
+    private int influxdbCircuitFailureThreshold;
+    private long influxdbCircuitOpenMs;
+    private String influxdbRouting;
+    private Map<String, String> influxdbRoutingPrefixes;
+    private LineProtocolEncoder lineProtocolEncoder;
+    private final Queue<LineProtocolBuffer> idleLineProtocolBuffers = new ConcurrentLinkedQueue<>();
+    private InfluxdbClientMetrics metrics = new InfluxdbClientMetrics();
+    private SharedInfluxdbWriter sharedWriter;
+    private CardinalityGuard cardinalityGuard;
+    private String influxdbSpoolDirectory;
+    private long influxdbSpoolMaxBytes;
+    private long influxdbSpoolSegmentBytes;
+    private int influxdbSpoolDrainIntervalSecs;
+    private int influxdbSeriesCacheSize;
 
     public InfluxdbClient(Map<Object, Object> config) {
         LOG.debug("{}: config = {}", this.getClass().getSimpleName(), config.toString());
@@ -44,9 +160,57 @@ public class InfluxdbClient {
         this.influxdbUsername = (String)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_USERNAME, DEFAULT_INFLUXDB_USERNAME);
         this.influxdbPassword = (String)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_PASSWORD, DEFAULT_INFLUXDB_PASSWORD);
         this.influxdbDatabase = (String)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_DATABASE, DEFAULT_INFLUXDB_DATABASE);
+        this.influxdbRetentionPolicy = (String)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_RETENTION_POLICY, DEFAULT_RETENTION_POLICY);
+        this.influxdbConsistencyLevel = ConsistencyLevel.valueOf((String)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_CONSISTENCY_LEVEL, DEFAULT_INFLUXDB_CONSISTENCY_LEVEL));
         this.influxdbMeasurementPrefix = (String)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_MEASUREMENT_PREFIX, DEFAULT_INFLUXDB_MEASUREMENT_PREFIX);
         this.influxdbEnableGzip = (Boolean)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_ENABLE_GZIP, DEFAULT_INFLUXDB_ENABLE_GZIP);
+        this.influxdbLineProtocol = (Boolean)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_LINE_PROTOCOL, DEFAULT_INFLUXDB_LINE_PROTOCOL);
+        this.influxdbTypedValues = (Boolean)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_TYPED_VALUES, DEFAULT_INFLUXDB_TYPED_VALUES);
+        this.influxdbUdpDatagramBytes = ((Number)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_UDP_DATAGRAM_BYTES, DEFAULT_INFLUXDB_UDP_DATAGRAM_BYTES)).intValue();
+        this.retryPolicy = new RetryPolicy(
+                ((Number)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_RETRY_MAX_ATTEMPTS, DEFAULT_INFLUXDB_RETRY_MAX_ATTEMPTS)).intValue(),
+                ((Number)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_RETRY_INITIAL_BACKOFF_MS, DEFAULT_INFLUXDB_RETRY_INITIAL_BACKOFF_MS)).longValue(),
+                ((Number)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_RETRY_MAX_BACKOFF_MS, DEFAULT_INFLUXDB_RETRY_MAX_BACKOFF_MS)).longValue(),
+                ((Number)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_RETRY_MAX_TIME_MS, DEFAULT_INFLUXDB_RETRY_MAX_TIME_MS)).longValue());
+        this.influxdbCircuitFailureThreshold = ((Number)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_CIRCUIT_FAILURE_THRESHOLD, DEFAULT_INFLUXDB_CIRCUIT_FAILURE_THRESHOLD)).intValue();
+        this.influxdbCircuitOpenMs = ((Number)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_CIRCUIT_OPEN_MS, DEFAULT_INFLUXDB_CIRCUIT_OPEN_MS)).longValue();
+        this.influxdbSpoolDirectory = (String)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_SPOOL_DIRECTORY, DEFAULT_INFLUXDB_SPOOL_DIRECTORY);
+        this.influxdbSpoolMaxBytes = ((Number)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_SPOOL_MAX_BYTES, DEFAULT_INFLUXDB_SPOOL_MAX_BYTES)).longValue();
+        this.influxdbSpoolSegmentBytes = ((Number)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_SPOOL_SEGMENT_BYTES, DEFAULT_INFLUXDB_SPOOL_SEGMENT_BYTES)).longValue();
+        this.influxdbSpoolDrainIntervalSecs = ((Number)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_SPOOL_DRAIN_INTERVAL_SECS, DEFAULT_INFLUXDB_SPOOL_DRAIN_INTERVAL_SECS)).intValue();
+        this.influxdbSeriesCacheSize = ((Number)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_SERIES_CACHE_SIZE, DEFAULT_INFLUXDB_SERIES_CACHE_SIZE)).intValue();
+        this.influxdbRouting = (String)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_ROUTING, DEFAULT_INFLUXDB_ROUTING);
+        this.influxdbRoutingPrefixes = (Map<String, String>)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_ROUTING_PREFIXES, Collections.emptyMap());
+        this.influxdbWriterThreads = ((Number)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_WRITER_THREADS, DEFAULT_INFLUXDB_WRITER_THREADS)).intValue();
+        if ((Boolean)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_SHARED_WRITER, DEFAULT_INFLUXDB_SHARED_WRITER)) {
+            this.sharedWriter = SharedInfluxdbWriter.acquire(config,
+                    ((Number)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_SHARED_WRITER_THREADS, DEFAULT_INFLUXDB_SHARED_WRITER_THREADS)).intValue(),
+                    ((Number)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_SHARED_WRITER_MAX_REQUEST_BYTES, DEFAULT_INFLUXDB_SHARED_WRITER_MAX_REQUEST_BYTES)).longValue());
+            // the points are encoded here and coalesced by the shared writer, on its own connections
+            this.influxdbLineProtocol = true;
+        } else {
+            this.httpTransport = new HttpTransport(
+                    ((Number)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_CONNECT_TIMEOUT_MS, DEFAULT_INFLUXDB_CONNECT_TIMEOUT_MS)).longValue(),
+                    ((Number)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_READ_TIMEOUT_MS, DEFAULT_INFLUXDB_READ_TIMEOUT_MS)).longValue(),
+                    ((Number)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_WRITE_TIMEOUT_MS, DEFAULT_INFLUXDB_WRITE_TIMEOUT_MS)).longValue(),
+                    ((Number)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_POOL_MAX_IDLE_CONNECTIONS, DEFAULT_INFLUXDB_POOL_MAX_IDLE_CONNECTIONS)).intValue(),
+                    ((Number)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_POOL_KEEP_ALIVE_MS, DEFAULT_INFLUXDB_POOL_KEEP_ALIVE_MS)).longValue(),
+                    (Boolean)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_HTTP2, DEFAULT_INFLUXDB_HTTP2),
+                    this.influxdbEnableGzip,
+                    ((Number)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_GZIP_LEVEL, DEFAULT_INFLUXDB_GZIP_LEVEL)).intValue(),
+                    ((Number)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_GZIP_MIN_BYTES, DEFAULT_INFLUXDB_GZIP_MIN_BYTES)).intValue());
+        }
+        long cardinalityMaxSeries = ((Number)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_CARDINALITY_MAX_SERIES, DEFAULT_INFLUXDB_CARDINALITY_MAX_SERIES)).longValue();
+        long cardinalityMaxTagValues = ((Number)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_CARDINALITY_MAX_TAG_VALUES, DEFAULT_INFLUXDB_CARDINALITY_MAX_TAG_VALUES)).longValue();
+        if (cardinalityMaxSeries > 0 || cardinalityMaxTagValues > 0) {
+            this.cardinalityGuard = new CardinalityGuard(cardinalityMaxSeries, cardinalityMaxTagValues,
+                    CardinalityAction.valueOf((String)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_CARDINALITY_ACTION, DEFAULT_INFLUXDB_CARDINALITY_ACTION)),
+                    ((Number)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_CARDINALITY_HASH_BUCKETS, DEFAULT_INFLUXDB_CARDINALITY_HASH_BUCKETS)).intValue(),
+                    (String)this.getKeyValueOrDefaultValue(config, KEY_INFLUXDB_CARDINALITY_OVERFLOW_MEASUREMENT, DEFAULT_INFLUXDB_CARDINALITY_OVERFLOW_MEASUREMENT),
+                    this.metrics);
+        }
         this.prepareConnection();
+        this.prepareSpool();
     }
 
     private Object getKeyValueOrDefaultValue(Map<Object, Object> objects, String key, Object defaultValue) {
@@ -58,129 +222,593 @@ public class InfluxdbClient {
         }
     }
 
+    /**
+     * Connect to every endpoint, the url may hold several comma separated endpoints.
+     * UDP endpoints (udp://host:port) are only written with the line protocol encoder.
+     * With a shared writer the endpoints are the shared writer's.
+     */
     public void prepareConnection() {
-        if (influxDB == null) {
-            LOG.debug("{}: Preparing connection to InfluxDB: [ url='{}', username='{}', password='{}' ]",
-                    this.getClass().getSimpleName(),
-                    this.influxdbUrl,
-                    this.influxdbUsername,
-                    this.influxdbPassword
-            );
-
-            if (this.influxdbUsername.isEmpty() && this.influxdbPassword.isEmpty()) {
-                this.influxDB = InfluxDBFactory.connect(this.influxdbUrl);
-            } else {
-                this.influxDB = InfluxDBFactory.connect(this.influxdbUrl, this.influxdbUsername, this.influxdbPassword);
+        if (this.endpoints == null) {
+            List<String> urls = this.getEndpointUrls();
+            for (String url : urls) {
+                if (LineProtocolUdpWriter.isUdp(url) && !this.influxdbLineProtocol) {
+                    LOG.info("{}: Enabling the line protocol encoder for UDP endpoint {}", this.getClass().getSimpleName(), url);
+                    this.influxdbLineProtocol = true;
+                }
+            }
+            this.endpoints = this.sharedWriter != null ? this.sharedWriter.getEndpoints() : new InfluxdbEndpoint[urls.size()];
+            for (int i = 0; i < urls.size() && this.sharedWriter == null; i++) {
+                this.endpoints[i] = new InfluxdbEndpoint(urls.get(i), this.influxdbUsername, this.influxdbPassword,
+                        this.httpTransport, this.influxdbConsistencyLevel, this.influxdbLineProtocol, this.influxdbUdpDatagramBytes);
+                if (this.influxdbCircuitFailureThreshold > 0) {
+                    this.endpoints[i].enableCircuitBreaker(this.influxdbCircuitFailureThreshold, this.influxdbCircuitOpenMs);
+                }
+                this.endpoints[i].startWriters(this.influxdbWriterThreads, i + 1);
             }
+            this.pendingParts = new InfluxdbBatch.Part[this.endpoints.length];
 
-            // additional connections options
-            if (this.influxdbEnableGzip) {
-                this.influxDB.enableGzip();
+            if (this.influxdbLineProtocol) {
+                this.lineProtocolEncoder = new LineProtocolEncoder(this.influxdbMeasurementPrefix, this.influxdbSeriesCacheSize, this.metrics)
+                        .withTypedValues(this.influxdbTypedValues);
+            }
+            if (this.endpoints.length > 1) {
+                this.shardRouter = this.prepareShardRouter(urls);
             }
         } else {
-            LOG.debug("{}: InfluxDB connection was available: [ url='{}', username='{}', password='{}' ]",
-                    this.getClass().getSimpleName(),
-                    this.influxdbUrl,
-                    this.influxdbUsername,
-                    this.influxdbPassword
-            );
+            LOG.debug("{}: InfluxDB connection was available: [ url='{}', username='{}' ]",
+                    new Object[]{this.getClass().getSimpleName(), this.influxdbUrl, this.influxdbUsername});
         }
     }
 
-    /**
-     * Create the database if not exist
-     */
-    void createDatabaseIfNotExists() {
-        if (!this.databaseWasCreated) {
+    private List<String> getEndpointUrls() {
+        List<String> urls = new ArrayList<>();
+        for (String url : this.influxdbUrl.split(",")) {
+            if (!url.trim().isEmpty()) {
+                urls.add(url.trim());
+            }
+        }
+        return urls;
+    }
 
-            LOG.debug("{}: Creating database with name = {}", this.getClass().getSimpleName(), this.influxdbDatabase);
+    private ShardRouter prepareShardRouter(List<String> urls) {
+        ShardRouter router = new ConsistentHashShardRouter(urls, ROUTING_SERIES.equals(this.influxdbRouting));
+        if (!this.influxdbRoutingPrefixes.isEmpty()) {
+            router = new MeasurementPrefixShardRouter(urls, this.influxdbRoutingPrefixes, router);
+        }
+        return router;
+    }
 
-            this.influxDB.createDatabase(this.influxdbDatabase);
-            this.databaseWasCreated = true;
+    /**
+     * Open the spool for failed batches when a spool directory is configured, one spool per endpoint
+     */
+    void prepareSpool() {
+        if (this.influxdbSpoolDirectory == null || this.sharedWriter != null) {
+            return;
+        }
+        for (InfluxdbEndpoint endpoint : this.endpoints) {
+            File directory = new File(this.influxdbSpoolDirectory);
+            if (this.endpoints.length > 1) {
+                directory = new File(directory, endpoint.getUrl().replaceAll("[^A-Za-z0-9.-]", "_"));
+            }
+            endpoint.openSpool(directory, this.influxdbSpoolMaxBytes, this.influxdbSpoolSegmentBytes, this.influxdbSpoolDrainIntervalSecs, this.metrics);
         }
     }
 
     /**
      * Create a BatchPoints
      */
-    void prepareBatchPoints() {
-        this.batchPoints = BatchPoints
-                .database(this.influxdbDatabase)
-                .retentionPolicy("autogen")
-                .consistency(InfluxDB.ConsistencyLevel.ALL)
+    BatchPoints prepareBatchPoints(String database, String retentionPolicy) {
+        return BatchPoints
+                .database(database)
+                .retentionPolicy(retentionPolicy)
+                .consistency(this.influxdbConsistencyLevel)
                 .build();
     }
 
+    /**
+     * Retrieve the pending part of the endpoint, database and retention policy the data point is routed to
+     */
+    private InfluxdbBatch.Part preparePart(String database, String retentionPolicy, String name, Map<String, String> tags) {
+        int shard = this.shardRouter == null ? 0 : this.shardRouter.route(name, tags);
+        InfluxdbBatch.Part[] parts = this.pendingParts;
+        if (database == null) {
+            database = this.influxdbDatabase;
+        }
+        if (retentionPolicy == null) {
+            retentionPolicy = this.influxdbRetentionPolicy;
+        }
+        if (!database.equals(this.influxdbDatabase) || !retentionPolicy.equals(this.influxdbRetentionPolicy)) {
+            Map<String, InfluxdbBatch.Part[]> retentionPolicyParts = this.routedParts.get(database);
+            if (retentionPolicyParts == null) {
+                retentionPolicyParts = new HashMap<>();
+                this.routedParts.put(database, retentionPolicyParts);
+            }
+            parts = retentionPolicyParts.get(retentionPolicy);
+            if (parts == null) {
+                parts = new InfluxdbBatch.Part[this.endpoints.length];
+                retentionPolicyParts.put(retentionPolicy, parts);
+            }
+        }
+        InfluxdbBatch.Part part = parts[shard];
+        if (part == null) {
+            if (this.lineProtocolEncoder != null) {
+                LineProtocolBuffer idleBuffer = this.idleLineProtocolBuffers.poll();
+                part = new InfluxdbBatch.Part(this.endpoints[shard], database, retentionPolicy,
+                        idleBuffer != null ? idleBuffer : new LineProtocolBuffer());
+            } else {
+                part = new InfluxdbBatch.Part(this.endpoints[shard], database, retentionPolicy,
+                        this.prepareBatchPoints(database, retentionPolicy));
+            }
+            parts[shard] = part;
+        }
+        return part;
+    }
+
     public void prepareDataPoint(String name,Map<String, String> tags,Map<String, Object> fields, Object value,long time) {
-        if (this.batchPoints == null) {
-            this.prepareBatchPoints();
+        this.prepareDataPoint(name, tags, fields, value, time, -1);
+    }
+
+    /**
+     * Prepare a data point, source is an index chosen by the caller and reported back by
+     * {@link InfluxdbPartialWriteException} when InfluxDB rejects the point.
+     */
+    public void prepareDataPoint(String name,Map<String, String> tags,Map<String, Object> fields, Object value,long time, int source) {
+        this.prepareDataPoint(null, null, name, tags, fields, value, time, source);
+    }
+
+    /**
+     * Prepare a data point for a database and retention policy, null for the client's. The points of each database
+     * and retention policy are written in their own request.
+     */
+    public void prepareDataPoint(String database, String retentionPolicy, String name, Map<String, String> tags, Map<String, Object> fields,
+                                 Object value, long time, int source) {
+        if (this.cardinalityGuard != null) {
+            CardinalityGuard.Series series = this.cardinalityGuard.guard(name, tags);
+            name = series.measurement;
+            tags = series.tags;
+        }
+        InfluxdbBatch.Part part = this.preparePart(database, retentionPolicy, name, tags);
+        if (this.lineProtocolEncoder != null) {
+            if (this.prepareLineProtocol(part.lineProtocol, name, tags, fields, value, time)) {
+                part.lineAdded(source);
+            }
+            return;
         }
 
         String measurement = this.influxdbMeasurementPrefix + name;
         if (LOG.isDebugEnabled()) {
-            LOG.debug("{}: DataPoint name={} has value type={}", new Object[]{this.getClass().getSimpleName(), name, value.getClass().getName()});
+            LOG.debug("{}: DataPoint name={} has value type={}", new Object[]{this.getClass().getSimpleName(), name,
+                    value == null ? null : value.getClass().getName()});
         }
 
-        Point point;
+        if (value instanceof UnsignedLong || hasUnsignedField(fields)) {
+            // influxdb-java only writes signed integers, the same series would change field type with the encoder
+            this.metrics.discardedUnsupportedType();
+            LOG.warn("{}: Discarding dataPoint: {}, unsigned values need the line protocol encoder",
+                    this.getClass().getSimpleName(), measurement);
+            return;
+        }
+
+        Point.Builder point = Point.measurement(measurement);
         if (value instanceof String) {
-            point = Point.measurement(measurement).addField("value", (String)value).fields(fields).tag(tags).time(time, TimeUnit.NANOSECONDS).build();
-            this.batchPoints.point(point);
-        }else if (value instanceof Number) {
-            if (!Float.valueOf(((Number)value).floatValue()).isNaN() && !Float.valueOf(((Number)value).floatValue()).isInfinite()) {
-                point = Point.measurement(measurement).addField("value", (double)((Number)value).floatValue()).fields(fields).tag(tags).time(time, TimeUnit.NANOSECONDS).build();
-                this.batchPoints.point(point);
-            } else {
-                LOG.warn("{}: Discarding dataPoint: {}, value is null", this.getClass().getSimpleName(), measurement);
+            point.addField("value", (String)value);
+        } else if (value instanceof Boolean) {
+            point.addField("value", (Boolean)value);
+        } else if (value instanceof Double || value instanceof Float || value instanceof BigDecimal
+                || (value instanceof Number && !this.influxdbTypedValues)) {
+            double doubleValue = ((Number)value).doubleValue();
+            if (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue)) {
+                this.metrics.discardedNonFinite();
+                LOG.warn("{}: Discarding dataPoint: {}, value is not finite", this.getClass().getSimpleName(), measurement);
+                return;
             }
-        } else if (value instanceof Float) {
-            if (!((Float)value).isNaN() && !((Float)value).isInfinite()) {
-                point = Point.measurement(measurement).addField("value", (Float)value).fields(fields).tag(tags).time(time, TimeUnit.NANOSECONDS).build();
-                this.batchPoints.point(point);
-            } else {
-                LOG.warn("{}: Discarding dataPoint: {}, value is null", this.getClass().getSimpleName(), measurement);
+            point.addField("value", doubleValue);
+        } else if (value instanceof Number) {
+            point.addField("value", ((Number)value).longValue());
+        } else if (value == null && fields != null && !fields.isEmpty()) {
+            // a point with several fields and no value
+        } else if (value == null) {
+            this.metrics.discardedNull();
+            LOG.warn("{}: Discarding dataPoint: {}, value is null", this.getClass().getSimpleName(), measurement);
+            return;
+        } else {
+            this.metrics.discardedUnsupportedType();
+            LOG.warn("{}: Unable to parse the Java type of 'value' : [type:'{}' value:'{}' time:'{}']", new Object[]{this.getClass().getSimpleName(), name, value.getClass().getSimpleName(),time});
+            return;
+        }
+        if (fields != null) {
+            point.fields(fields);
+        }
+        part.add(point.tag(tags).time(time, TimeUnit.NANOSECONDS).build(), source);
+    }
+
+    private static boolean hasUnsignedField(Map<String, Object> fields) {
+        if (fields != null) {
+            for (Object field : fields.values()) {
+                if (field instanceof UnsignedLong) {
+                    return true;
+                }
             }
-        } else if (value instanceof Integer) {
-            point = Point.measurement(measurement).addField("value", (Integer)value).fields(fields).tag(tags).time(time, TimeUnit.NANOSECONDS).build();
-            this.batchPoints.point(point);
-        } else if (value instanceof Boolean) {
-            point = Point.measurement(measurement).addField("value", (Boolean)value).fields(fields).tag(tags).time(time, TimeUnit.NANOSECONDS).build();
-            this.batchPoints.point(point);
-        } else if (value instanceof Long) {
-            if (!Float.valueOf(((Long)value).floatValue()).isNaN() && !Float.valueOf(((Long)value).floatValue()).isInfinite()) {
-                point = Point.measurement(measurement).addField("value", (double)((Long)value).floatValue()).fields(fields).tag(tags).time(time, TimeUnit.NANOSECONDS).build();
-                this.batchPoints.point(point);
+        }
+        return false;
+    }
+
+    /**
+     * Encode the data point straight into the pending line protocol buffer
+     */
+    private boolean prepareLineProtocol(LineProtocolBuffer lineProtocolBuffer, String name, Map<String, String> tags, Map<String, Object> fields, Object value, long time) {
+        if (!this.lineProtocolEncoder.encode(lineProtocolBuffer, name, tags, fields, value, time)) {
+            if (value instanceof Number) {
+                this.metrics.discardedNonFinite();
+            } else if (value == null) {
+                this.metrics.discardedNull();
             } else {
-                LOG.warn("{}: Discarding dataPoint: {}, value is null", this.getClass().getSimpleName(), measurement);
+                this.metrics.discardedUnsupportedType();
             }
-        } else if (value instanceof Double) {
-            if (!Float.valueOf(((Double)value).floatValue()).isNaN() && !Float.valueOf(((Double)value).floatValue()).isInfinite()) {
-                point = Point.measurement(measurement).addField("value", (double)((Double)value).floatValue()).fields(fields).tag(tags).time(time, TimeUnit.NANOSECONDS).build();
-                this.batchPoints.point(point);
-            } else {
-                LOG.warn("{}: Discarding dataPoint: {}, value is null", this.getClass().getSimpleName(), measurement);
+            LOG.warn("{}: Discarding dataPoint: {}, value '{}' is not a finite Number/String/Boolean",
+                    new Object[]{this.getClass().getSimpleName(), this.influxdbMeasurementPrefix + name, value});
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Retrieve the encoded size of the points prepared so far, only known with the line protocol encoder.
+     * @return the size in bytes, -1 when the points are not encoded until sent
+     */
+    public long getPendingBytes() {
+        if (this.lineProtocolEncoder == null) {
+            return -1;
+        }
+        long pendingBytes = getPendingBytes(this.pendingParts);
+        if (!this.routedParts.isEmpty()) {
+            for (Map<String, InfluxdbBatch.Part[]> retentionPolicyParts : this.routedParts.values()) {
+                for (InfluxdbBatch.Part[] parts : retentionPolicyParts.values()) {
+                    pendingBytes += getPendingBytes(parts);
+                }
             }
-        }  else {
-            LOG.warn("{}: Unable to parse the Java type of 'value' : [type:'{}' value:'{}' time:'{}']", new Object[]{this.getClass().getSimpleName(), name, value.getClass().getSimpleName(),time});
         }
+        return pendingBytes;
+    }
 
+    private static long getPendingBytes(InfluxdbBatch.Part[] parts) {
+        long pendingBytes = 0;
+        for (InfluxdbBatch.Part part : parts) {
+            if (part != null) {
+                pendingBytes += part.lineProtocol.size();
+            }
+        }
+        return pendingBytes;
     }
+
+    /**
+     * Retrieve the number of InfluxDB nodes the points are sharded over.
+     */
+    public int getEndpointCount() {
+        return this.endpoints.length;
+    }
+
+    InfluxdbEndpoint[] getEndpoints() {
+        return this.endpoints;
+    }
+
+    /**
+     * Retrieve the write path metrics of this client, to be registered as a Storm metric.
+     * With a shared writer the writes are those of the points of this client, the latency the one of the coalesced request.
+     */
+    public InfluxdbClientMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Retrieve the metrics of the coalesced requests of the shared writer, to be registered once per worker:
+     * only the first client of the writer gets them.
+     * @return null without a shared writer or when another client of the worker already took them
+     */
+    public InfluxdbClientMetrics takeSharedWriterMetrics() {
+        return this.sharedWriter != null ? this.sharedWriter.takeMetrics() : null;
+    }
+
+    /**
+     * Detach the points prepared so far, the next prepared point starts a new batch
+     * @return the prepared points or null when there are none
+     */
+    public InfluxdbBatch takeBatch() {
+        List<InfluxdbBatch.Part> parts = takeParts(this.pendingParts, null);
+        if (!this.routedParts.isEmpty()) {
+            for (Map<String, InfluxdbBatch.Part[]> retentionPolicyParts : this.routedParts.values()) {
+                for (InfluxdbBatch.Part[] routedParts : retentionPolicyParts.values()) {
+                    parts = takeParts(routedParts, parts);
+                }
+            }
+        }
+        return parts == null ? null : new InfluxdbBatch(parts);
+    }
+
+    private static List<InfluxdbBatch.Part> takeParts(InfluxdbBatch.Part[] pendingParts, List<InfluxdbBatch.Part> parts) {
+        for (int i = 0; i < pendingParts.length; i++) {
+            if (pendingParts[i] != null) {
+                if (parts == null) {
+                    parts = new ArrayList<>(pendingParts.length);
+                }
+                parts.add(pendingParts[i]);
+                pendingParts[i] = null;
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * Drop the points prepared so far without sending them
+     */
+    public void discardPoints() {
+        InfluxdbBatch batch = this.takeBatch();
+        if (batch != null) {
+            for (InfluxdbBatch.Part part : batch.parts) {
+                this.recycle(part);
+            }
+        }
+    }
+
     /**
      * Send Points to InfluxDB server
      */
 
     public void sendPoints() {
+        this.sendBatch(this.takeBatch());
+    }
 
-        this.createDatabaseIfNotExists();
+    /**
+     * Send a detached batch to InfluxDB server, may be called from a writer thread.
+     * The parts of a batch are written in parallel on the writer threads of their endpoint, one per endpoint, database
+     * and retention policy, and the call returns once they are all written.
+     * @throws InfluxdbPartialWriteException when InfluxDB only rejected some of the points
+     */
+    public void sendBatch(InfluxdbBatch batch) {
 
-        if (this.batchPoints != null) {
+        if (batch == null) {
+            LOG.warn("No points values to send");
+            return;
+        }
+        if (this.sharedWriter == null && batch.parts.size() == 1) {
+            this.sendPart(batch.parts.get(0));
+            return;
+        }
+        BatchWrite write = new BatchWrite(batch.parts.size());
+        this.sendBatchAsync(batch, write);
+        write.await();
+    }
 
-            LOG.debug("{}: Sending points to database = {}", this.getClass().getSimpleName(), this.influxdbDatabase);
+    /**
+     * Send a detached batch without waiting for the write. Each part is written on the writer threads of its
+     * endpoint, so a slow endpoint only delays its own parts; with a shared writer the parts are coalesced with the
+     * batches of the other clients. The listener is called once per part, on the thread which wrote it.
+     */
+    public void sendBatchAsync(InfluxdbBatch batch, InfluxdbBatch.PartListener listener) {
+        if (this.sharedWriter != null) {
+            this.sharedWriter.submit(this, batch, listener);
+            return;
+        }
+        for (int i = 0; i < batch.parts.size(); i++) {
+            final int partIndex = i;
+            final InfluxdbBatch.Part part = batch.parts.get(i);
+            try {
+                part.endpoint.submit(() -> {
+                    RuntimeException error = null;
+                    try {
+                        this.sendPart(part);
+                    } catch (RuntimeException e) {
+                        error = e;
+                    }
+                    listener.partWritten(partIndex, error);
+                });
+            } catch (RejectedExecutionException e) {
+                this.recycle(part);
+                listener.partWritten(partIndex, e);
+            }
+        }
+    }
 
-            this.influxDB.write(this.batchPoints);
-            this.batchPoints = null;
-        } else {
-            LOG.warn("No points values to send");
+    /**
+     * Run an InfluxQL query on the database without blocking, against the first HTTP endpoint.
+     * @return a future completed on an OkHttp thread, exceptionally when the query or one of its statements failed
+     */
+    public CompletableFuture<QueryResult> queryAsync(String command) {
+        CompletableFuture<QueryResult> result = new CompletableFuture<>();
+        try {
+            this.getQueryEndpoint().query(new Query(command, this.influxdbDatabase), queryResult -> {
+                String error = getError(queryResult);
+                if (error != null) {
+                    result.completeExceptionally(new InfluxDBException(error + ": " + command));
+                } else {
+                    result.complete(queryResult);
+                }
+            }, result::completeExceptionally);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Stream the result of an InfluxQL query on the database in chunks of chunkSize rows, against the first HTTP endpoint.
+     * The callbacks are called on an OkHttp thread, the next chunk is read once onNext returns.
+     */
+    public void queryChunked(String command, int chunkSize, BiConsumer<Cancellable, QueryResult> onNext, Runnable onComplete,
+                             Consumer<Throwable> onFailure) {
+        this.getQueryEndpoint().query(new Query(command, this.influxdbDatabase), chunkSize, (cancellable, queryResult) -> {
+            String error = getError(queryResult);
+            if (error != null) {
+                cancellable.cancel();
+                onFailure.accept(new InfluxDBException(error + ": " + command));
+            } else {
+                onNext.accept(cancellable, queryResult);
+            }
+        }, onComplete, onFailure);
+    }
+
+    private InfluxdbEndpoint getQueryEndpoint() {
+        for (InfluxdbEndpoint endpoint : this.endpoints) {
+            if (!endpoint.isUdp()) {
+                return endpoint;
+            }
+        }
+        throw new RuntimeException("No HTTP endpoint to query in " + this.influxdbUrl);
+    }
+
+    private static String getError(QueryResult queryResult) {
+        if (queryResult.getError() != null || queryResult.getResults() == null) {
+            return queryResult.getError();
         }
+        for (QueryResult.Result statementResult : queryResult.getResults()) {
+            if (statementResult.hasError()) {
+                return statementResult.getError();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Tell whether the batches are written by a writer shared with the other clients of the worker.
+     */
+    public boolean isSharedWriter() {
+        return this.sharedWriter != null;
+    }
+
+    void sendPart(InfluxdbBatch.Part part) {
+
+        LOG.debug("{}: Sending points to database = {} on {}",
+                new Object[]{this.getClass().getSimpleName(), part.database, part.endpoint.getUrl()});
+
+        long startNanos = this.metrics.writeStarted();
+        RuntimeException writeError = null;
+        try {
+            this.writePartWithRetries(part, startNanos);
+        } catch (RuntimeException e) {
+            writeError = e;
+        }
+        RuntimeException error = this.completePart(part, startNanos, writeError);
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Finish the write of a part: spool it when InfluxDB was unavailable, record the metrics and recycle it.
+     * @return the error to report, an {@link InfluxdbPartialWriteException} when InfluxDB only rejected some of the
+     * points, null once written or spooled
+     */
+    RuntimeException completePart(InfluxdbBatch.Part part, long startNanos, RuntimeException writeError) {
+        int points = part.size();
+        long bytes = part.lineProtocol != null ? part.lineProtocol.size() : -1;
+        try {
+            if (writeError instanceof InfluxDBException) {
+                BitSet rejectedLines = PartialWriteErrors.rejectedLines(writeError.getMessage(), part.lines());
+                if (rejectedLines == null) {
+                    part.endpoint.spoolOrThrow(part, writeError);
+                } else if (!rejectedLines.isEmpty()) {
+                    return new InfluxdbPartialWriteException(writeError.getMessage(), part.sourcesOf(rejectedLines),
+                            rejectedLines.cardinality(), writeError);
+                } else {
+                    LOG.warn("{}: InfluxDB dropped points on {}: {}",
+                            new Object[]{this.getClass().getSimpleName(), part.endpoint.getUrl(), writeError.getMessage()});
+                }
+            } else if (writeError != null) {
+                part.endpoint.spoolOrThrow(part, writeError);
+            }
+            return null;
+        } catch (RuntimeException e) {
+            return e;
+        } finally {
+            this.metrics.writeCompleted(startNanos, points, bytes, writeError == null);
+            this.recycle(part);
+        }
+    }
+
+    /**
+     * Write a part, attempting transient failures again after a backoff. Runs on the thread sending the batch,
+     * a writer thread of the endpoint.
+     */
+    private void writePartWithRetries(InfluxdbBatch.Part part, long startNanos) {
+        for (int attempt = 1; ; attempt++) {
+            long backoffMillis = this.attemptWrite(part, attempt, startNanos);
+            if (backoffMillis < 0) {
+                return;
+            }
+            try {
+                Thread.sleep(backoffMillis);
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+                // spooled like the transient error being retried
+                throw new UncheckedIOException(new InterruptedIOException("Interrupted while retrying a write on " + part.endpoint.getUrl()));
+            }
+        }
+    }
+
+    /**
+     * Make one attempt at writing a part, for callers which wait for the backoff themselves.
+     * @param attempt the number of the attempt, from 1
+     * @param startNanos the start of the first attempt
+     * @return -1 once written, otherwise the backoff in milliseconds before the next attempt
+     * @throws RuntimeException the write error when the write must not be attempted again
+     */
+    long attemptWrite(InfluxdbBatch.Part part, int attempt, long startNanos) {
+        CircuitBreaker circuitBreaker = part.endpoint.getCircuitBreaker();
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            this.metrics.shortCircuited();
+            // a connection error, spooled and retried like the writes that opened the circuit
+            throw new UncheckedIOException(new ConnectException("Circuit open for " + part.endpoint.getUrl() + ", InfluxDB is known to be down"));
+        }
+        try {
+            part.endpoint.createDatabaseIfNotExists(part.database);
+            if (part.lineProtocol != null) {
+                part.endpoint.write(part.database, part.retentionPolicy, part.lineProtocol);
+            } else {
+                part.endpoint.write(part.batchPoints);
+            }
+            if (circuitBreaker != null) {
+                circuitBreaker.onSuccess();
+            }
+            return -1;
+        } catch (RuntimeException e) {
+            boolean retryable = RetryPolicy.isRetryable(e)
+                    && (!(e instanceof InfluxDBException) || PartialWriteErrors.rejectedLines(e.getMessage(), part.lines()) == null);
+            if (circuitBreaker != null) {
+                // an answer other than a transient error means the server is up
+                if (retryable) {
+                    circuitBreaker.onFailure();
+                } else {
+                    circuitBreaker.onSuccess();
+                }
+            }
+            long backoffMillis = retryable ? this.retryPolicy.backoffMillis(attempt, startNanos) : -1;
+            if (backoffMillis < 0) {
+                throw e;
+            }
+            LOG.warn("{}: Attempt {} to write {} points on {} failed, retrying in {} ms: {}",
+                    new Object[]{this.getClass().getSimpleName(), attempt, part.size(), part.endpoint.getUrl(), backoffMillis, e.getMessage()});
+            this.metrics.retried();
+            return backoffMillis;
+        }
+    }
+
+    /**
+     * Tell whether failed writes are attempted again, in which case sending a batch may take up to the retry time.
+     */
+    public boolean isRetrying() {
+        return this.retryPolicy.isEnabled();
+    }
+
+    void recycle(InfluxdbBatch.Part part) {
+        if (part.lineProtocol != null) {
+            part.lineProtocol.reset();
+            this.idleLineProtocolBuffers.offer(part.lineProtocol);
+        }
+    }
+
+    LineProtocolBuffer takeIdleBuffer() {
+        LineProtocolBuffer idleBuffer = this.idleLineProtocolBuffers.poll();
+        return idleBuffer != null ? idleBuffer : new LineProtocolBuffer();
     }
 
     /**
@@ -190,7 +818,14 @@ public class InfluxdbClient {
 
         LOG.debug("{}: Closing connection to database = {}", this.getClass().getSimpleName(), this.influxdbDatabase);
 
-        this.influxDB.close();
+        if (this.sharedWriter != null) {
+            this.sharedWriter.release();
+            return;
+        }
+        for (InfluxdbEndpoint endpoint : this.endpoints) {
+            endpoint.close();
+        }
+        this.httpTransport.close();
     }
     public static InfluxdbClient.Builder newBuilder(String influxdbUrl,String influxdbDatabase) {
 
@@ -200,6 +835,54 @@ public class InfluxdbClient {
         return new InfluxdbClient.Builder(influxdbUrl,influxdbDatabase,influxdbUsername,influxdbPassword);
     }
 
+    /**
+     * Wait for the parts of a batch sent by {@link #sendBatch(InfluxdbBatch)}, merging their errors.
+     */
+    private static final class BatchWrite implements InfluxdbBatch.PartListener {
+        private final CountDownLatch pendingParts;
+        private RuntimeException error;
+        private InfluxdbPartialWriteException partialWrite;
+
+        private BatchWrite(int parts) {
+            this.pendingParts = new CountDownLatch(parts);
+        }
+
+        @Override
+        public void partWritten(int part, RuntimeException partError) {
+            synchronized (this) {
+                if (partError instanceof InfluxdbPartialWriteException) {
+                    this.partialWrite = this.partialWrite == null ? (InfluxdbPartialWriteException) partError
+                            : this.partialWrite.merge((InfluxdbPartialWriteException) partError);
+                } else if (partError != null && this.error == null) {
+                    this.error = partError;
+                } else if (partError != null) {
+                    this.error.addSuppressed(partError);
+                }
+            }
+            this.pendingParts.countDown();
+        }
+
+        private void await() {
+            try {
+                this.pendingParts.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while sending points", e);
+            }
+            synchronized (this) {
+                if (this.error != null) {
+                    if (this.partialWrite != null) {
+                        this.error.addSuppressed(this.partialWrite);
+                    }
+                    throw this.error;
+                }
+                if (this.partialWrite != null) {
+                    throw this.partialWrite;
+                }
+            }
+        }
+    }
+
     public static class Builder implements Serializable {
 
         private String influxdbUrl;
@@ -207,7 +890,40 @@ public class InfluxdbClient {
         private String influxdbPassword;
         private String influxdbDatabase;
         private String influxdbMeasurementPrefix;
+        private String influxdbRetentionPolicy = DEFAULT_RETENTION_POLICY;
+        private String influxdbConsistencyLevel = DEFAULT_INFLUXDB_CONSISTENCY_LEVEL;
         private Boolean influxdbEnableGzip  = DEFAULT_INFLUXDB_ENABLE_GZIP;
+        private Integer influxdbGzipLevel = DEFAULT_INFLUXDB_GZIP_LEVEL;
+        private Integer influxdbGzipMinBytes = DEFAULT_INFLUXDB_GZIP_MIN_BYTES;
+        private Long influxdbConnectTimeoutMs = DEFAULT_INFLUXDB_CONNECT_TIMEOUT_MS;
+        private Long influxdbReadTimeoutMs = DEFAULT_INFLUXDB_READ_TIMEOUT_MS;
+        private Long influxdbWriteTimeoutMs = DEFAULT_INFLUXDB_WRITE_TIMEOUT_MS;
+        private Integer influxdbPoolMaxIdleConnections = DEFAULT_INFLUXDB_POOL_MAX_IDLE_CONNECTIONS;
+        private Long influxdbPoolKeepAliveMs = DEFAULT_INFLUXDB_POOL_KEEP_ALIVE_MS;
+        private Boolean influxdbHttp2 = DEFAULT_INFLUXDB_HTTP2;
+        private Long influxdbCardinalityMaxSeries = DEFAULT_INFLUXDB_CARDINALITY_MAX_SERIES;
+        private Long influxdbCardinalityMaxTagValues = DEFAULT_INFLUXDB_CARDINALITY_MAX_TAG_VALUES;
+        private String influxdbCardinalityAction = DEFAULT_INFLUXDB_CARDINALITY_ACTION;
+        private Integer influxdbCardinalityHashBuckets = DEFAULT_INFLUXDB_CARDINALITY_HASH_BUCKETS;
+        private String influxdbCardinalityOverflowMeasurement = DEFAULT_INFLUXDB_CARDINALITY_OVERFLOW_MEASUREMENT;
+        private Boolean influxdbSharedWriter = DEFAULT_INFLUXDB_SHARED_WRITER;
+        private Integer influxdbSharedWriterThreads = DEFAULT_INFLUXDB_SHARED_WRITER_THREADS;
+        private Long influxdbSharedWriterMaxRequestBytes = DEFAULT_INFLUXDB_SHARED_WRITER_MAX_REQUEST_BYTES;
+        private Boolean influxdbLineProtocol = DEFAULT_INFLUXDB_LINE_PROTOCOL;
+        private Boolean influxdbTypedValues = DEFAULT_INFLUXDB_TYPED_VALUES;
+        private Integer influxdbUdpDatagramBytes = DEFAULT_INFLUXDB_UDP_DATAGRAM_BYTES;
+        private Integer influxdbRetryMaxAttempts = DEFAULT_INFLUXDB_RETRY_MAX_ATTEMPTS;
+        private Long influxdbRetryInitialBackoffMs = DEFAULT_INFLUXDB_RETRY_INITIAL_BACKOFF_MS;
+        private Long influxdbRetryMaxBackoffMs = DEFAULT_INFLUXDB_RETRY_MAX_BACKOFF_MS;
+        private Long influxdbRetryMaxTimeMs = DEFAULT_INFLUXDB_RETRY_MAX_TIME_MS;
+        private Integer influxdbCircuitFailureThreshold = DEFAULT_INFLUXDB_CIRCUIT_FAILURE_THRESHOLD;
+        private Long influxdbCircuitOpenMs = DEFAULT_INFLUXDB_CIRCUIT_OPEN_MS;
+        private String influxdbSpoolDirectory = DEFAULT_INFLUXDB_SPOOL_DIRECTORY;
+        private Long influxdbSpoolMaxBytes = DEFAULT_INFLUXDB_SPOOL_MAX_BYTES;
+        private Integer influxdbSeriesCacheSize = DEFAULT_INFLUXDB_SERIES_CACHE_SIZE;
+        private String influxdbRouting = DEFAULT_INFLUXDB_ROUTING;
+        private Map<String, String> influxdbRoutingPrefixes = Collections.emptyMap();
+        private Integer influxdbWriterThreads = DEFAULT_INFLUXDB_WRITER_THREADS;
 
         public  Builder(String influxdbUrl, String influxdbDatabase, String influxdbUsername, String influxdbPassword) {
             this.influxdbUrl =influxdbUrl;
@@ -219,11 +935,225 @@ public class InfluxdbClient {
             this.influxdbMeasurementPrefix = influxdbMeasurementPrefix;
             return this;
         }
+
+        /**
+         * Retention policy of the points without their own, autogen by default.
+         */
+        public InfluxdbClient.Builder retentionPolicy(String retentionPolicy) {
+            this.influxdbRetentionPolicy = retentionPolicy;
+            return this;
+        }
+
+        /**
+         * Consistency level of the writes, only used by InfluxDB Enterprise clusters, ALL by default.
+         */
+        public InfluxdbClient.Builder consistencyLevel(ConsistencyLevel consistencyLevel) {
+            this.influxdbConsistencyLevel = consistencyLevel.name();
+            return this;
+        }
         public InfluxdbClient.Builder enableGzip() {
             this.influxdbEnableGzip = true;
             return this;
         }
 
+        public InfluxdbClient.Builder disableGzip() {
+            this.influxdbEnableGzip = false;
+            return this;
+        }
+
+        /**
+         * Gzip the line protocol at the given {@link java.util.zip.Deflater} level (1 fastest to 9 smallest),
+         * only for requests of at least minBytes. influxdb-java Points are always gzipped at the default level.
+         */
+        public InfluxdbClient.Builder gzip(int level, int minBytes) {
+            this.influxdbEnableGzip = true;
+            this.influxdbGzipLevel = level;
+            this.influxdbGzipMinBytes = minBytes;
+            return this;
+        }
+
+        /**
+         * Fail requests taking longer than the timeouts, the read timeout bounds the wait for InfluxDB's answer.
+         */
+        public InfluxdbClient.Builder timeouts(long connectTimeoutMillis, long readTimeoutMillis, long writeTimeoutMillis) {
+            this.influxdbConnectTimeoutMs = connectTimeoutMillis;
+            this.influxdbReadTimeoutMs = readTimeoutMillis;
+            this.influxdbWriteTimeoutMs = writeTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * Keep up to maxIdleConnections idle connections, shared by every endpoint, open for keepAliveMillis.
+         */
+        public InfluxdbClient.Builder connectionPool(int maxIdleConnections, long keepAliveMillis) {
+            this.influxdbPoolMaxIdleConnections = maxIdleConnections;
+            this.influxdbPoolKeepAliveMs = keepAliveMillis;
+            return this;
+        }
+
+        /**
+         * Guard the series index of InfluxDB against a tag exploding, e.g. a request id put in a tag: a tag key with
+         * more than maxValuesPerTagKey values, or the tag key with the most values of a measurement with more than
+         * maxSeriesPerMeasurement series, is limited with the given action. Cardinalities are estimated with
+         * HyperLogLog sketches per client, 0 disables a budget.
+         */
+        public InfluxdbClient.Builder cardinalityGuard(long maxSeriesPerMeasurement, long maxValuesPerTagKey, CardinalityAction action) {
+            this.influxdbCardinalityMaxSeries = maxSeriesPerMeasurement;
+            this.influxdbCardinalityMaxTagValues = maxValuesPerTagKey;
+            this.influxdbCardinalityAction = action.name();
+            return this;
+        }
+
+        /**
+         * Number of values of a limited tag with {@link CardinalityAction#HASH_BUCKET}.
+         */
+        public InfluxdbClient.Builder cardinalityHashBuckets(int hashBuckets) {
+            this.influxdbCardinalityHashBuckets = hashBuckets;
+            return this;
+        }
+
+        /**
+         * Measurement of the points with a limited tag with {@link CardinalityAction#OVERFLOW_MEASUREMENT}.
+         */
+        public InfluxdbClient.Builder cardinalityOverflowMeasurement(String overflowMeasurement) {
+            this.influxdbCardinalityOverflowMeasurement = overflowMeasurement;
+            return this;
+        }
+
+        /**
+         * Share one writer between the clients of the worker built with the same configuration: each client encodes
+         * its points and ioThreads threads coalesce the batches of every client into requests of up to
+         * maxRequestBytes on one set of connections. Implies the line protocol encoder.
+         */
+        public InfluxdbClient.Builder shareWriterInWorker(int ioThreads, long maxRequestBytes) {
+            this.influxdbSharedWriter = true;
+            this.influxdbSharedWriterThreads = ioThreads;
+            this.influxdbSharedWriterMaxRequestBytes = maxRequestBytes;
+            return this;
+        }
+
+        /**
+         * Offer HTTP/2 to https endpoints, it is used when the server or its proxy supports it.
+         */
+        public InfluxdbClient.Builder enableHttp2() {
+            this.influxdbHttp2 = true;
+            return this;
+        }
+
+        /**
+         * Encode points directly into line protocol and POST the bytes, instead of building influxdb-java Points.
+         */
+        public InfluxdbClient.Builder enableLineProtocolEncoder() {
+            this.influxdbLineProtocol = true;
+            return this;
+        }
+
+        /**
+         * Write Integer and Long values as InfluxDB integers instead of floats. The field type of an existing
+         * measurement can't change, so only enable it for new measurements.
+         */
+        public InfluxdbClient.Builder enableTypedValues() {
+            this.influxdbTypedValues = true;
+            return this;
+        }
+
+        /**
+         * Send the points to the InfluxDB UDP listener at host:port instead of the HTTP url, fire and forget.
+         * Tuples are acked once their datagrams are sent, the database is the one configured on the listener.
+         */
+        public InfluxdbClient.Builder udp(String host, int port) {
+            this.influxdbUrl = LineProtocolUdpWriter.SCHEME + host + ":" + port;
+            this.influxdbLineProtocol = true;
+            return this;
+        }
+
+        /**
+         * Pack the points sent over UDP in datagrams of at most datagramBytes, keep it under the network MTU.
+         */
+        public InfluxdbClient.Builder udpDatagramBytes(int datagramBytes) {
+            this.influxdbUdpDatagramBytes = datagramBytes;
+            return this;
+        }
+
+        /**
+         * Attempt writes failing with a transient error (5xx, timeout, connection reset) up to maxAttempts times,
+         * waiting a random backoff up to initialBackoffMillis doubled at each attempt and capped at maxBackoffMillis,
+         * and giving up once maxRetryMillis elapsed since the first attempt.
+         */
+        public InfluxdbClient.Builder retry(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis, long maxRetryMillis) {
+            this.influxdbRetryMaxAttempts = maxAttempts;
+            this.influxdbRetryInitialBackoffMs = initialBackoffMillis;
+            this.influxdbRetryMaxBackoffMs = maxBackoffMillis;
+            this.influxdbRetryMaxTimeMs = maxRetryMillis;
+            return this;
+        }
+
+        /**
+         * Fail the writes to an endpoint immediately, or spool them, for openMillis after failureThreshold
+         * consecutive transient failures, then let a single trial write through.
+         */
+        public InfluxdbClient.Builder circuitBreaker(int failureThreshold, long openMillis) {
+            this.influxdbCircuitFailureThreshold = failureThreshold;
+            this.influxdbCircuitOpenMs = openMillis;
+            return this;
+        }
+
+        /**
+         * Spool batches that could not be written to local disk and replay them once InfluxDB is back,
+         * the oldest spooled batches are dropped when the spool grows over maxBytes.
+         */
+        public InfluxdbClient.Builder enableSpool(String directory, long maxBytes) {
+            this.influxdbSpoolDirectory = directory;
+            this.influxdbSpoolMaxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Keep the encoded prefix of up to seriesCacheSize series (measurement plus tag set) with the line protocol
+         * encoder, 0 disables the cache.
+         */
+        public InfluxdbClient.Builder seriesCacheSize(int seriesCacheSize) {
+            this.influxdbSeriesCacheSize = seriesCacheSize;
+            return this;
+        }
+
+        /**
+         * Shard the series across several InfluxDB nodes, replacing the url given to the builder.
+         * Each endpoint gets its own batch and connection, and the endpoints are written in parallel.
+         * Series are routed with a consistent hash on the measurement unless {@link #routeBySeries()}
+         * or {@link #routeByMeasurementPrefix(Map)} is used.
+         */
+        public InfluxdbClient.Builder endpoints(List<String> influxdbUrls) {
+            this.influxdbUrl = String.join(",", influxdbUrls);
+            return this;
+        }
+
+        /**
+         * Route with a consistent hash on the measurement and tags, instead of the measurement alone.
+         */
+        public InfluxdbClient.Builder routeBySeries() {
+            this.influxdbRouting = ROUTING_SERIES;
+            return this;
+        }
+
+        /**
+         * Route measurements by the longest matching prefix to the given endpoint url,
+         * other measurements are routed by consistent hash.
+         */
+        public InfluxdbClient.Builder routeByMeasurementPrefix(Map<String, String> prefixEndpoints) {
+            this.influxdbRoutingPrefixes = prefixEndpoints;
+            return this;
+        }
+
+        /**
+         * Number of threads writing the parts of each endpoint, started on demand. Bounds the requests in flight
+         * to an endpoint, a slow endpoint only holds up its own threads.
+         */
+        public InfluxdbClient.Builder writerThreads(int threadsPerEndpoint) {
+            this.influxdbWriterThreads = threadsPerEndpoint;
+            return this;
+        }
+
         public InfluxdbClient build() {
             Map<Object, Object> config = Maps.newHashMap();
 
@@ -231,8 +1161,43 @@ public class InfluxdbClient {
             config.put(KEY_INFLUXDB_USERNAME,this.influxdbUsername);
             config.put(KEY_INFLUXDB_PASSWORD,this.influxdbPassword);
             config.put(KEY_INFLUXDB_DATABASE,this.influxdbDatabase);
+            config.put(KEY_INFLUXDB_RETENTION_POLICY,this.influxdbRetentionPolicy);
+            config.put(KEY_INFLUXDB_CONSISTENCY_LEVEL,this.influxdbConsistencyLevel);
             config.put(KEY_INFLUXDB_MEASUREMENT_PREFIX,this.influxdbMeasurementPrefix);
             config.put(KEY_INFLUXDB_ENABLE_GZIP,this.influxdbEnableGzip);
+            config.put(KEY_INFLUXDB_GZIP_LEVEL,this.influxdbGzipLevel);
+            config.put(KEY_INFLUXDB_GZIP_MIN_BYTES,this.influxdbGzipMinBytes);
+            config.put(KEY_INFLUXDB_CONNECT_TIMEOUT_MS,this.influxdbConnectTimeoutMs);
+            config.put(KEY_INFLUXDB_READ_TIMEOUT_MS,this.influxdbReadTimeoutMs);
+            config.put(KEY_INFLUXDB_WRITE_TIMEOUT_MS,this.influxdbWriteTimeoutMs);
+            config.put(KEY_INFLUXDB_POOL_MAX_IDLE_CONNECTIONS,this.influxdbPoolMaxIdleConnections);
+            config.put(KEY_INFLUXDB_POOL_KEEP_ALIVE_MS,this.influxdbPoolKeepAliveMs);
+            config.put(KEY_INFLUXDB_HTTP2,this.influxdbHttp2);
+            config.put(KEY_INFLUXDB_CARDINALITY_MAX_SERIES,this.influxdbCardinalityMaxSeries);
+            config.put(KEY_INFLUXDB_CARDINALITY_MAX_TAG_VALUES,this.influxdbCardinalityMaxTagValues);
+            config.put(KEY_INFLUXDB_CARDINALITY_ACTION,this.influxdbCardinalityAction);
+            config.put(KEY_INFLUXDB_CARDINALITY_HASH_BUCKETS,this.influxdbCardinalityHashBuckets);
+            config.put(KEY_INFLUXDB_CARDINALITY_OVERFLOW_MEASUREMENT,this.influxdbCardinalityOverflowMeasurement);
+            config.put(KEY_INFLUXDB_SHARED_WRITER,this.influxdbSharedWriter);
+            config.put(KEY_INFLUXDB_SHARED_WRITER_THREADS,this.influxdbSharedWriterThreads);
+            config.put(KEY_INFLUXDB_SHARED_WRITER_MAX_REQUEST_BYTES,this.influxdbSharedWriterMaxRequestBytes);
+            config.put(KEY_INFLUXDB_LINE_PROTOCOL,this.influxdbLineProtocol);
+            config.put(KEY_INFLUXDB_TYPED_VALUES,this.influxdbTypedValues);
+            config.put(KEY_INFLUXDB_UDP_DATAGRAM_BYTES,this.influxdbUdpDatagramBytes);
+            config.put(KEY_INFLUXDB_RETRY_MAX_ATTEMPTS,this.influxdbRetryMaxAttempts);
+            config.put(KEY_INFLUXDB_RETRY_INITIAL_BACKOFF_MS,this.influxdbRetryInitialBackoffMs);
+            config.put(KEY_INFLUXDB_RETRY_MAX_BACKOFF_MS,this.influxdbRetryMaxBackoffMs);
+            config.put(KEY_INFLUXDB_RETRY_MAX_TIME_MS,this.influxdbRetryMaxTimeMs);
+            config.put(KEY_INFLUXDB_CIRCUIT_FAILURE_THRESHOLD,this.influxdbCircuitFailureThreshold);
+            config.put(KEY_INFLUXDB_CIRCUIT_OPEN_MS,this.influxdbCircuitOpenMs);
+            config.put(KEY_INFLUXDB_SPOOL_DIRECTORY,this.influxdbSpoolDirectory);
+            config.put(KEY_INFLUXDB_SPOOL_MAX_BYTES,this.influxdbSpoolMaxBytes);
+            config.put(KEY_INFLUXDB_SPOOL_SEGMENT_BYTES,DEFAULT_INFLUXDB_SPOOL_SEGMENT_BYTES);
+            config.put(KEY_INFLUXDB_SPOOL_DRAIN_INTERVAL_SECS,DEFAULT_INFLUXDB_SPOOL_DRAIN_INTERVAL_SECS);
+            config.put(KEY_INFLUXDB_SERIES_CACHE_SIZE,this.influxdbSeriesCacheSize);
+            config.put(KEY_INFLUXDB_ROUTING,this.influxdbRouting);
+            config.put(KEY_INFLUXDB_ROUTING_PREFIXES,this.influxdbRoutingPrefixes);
+            config.put(KEY_INFLUXDB_WRITER_THREADS,this.influxdbWriterThreads);
 
             return new InfluxdbClient(config);
         }
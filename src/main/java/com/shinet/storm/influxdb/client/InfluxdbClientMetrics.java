@@ -0,0 +1,169 @@
+package com.shinet.storm.influxdb.client;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write path metrics of an {@link InfluxdbClient}, recorded with striped counters and lock free histograms
+ * so the executor and writer threads never contend on them.
+ * {@link #getValueAndReset()} matches Storm's IMetric, components register it with
+ * {@code context.registerMetric("influxdb", metrics::getValueAndReset, bucketSecs)}.
+ */
+public final class InfluxdbClientMetrics {
+    private final LogHistogram writeLatencyMicros = new LogHistogram();
+    private final LogHistogram batchPoints = new LogHistogram();
+    private final LogHistogram batchBytes = new LogHistogram();
+    private final LongAdder writtenPoints = new LongAdder();
+    private final LongAdder failedWrites = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder shortCircuited = new LongAdder();
+    private final LongAdder inFlightRequests = new LongAdder();
+    private final LongAdder discardedNonFinite = new LongAdder();
+    private final LongAdder discardedNull = new LongAdder();
+    private final LongAdder discardedUnsupportedType = new LongAdder();
+    private final LongAdder discardedRejected = new LongAdder();
+    private final LongAdder seriesCacheHits = new LongAdder();
+    private final LongAdder seriesCacheMisses = new LongAdder();
+    private final LongAdder seriesCacheEvictions = new LongAdder();
+    private final LongAdder backpressureWaits = new LongAdder();
+    private final LongAdder backpressureWaitNanos = new LongAdder();
+    private final LongAdder cardinalityLimitedTags = new LongAdder();
+    private final LongAdder cardinalityLimitedPoints = new LongAdder();
+    private long lastResetNanos = System.nanoTime();
+
+    /**
+     * Mark the start of a write request.
+     * @return the start time to give to {@link #writeCompleted}
+     */
+    long writeStarted() {
+        this.inFlightRequests.increment();
+        return System.nanoTime();
+    }
+
+    void writeCompleted(long startNanos, int points, long bytes, boolean success) {
+        this.inFlightRequests.decrement();
+        this.recordWrite(startNanos, points, bytes, success);
+    }
+
+    /**
+     * Record a write made on behalf of the component by a shared writer, which counts its requests in flight itself.
+     */
+    void recordWrite(long startNanos, int points, long bytes, boolean success) {
+        this.writeLatencyMicros.record((System.nanoTime() - startNanos) / 1000);
+        this.batchPoints.record(points);
+        if (bytes >= 0) {
+            this.batchBytes.record(bytes);
+        }
+        if (success) {
+            this.writtenPoints.add(points);
+        } else {
+            this.failedWrites.increment();
+        }
+    }
+
+    public void retried() {
+        this.retries.increment();
+    }
+
+    void shortCircuited() {
+        this.shortCircuited.increment();
+    }
+
+    public void discardedNonFinite() {
+        this.discardedNonFinite.increment();
+    }
+
+    public void discardedNull() {
+        this.discardedNull.increment();
+    }
+
+    public void discardedUnsupportedType() {
+        this.discardedUnsupportedType.increment();
+    }
+
+    /**
+     * Count points InfluxDB rejected in a partial write which are dropped rather than retried.
+     */
+    public void discardedRejected(int points) {
+        this.discardedRejected.add(points);
+    }
+
+    public void seriesCacheHit() {
+        this.seriesCacheHits.increment();
+    }
+
+    public void seriesCacheMissed() {
+        this.seriesCacheMisses.increment();
+    }
+
+    public void seriesCacheEvicted() {
+        this.seriesCacheEvictions.increment();
+    }
+
+    void cardinalityLimitedTag() {
+        this.cardinalityLimitedTags.increment();
+    }
+
+    void cardinalityLimitedPoint() {
+        this.cardinalityLimitedPoints.increment();
+    }
+
+    /**
+     * Record the time a component spent blocked waiting for outstanding writes.
+     */
+    public void backpressured(long waitNanos) {
+        this.backpressureWaits.increment();
+        this.backpressureWaitNanos.add(waitNanos);
+    }
+
+    /**
+     * Report the metrics of the interval since the previous call and start a new interval.
+     * Latencies are in milliseconds, in-flight requests is the current value.
+     */
+    public synchronized Map<String, Object> getValueAndReset() {
+        long now = System.nanoTime();
+        double intervalSecs = Math.max(now - this.lastResetNanos, 1) / 1e9;
+        this.lastResetNanos = now;
+
+        Map<String, Object> values = new HashMap<>();
+        LogHistogram.Snapshot latency = this.writeLatencyMicros.snapshotAndReset();
+        values.put("writeLatencyMs.count", latency.getCount());
+        values.put("writeLatencyMs.mean", latency.getMean() / 1000);
+        values.put("writeLatencyMs.p50", latency.getValue(0.5) / 1000);
+        values.put("writeLatencyMs.p99", latency.getValue(0.99) / 1000);
+        values.put("writeLatencyMs.p999", latency.getValue(0.999) / 1000);
+        values.put("writeLatencyMs.max", latency.getMax() / 1000.0);
+        this.putDistribution(values, "batchPoints", this.batchPoints.snapshotAndReset());
+        this.putDistribution(values, "batchBytes", this.batchBytes.snapshotAndReset());
+        long points = this.writtenPoints.sumThenReset();
+        values.put("writtenPoints", points);
+        values.put("pointsPerSec", points / intervalSecs);
+        values.put("failedWrites", this.failedWrites.sumThenReset());
+        values.put("retries", this.retries.sumThenReset());
+        values.put("shortCircuitedWrites", this.shortCircuited.sumThenReset());
+        values.put("inFlightRequests", this.inFlightRequests.sum());
+        values.put("discarded.nonFinite", this.discardedNonFinite.sumThenReset());
+        values.put("discarded.null", this.discardedNull.sumThenReset());
+        values.put("discarded.unsupportedType", this.discardedUnsupportedType.sumThenReset());
+        values.put("discarded.rejected", this.discardedRejected.sumThenReset());
+        long hits = this.seriesCacheHits.sumThenReset();
+        long misses = this.seriesCacheMisses.sumThenReset();
+        values.put("seriesCache.hits", hits);
+        values.put("seriesCache.misses", misses);
+        values.put("seriesCache.hitRate", hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+        values.put("seriesCache.evictions", this.seriesCacheEvictions.sumThenReset());
+        values.put("backpressure.waits", this.backpressureWaits.sumThenReset());
+        values.put("backpressure.waitMs", this.backpressureWaitNanos.sumThenReset() / 1e6);
+        values.put("cardinality.limitedTags", this.cardinalityLimitedTags.sumThenReset());
+        values.put("cardinality.limitedPoints", this.cardinalityLimitedPoints.sumThenReset());
+        return values;
+    }
+
+    private void putDistribution(Map<String, Object> values, String name, LogHistogram.Snapshot snapshot) {
+        values.put(name + ".mean", snapshot.getMean());
+        values.put(name + ".p50", snapshot.getValue(0.5));
+        values.put(name + ".p99", snapshot.getValue(0.99));
+        values.put(name + ".max", snapshot.getMax());
+    }
+}
@@ -0,0 +1,267 @@
+package com.shinet.storm.influxdb.client;
+
+import org.influxdb.InfluxDB;
+import org.influxdb.InfluxDBException;
+import org.influxdb.InfluxDBFactory;
+import org.influxdb.dto.BatchPoints;
+import org.influxdb.dto.Cancellable;
+import org.influxdb.dto.Query;
+import org.influxdb.dto.QueryResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Connection to one InfluxDB node: the influxdb-java client, the line protocol writer and the spool of the node.
+ * A udp://host:port url sends the line protocol to a UDP listener instead, without database creation nor spool.
+ * Thread safe, writes may come from several writer threads, the parts of a sharded batch are written on the
+ * bounded writer pool of their endpoint so that a slow node only backs up its own parts.
+ */
+class InfluxdbEndpoint {
+    private static final Logger LOG = LoggerFactory.getLogger(InfluxdbEndpoint.class);
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final HttpTransport transport;
+    private final InfluxDB.ConsistencyLevel consistency;
+    private final InfluxDB influxDB;
+    private final Set<String> createdDatabases = ConcurrentHashMap.newKeySet();
+    private LineProtocolHttpWriter lineProtocolWriter;
+    private LineProtocolUdpWriter udpWriter;
+    private WriteAheadSpool spool;
+    private CircuitBreaker circuitBreaker;
+    private ThreadPoolExecutor writers;
+
+    InfluxdbEndpoint(String url, String username, String password, HttpTransport transport, InfluxDB.ConsistencyLevel consistency,
+                     boolean lineProtocol, int udpDatagramBytes) {
+        LOG.debug("{}: Preparing connection to InfluxDB: [ url='{}', username='{}' ]",
+                new Object[]{this.getClass().getSimpleName(), url, username});
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.transport = transport;
+        this.consistency = consistency;
+
+        if (LineProtocolUdpWriter.isUdp(url)) {
+            this.influxDB = null;
+            this.udpWriter = new LineProtocolUdpWriter(url, udpDatagramBytes);
+        } else if (username.isEmpty() && password.isEmpty()) {
+            this.influxDB = InfluxDBFactory.connect(url, transport.newClientBuilder());
+        } else {
+            this.influxDB = InfluxDBFactory.connect(url, username, password, transport.newClientBuilder());
+        }
+
+        // additional connections options
+        if (this.udpWriter != null) {
+            return;
+        }
+        if (transport.isGzip()) {
+            this.influxDB.enableGzip();
+        }
+        if (lineProtocol) {
+            this.lineProtocolWriter = new LineProtocolHttpWriter(url, username, password, transport);
+        }
+    }
+
+    String getUrl() {
+        return this.url;
+    }
+
+    boolean isUdp() {
+        return this.udpWriter != null;
+    }
+
+    /**
+     * Fail the writes immediately for openMillis after failureThreshold consecutive transient failures
+     */
+    void enableCircuitBreaker(int failureThreshold, long openMillis) {
+        this.circuitBreaker = new CircuitBreaker(failureThreshold, openMillis);
+    }
+
+    /**
+     * @return null when the endpoint has no circuit breaker
+     */
+    CircuitBreaker getCircuitBreaker() {
+        return this.circuitBreaker;
+    }
+
+    /**
+     * Start the pool writing the parts sent to this endpoint, its threads are started on demand and stop when idle
+     */
+    void startWriters(int threads, int endpointIndex) {
+        final AtomicInteger writerIndex = new AtomicInteger();
+        this.writers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "influxdb-shard-writer-" + endpointIndex + "-" + writerIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.writers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run a write on the writer pool of this endpoint
+     * @throws java.util.concurrent.RejectedExecutionException once the endpoint is closed
+     */
+    Future<?> submit(Runnable write) {
+        return this.writers.submit(write);
+    }
+
+    /**
+     * Spool the batches this endpoint could not receive and replay them once it answers again
+     */
+    void openSpool(File directory, long maxBytes, long segmentBytes, int drainIntervalSecs, InfluxdbClientMetrics metrics) {
+        if (this.udpWriter != null) {
+            LOG.warn("{}: No spool for {}, UDP writes are fire and forget", this.getClass().getSimpleName(), this.url);
+            return;
+        }
+        LOG.debug("{}: Preparing spool for {} in {}", new Object[]{this.getClass().getSimpleName(), this.url, directory});
+
+        try {
+            this.spool = new WriteAheadSpool(directory, maxBytes, segmentBytes);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to open spool directory " + directory, e);
+        }
+        if (this.lineProtocolWriter == null) {
+            this.lineProtocolWriter = new LineProtocolHttpWriter(this.url, this.username, this.password, this.transport);
+        }
+        this.spool.startDraining((database, retentionPolicy, lines) -> {
+            metrics.retried();
+            this.replaySpooled(database, retentionPolicy, lines, metrics);
+        }, this::isAvailable, drainIntervalSecs);
+    }
+
+    /**
+     * Create the database if not exist
+     */
+    void createDatabaseIfNotExists(String database) {
+        // the database of a UDP listener is set in its configuration
+        if (this.udpWriter == null && !this.createdDatabases.contains(database)) {
+
+            LOG.debug("{}: Creating database with name = {} on {}", new Object[]{this.getClass().getSimpleName(), database, this.url});
+
+            this.influxDB.createDatabase(database);
+            this.createdDatabases.add(database);
+        }
+    }
+
+    void write(BatchPoints batchPoints) {
+        this.influxDB.write(batchPoints);
+    }
+
+    void write(String database, String retentionPolicy, LineProtocolBuffer lines) {
+        if (this.udpWriter != null) {
+            this.udpWriter.write(lines);
+        } else {
+            this.lineProtocolWriter.write(database, retentionPolicy, this.consistency, lines);
+        }
+    }
+
+    /**
+     * Append a batch that could not be written because InfluxDB was unavailable to the spool. The write error is
+     * rethrown when there is no spool, the error is permanent, e.g. a 4xx response or a missing database, as the
+     * replay would fail the same way, or the batch could not be made durable
+     */
+    void spoolOrThrow(InfluxdbBatch.Part part, RuntimeException writeError) {
+        if (this.spool == null || !RetryPolicy.isRetryable(writeError)) {
+            throw writeError;
+        }
+        try {
+            if (part.lineProtocol != null) {
+                this.spool.append(part.database, part.retentionPolicy,
+                        part.lineProtocol.array(), part.lineProtocol.size(), part.lineProtocol.lineCount());
+            } else {
+                byte[] lines = part.batchPoints.lineProtocol().getBytes(StandardCharsets.UTF_8);
+                this.spool.append(part.database, part.retentionPolicy, lines, lines.length, part.size());
+            }
+        } catch (IOException e) {
+            writeError.addSuppressed(e);
+            throw writeError;
+        }
+        LOG.warn("{}: Spooled {} points for {} after failed write: {}",
+                new Object[]{this.getClass().getSimpleName(), part.size(), this.url, writeError.getMessage()});
+    }
+
+    /**
+     * Replay a spooled batch, called from the spool drainer thread. A transient error stops the drain until the next
+     * interval, a batch failing with a permanent error is dropped so that it does not hold back the batches behind it.
+     */
+    private void replaySpooled(String database, String retentionPolicy, LineProtocolBuffer lines, InfluxdbClientMetrics metrics) {
+        try {
+            this.createDatabaseIfNotExists(database);
+            this.lineProtocolWriter.write(database, retentionPolicy, this.consistency, lines);
+        } catch (RuntimeException e) {
+            BitSet rejectedLines = e instanceof InfluxDBException
+                    ? PartialWriteErrors.rejectedLines(e.getMessage(), PartialWriteErrors.lines(lines)) : null;
+            if (rejectedLines != null) {
+                // the rest of the batch was written, replaying it again would only be rejected again
+                metrics.discardedRejected(rejectedLines.cardinality());
+                LOG.warn("{}: Dropped {} rejected spooled points for {}: {}",
+                        new Object[]{this.getClass().getSimpleName(), rejectedLines.cardinality(), this.url, e.getMessage()});
+            } else if (RetryPolicy.isRetryable(e)) {
+                throw e;
+            } else {
+                metrics.discardedRejected(lines.lineCount());
+                LOG.error("{}: Dropped {} spooled points for database {} on {}, the write failed with a permanent error: {}",
+                        new Object[]{this.getClass().getSimpleName(), lines.lineCount(), database, this.url, e.getMessage()});
+            }
+        }
+    }
+
+    /**
+     * Run a query without blocking, the callbacks are called on an OkHttp thread.
+     */
+    void query(Query query, Consumer<QueryResult> onSuccess, Consumer<Throwable> onFailure) {
+        this.influxDB.query(query, onSuccess, onFailure);
+    }
+
+    /**
+     * Stream the result of a query in chunks, the callbacks are called on an OkHttp thread.
+     */
+    void query(Query query, int chunkSize, BiConsumer<Cancellable, QueryResult> onNext, Runnable onComplete, Consumer<Throwable> onFailure) {
+        this.influxDB.query(query, chunkSize, onNext, onComplete, onFailure);
+    }
+
+    boolean isAvailable() {
+        if (this.udpWriter != null) {
+            return true;
+        }
+        try {
+            this.influxDB.ping();
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    void close() {
+        if (this.writers != null) {
+            this.writers.shutdown();
+        }
+        if (this.spool != null) {
+            this.spool.close();
+        }
+        if (this.influxDB != null) {
+            this.influxDB.close();
+        }
+        if (this.udpWriter != null) {
+            this.udpWriter.close();
+        }
+        if (this.lineProtocolWriter != null) {
+            this.lineProtocolWriter.close();
+        }
+    }
+}
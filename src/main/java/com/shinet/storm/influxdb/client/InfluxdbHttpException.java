@@ -0,0 +1,32 @@
+package com.shinet.storm.influxdb.client;
+
+import org.influxdb.InfluxDBException;
+
+/**
+ * Error response of the InfluxDB /write endpoint, only 5xx, 408 and 429 responses are worth a retry.
+ * The message is the error decoded from the JSON body, as influxdb-java reports it, so that the rejected lines
+ * can be told from it.
+ */
+final class InfluxdbHttpException extends InfluxDBException {
+    private final int statusCode;
+    private final boolean retryWorth;
+
+    InfluxdbHttpException(int statusCode, String errorBody) {
+        this(statusCode, InfluxDBException.buildExceptionForErrorState(errorBody.isEmpty() ? "HTTP " + statusCode : errorBody));
+    }
+
+    private InfluxdbHttpException(int statusCode, InfluxDBException error) {
+        super(error.getMessage());
+        this.statusCode = statusCode;
+        this.retryWorth = (statusCode >= 500 || statusCode == 408 || statusCode == 429) && error.isRetryWorth();
+    }
+
+    int getStatusCode() {
+        return this.statusCode;
+    }
+
+    @Override
+    public boolean isRetryWorth() {
+        return this.retryWorth;
+    }
+}
@@ -0,0 +1,47 @@
+package com.shinet.storm.influxdb.client;
+
+import java.util.Arrays;
+
+/**
+ * InfluxDB accepted a write except for some points.
+ * The rejected points are reported with the source index given to
+ * {@link InfluxdbClient#prepareDataPoint(String, java.util.Map, java.util.Map, Object, long, int)},
+ * points prepared without a source are only counted.
+ */
+public class InfluxdbPartialWriteException extends RuntimeException {
+    private final int[] rejectedSources;
+    private final int rejectedPoints;
+
+    public InfluxdbPartialWriteException(String message, int[] rejectedSources, int rejectedPoints, Throwable cause) {
+        super(message, cause);
+        this.rejectedSources = rejectedSources;
+        this.rejectedPoints = rejectedPoints;
+    }
+
+    /**
+     * Retrieve the sorted source indexes of the rejected points.
+     */
+    public int[] getRejectedSources() {
+        return this.rejectedSources;
+    }
+
+    /**
+     * Retrieve the number of rejected points, including the points prepared without a source.
+     */
+    public int getRejectedPoints() {
+        return this.rejectedPoints;
+    }
+
+    /**
+     * Combine the rejections of two endpoints written for the same batch.
+     */
+    InfluxdbPartialWriteException merge(InfluxdbPartialWriteException other) {
+        int[] sources = Arrays.copyOf(this.rejectedSources, this.rejectedSources.length + other.rejectedSources.length);
+        System.arraycopy(other.rejectedSources, 0, sources, this.rejectedSources.length, other.rejectedSources.length);
+        Arrays.sort(sources);
+        InfluxdbPartialWriteException merged = new InfluxdbPartialWriteException(this.getMessage() + "; " + other.getMessage(),
+                sources, this.rejectedPoints + other.rejectedPoints, this.getCause());
+        merged.addSuppressed(other);
+        return merged;
+    }
+}
@@ -0,0 +1,178 @@
+package com.shinet.storm.influxdb.client;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer holding InfluxDB line protocol, reused across batches.
+ */
+public final class LineProtocolBuffer {
+    private static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private byte[] buffer;
+    private int size;
+    private int lineCount;
+
+    public LineProtocolBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LineProtocolBuffer(int initialCapacity) {
+        this.buffer = new byte[Math.max(initialCapacity, 16)];
+    }
+
+    /**
+     * Retrieve the backing array, only the first {@link #size()} bytes are valid.
+     * @return the backing array
+     */
+    public byte[] array() {
+        return this.buffer;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Retrieve the number of complete lines (points) in the buffer.
+     * @return the number of lines
+     */
+    public int lineCount() {
+        return this.lineCount;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Forget the content but keep the allocated capacity.
+     */
+    public void reset() {
+        this.size = 0;
+        this.lineCount = 0;
+    }
+
+    /**
+     * Drop everything written after the given size, used to roll back a partially encoded point.
+     */
+    void truncate(int newSize) {
+        this.size = newSize;
+    }
+
+    void endLine() {
+        this.write((byte) '\n');
+        this.lineCount++;
+    }
+
+    void write(byte b) {
+        this.ensureCapacity(this.size + 1);
+        this.buffer[this.size++] = b;
+    }
+
+    void write(byte[] bytes) {
+        this.ensureCapacity(this.size + bytes.length);
+        System.arraycopy(bytes, 0, this.buffer, this.size, bytes.length);
+        this.size += bytes.length;
+    }
+
+    void write(ByteBuffer source, int length) {
+        this.ensureCapacity(this.size + length);
+        source.get(this.buffer, this.size, length);
+        this.size += length;
+    }
+
+    /**
+     * Append lines that were encoded elsewhere, e.g. read back from a spool segment.
+     */
+    void writeLines(ByteBuffer source, int length, int lines) {
+        this.write(source, length);
+        this.lineCount += lines;
+    }
+
+    void writeAscii(String s) {
+        int length = s.length();
+        this.ensureCapacity(this.size + length);
+        for (int i = 0; i < length; i++) {
+            this.buffer[this.size++] = (byte) s.charAt(i);
+        }
+    }
+
+    void writeBoolean(boolean value) {
+        this.writeAscii(value ? "true" : "false");
+    }
+
+    /**
+     * Write the decimal digits of a long without going through a String.
+     */
+    void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            this.writeAscii("-9223372036854775808");
+            return;
+        }
+        if (value < 0) {
+            this.write((byte) '-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long bound = 10; digits < 19 && value >= bound; bound *= 10) {
+            digits++;
+        }
+        this.ensureCapacity(this.size + digits);
+        int position = this.size + digits;
+        do {
+            this.buffer[--position] = (byte) ('0' + (int) (value % 10));
+            value /= 10;
+        } while (value != 0);
+        this.size += digits;
+    }
+
+    /**
+     * Write a finite double, integral values take the allocation free long path.
+     */
+    void writeDouble(double value) {
+        if (value == (long) value && Math.abs(value) < 1e15) {
+            this.writeLong((long) value);
+        } else {
+            this.writeAscii(Double.toString(value));
+        }
+    }
+
+    /**
+     * Write a string as UTF-8, prefixing every character in escapedChars with a backslash.
+     */
+    void writeEscaped(String s, String escapedChars) {
+        int length = s.length();
+        this.ensureCapacity(this.size + length);
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (escapedChars.indexOf(c) >= 0) {
+                    this.write((byte) '\\');
+                }
+                this.write((byte) c);
+            } else if (c < 0x800) {
+                this.write((byte) (0xC0 | (c >> 6)));
+                this.write((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                this.write((byte) (0xF0 | (codePoint >> 18)));
+                this.write((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                this.write((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                this.write((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                this.write((byte) '?');
+            } else {
+                this.write((byte) (0xE0 | (c >> 12)));
+                this.write((byte) (0x80 | ((c >> 6) & 0x3F)));
+                this.write((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(capacity, this.buffer.length << 1));
+        }
+    }
+}
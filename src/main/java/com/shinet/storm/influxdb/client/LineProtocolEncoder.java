@@ -0,0 +1,294 @@
+package com.shinet.storm.influxdb.client;
+
+import com.shinet.storm.influxdb.UnsignedLong;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Encodes data points straight into a {@link LineProtocolBuffer}, without building {@link org.influxdb.dto.Point}s.
+ * Escaped measurement names and tag/field keys are cached. Series (measurement plus tag set) are cached in a bounded
+ * LRU as their escaped, sorted {@code measurement,tag=value} prefix, so steady-state encoding of a known series is
+ * a cache hit followed by the fields and the timestamp.
+ * Numbers are written without narrowing: Double and Float as floats, other numbers as integers ({@code i}) and
+ * {@link UnsignedLong} as unsigned integers ({@code u}). Unless typed values are enabled, integral values of the
+ * "value" field are written as floats, like the points written before typed values existed.
+ * Not thread safe, one encoder is used by the thread preparing the data points.
+ */
+public class LineProtocolEncoder {
+    static final String MEASUREMENT_ESCAPES = ", ";
+    static final String KEY_ESCAPES = ",= ";
+    static final String STRING_FIELD_ESCAPES = "\"\\";
+    private static final int MAX_CACHED_NAMES = 10000;
+    private static final String VALUE_FIELD = "value";
+    public static final int DEFAULT_MAX_CACHED_SERIES = 10000;
+
+    private final String measurementPrefix;
+    private final Map<String, byte[]> measurements = new HashMap<>();
+    private final Map<String, byte[]> keys = new HashMap<>();
+    private String[] sortedTagKeys = new String[16];
+    private final Map<SeriesKey, byte[]> series;
+    private final SeriesKey seriesProbe = new SeriesKey();
+    private final LineProtocolBuffer seriesScratch = new LineProtocolBuffer(256);
+    private final InfluxdbClientMetrics metrics;
+    private boolean typedValues;
+
+    public LineProtocolEncoder(String measurementPrefix) {
+        this(measurementPrefix, DEFAULT_MAX_CACHED_SERIES, null);
+    }
+
+    /**
+     * @param maxCachedSeries the number of series prefixes to keep, 0 to disable the series cache
+     * @param metrics receives the series cache hits, misses and evictions, may be null
+     */
+    public LineProtocolEncoder(String measurementPrefix, final int maxCachedSeries, final InfluxdbClientMetrics metrics) {
+        this.measurementPrefix = measurementPrefix == null ? "" : measurementPrefix;
+        this.metrics = metrics;
+        this.series = maxCachedSeries <= 0 ? null : new LinkedHashMap<SeriesKey, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<SeriesKey, byte[]> eldest) {
+                if (this.size() > maxCachedSeries) {
+                    if (metrics != null) {
+                        metrics.seriesCacheEvicted();
+                    }
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Write integral values of the "value" field as InfluxDB integers instead of floats. The field type of
+     * an existing measurement can't change, so only enable it for new measurements.
+     */
+    public LineProtocolEncoder withTypedValues(boolean typedValues) {
+        this.typedValues = typedValues;
+        return this;
+    }
+
+    /**
+     * Append one point, the value is written as the "value" field next to the other fields.
+     * A null value is left out, the point is then written with its other fields only.
+     * @return false when the point was discarded because the value is not finite or has an unsupported type
+     */
+    public boolean encode(LineProtocolBuffer out, String name, Map<String, String> tags, Map<String, Object> fields, Object value, long time) {
+        int start = out.size();
+        if (this.series != null) {
+            out.write(this.seriesPrefix(name, tags));
+        } else {
+            out.write(this.measurement(name));
+            this.writeTags(out, tags);
+        }
+        out.write((byte) ' ');
+
+        boolean hasField = false;
+        if (value != null && (fields == null || !fields.containsKey(VALUE_FIELD))) {
+            if (!(value instanceof Number || value instanceof String || value instanceof Boolean)
+                    || !this.writeField(out, VALUE_FIELD, value, false, this.typedValues)) {
+                out.truncate(start);
+                return false;
+            }
+            hasField = true;
+        }
+        if (fields != null) {
+            for (Map.Entry<String, Object> field : fields.entrySet()) {
+                hasField |= this.writeField(out, field.getKey(), field.getValue(), hasField, true);
+            }
+        }
+        if (!hasField) {
+            out.truncate(start);
+            return false;
+        }
+
+        out.write((byte) ' ');
+        out.writeLong(time);
+        out.endLine();
+        return true;
+    }
+
+    /**
+     * Retrieve the escaped {@code measurement,tag=value} prefix of a series from the cache, encoding it on a miss.
+     */
+    private byte[] seriesPrefix(String name, Map<String, String> tags) {
+        byte[] prefix = this.series.get(this.seriesProbe.set(name, tags));
+        this.seriesProbe.set(null, null);
+        if (prefix != null) {
+            if (this.metrics != null) {
+                this.metrics.seriesCacheHit();
+            }
+            return prefix;
+        }
+        if (this.metrics != null) {
+            this.metrics.seriesCacheMissed();
+        }
+        this.seriesScratch.reset();
+        this.seriesScratch.write(this.measurement(name));
+        this.writeTags(this.seriesScratch, tags);
+        prefix = Arrays.copyOf(this.seriesScratch.array(), this.seriesScratch.size());
+        // the key keeps its own copy, the tags map of a tuple may be reused by the producer
+        this.series.put(new SeriesKey().set(name, tags == null || tags.isEmpty()
+                ? Collections.<String, String>emptyMap() : new HashMap<>(tags)), prefix);
+        return prefix;
+    }
+
+    private void writeTags(LineProtocolBuffer out, Map<String, String> tags) {
+        if (tags == null || tags.isEmpty()) {
+            return;
+        }
+        // InfluxDB indexes series fastest when tags arrive sorted by key
+        if (tags instanceof SortedMap && ((SortedMap) tags).comparator() == null) {
+            for (Map.Entry<String, String> tag : tags.entrySet()) {
+                this.writeTag(out, tag.getKey(), tag.getValue());
+            }
+            return;
+        }
+        int tagCount = tags.size();
+        if (this.sortedTagKeys.length < tagCount) {
+            this.sortedTagKeys = new String[Math.max(tagCount, this.sortedTagKeys.length << 1)];
+        }
+        int i = 0;
+        for (String key : tags.keySet()) {
+            this.sortedTagKeys[i++] = key;
+        }
+        Arrays.sort(this.sortedTagKeys, 0, tagCount);
+        for (i = 0; i < tagCount; i++) {
+            String key = this.sortedTagKeys[i];
+            this.sortedTagKeys[i] = null;
+            this.writeTag(out, key, tags.get(key));
+        }
+    }
+
+    private void writeTag(LineProtocolBuffer out, String key, String value) {
+        if (key == null || value == null || value.isEmpty()) {
+            return;
+        }
+        out.write((byte) ',');
+        out.write(this.key(key));
+        out.write((byte) '=');
+        out.writeEscaped(value, KEY_ESCAPES);
+    }
+
+    /**
+     * @param integers write integral numbers as integers, otherwise as floats
+     * @return false when the field was left out because it is null or not finite
+     */
+    private boolean writeField(LineProtocolBuffer out, String key, Object value, boolean separator, boolean integers) {
+        if (key == null || value == null) {
+            return false;
+        }
+        if (value instanceof Double || value instanceof Float || value instanceof BigDecimal) {
+            double doubleValue = ((Number) value).doubleValue();
+            if (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue)) {
+                return false;
+            }
+            this.writeFieldKey(out, key, separator);
+            out.writeDouble(doubleValue);
+        } else if (value instanceof UnsignedLong) {
+            this.writeFieldKey(out, key, separator);
+            out.writeAscii(value.toString());
+            out.write((byte) 'u');
+        } else if (value instanceof Number) {
+            this.writeFieldKey(out, key, separator);
+            if (integers) {
+                out.writeLong(((Number) value).longValue());
+                out.write((byte) 'i');
+            } else {
+                out.writeDouble((double) ((Number) value).longValue());
+            }
+        } else if (value instanceof Boolean) {
+            this.writeFieldKey(out, key, separator);
+            out.writeBoolean((Boolean) value);
+        } else {
+            this.writeFieldKey(out, key, separator);
+            this.writeString(out, value.toString());
+        }
+        return true;
+    }
+
+    private void writeFieldKey(LineProtocolBuffer out, String key, boolean separator) {
+        if (separator) {
+            out.write((byte) ',');
+        }
+        out.write(this.key(key));
+        out.write((byte) '=');
+    }
+
+    private void writeString(LineProtocolBuffer out, String value) {
+        out.write((byte) '"');
+        out.writeEscaped(value, STRING_FIELD_ESCAPES);
+        out.write((byte) '"');
+    }
+
+    private byte[] measurement(String name) {
+        byte[] escaped = this.measurements.get(name);
+        if (escaped == null) {
+            if (this.measurements.size() >= MAX_CACHED_NAMES) {
+                this.measurements.clear();
+            }
+            escaped = escape(this.measurementPrefix + name, MEASUREMENT_ESCAPES);
+            this.measurements.put(name, escaped);
+        }
+        return escaped;
+    }
+
+    private byte[] key(String key) {
+        byte[] escaped = this.keys.get(key);
+        if (escaped == null) {
+            if (this.keys.size() >= MAX_CACHED_NAMES) {
+                this.keys.clear();
+            }
+            escaped = escape(key, KEY_ESCAPES);
+            this.keys.put(key, escaped);
+        }
+        return escaped;
+    }
+
+    /**
+     * Measurement name and tag set of a series, the probe instance is reused for lookups.
+     */
+    private static final class SeriesKey {
+        private String name;
+        private Map<String, String> tags;
+        private int hash;
+
+        private SeriesKey set(String name, Map<String, String> tags) {
+            this.name = name;
+            this.tags = tags == null ? Collections.<String, String>emptyMap() : tags;
+            this.hash = name == null ? 0 : 31 * name.hashCode() + this.tags.hashCode();
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SeriesKey)) {
+                return false;
+            }
+            SeriesKey that = (SeriesKey) o;
+            return this.hash == that.hash && this.name.equals(that.name) && this.tags.equals(that.tags);
+        }
+    }
+
+    static byte[] escape(String s, String escapedChars) {
+        StringBuilder escaped = new StringBuilder(s.length() + 8);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (escapedChars.indexOf(c) >= 0) {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
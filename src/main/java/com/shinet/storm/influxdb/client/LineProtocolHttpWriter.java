@@ -0,0 +1,82 @@
+package com.shinet.storm.influxdb.client;
+
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.influxdb.InfluxDB.ConsistencyLevel;
+import org.influxdb.InfluxDBException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * POSTs an encoded {@link LineProtocolBuffer} to the InfluxDB /write endpoint, gzipped at the transport's level
+ * when it is large enough.
+ * Thread safe, the underlying OkHttp client is shared by all writer threads.
+ */
+class LineProtocolHttpWriter {
+    private static final MediaType TEXT_PLAIN = MediaType.parse("text/plain; charset=utf-8");
+
+    private final OkHttpClient httpClient;
+    private final HttpUrl writeUrl;
+    private final HttpTransport transport;
+
+    LineProtocolHttpWriter(String influxdbUrl, String username, String password, HttpTransport transport) {
+        this.httpClient = transport.newClientBuilder().build();
+        HttpUrl.Builder url = HttpUrl.parse(influxdbUrl).newBuilder()
+                .addPathSegment("write")
+                .addQueryParameter("precision", "n");
+        if (!username.isEmpty() || !password.isEmpty()) {
+            url.addQueryParameter("u", username).addQueryParameter("p", password);
+        }
+        this.writeUrl = url.build();
+        this.transport = transport;
+    }
+
+    void write(String database, String retentionPolicy, ConsistencyLevel consistency, LineProtocolBuffer lines) {
+        HttpUrl url = this.writeUrl.newBuilder()
+                .addQueryParameter("db", database)
+                .addQueryParameter("rp", retentionPolicy)
+                .addQueryParameter("consistency", consistency.value())
+                .build();
+        Request.Builder request = new Request.Builder().url(url);
+        if (this.transport.shouldCompress(lines.size())) {
+            request.header("Content-Encoding", "gzip").post(RequestBody.create(TEXT_PLAIN, compress(lines, this.transport.getGzipLevel())));
+        } else {
+            request.post(RequestBody.create(TEXT_PLAIN, lines.array(), 0, lines.size()));
+        }
+
+        try (Response response = this.httpClient.newCall(request.build()).execute()) {
+            if (!response.isSuccessful()) {
+                ResponseBody body = response.body();
+                throw new InfluxdbHttpException(response.code(), body == null ? "" : body.string());
+            }
+        } catch (IOException e) {
+            throw new InfluxDBException(e);
+        }
+    }
+
+    void close() {
+        // the connection pool is the transport's, shared with the other endpoints
+        this.httpClient.dispatcher().executorService().shutdown();
+    }
+
+    private static byte[] compress(LineProtocolBuffer lines, final int level) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(lines.size() / 4, 64));
+        try (GZIPOutputStream gzipStream = new GZIPOutputStream(compressed) {
+            {
+                this.def.setLevel(level);
+            }
+        }) {
+            gzipStream.write(lines.array(), 0, lines.size());
+        } catch (IOException e) {
+            throw new InfluxDBException(e);
+        }
+        return compressed.toByteArray();
+    }
+}
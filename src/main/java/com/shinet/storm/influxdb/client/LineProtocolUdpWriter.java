@@ -0,0 +1,112 @@
+package com.shinet.storm.influxdb.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Sends an encoded {@link LineProtocolBuffer} to an InfluxDB UDP listener, packing whole lines into datagrams of
+ * at most maxDatagramBytes. Fire and forget: points lost on the way are not reported. The database, retention
+ * policy and precision are the ones configured on the listener, which must be nanoseconds.
+ * Thread safe, writes share one channel and one direct buffer.
+ */
+class LineProtocolUdpWriter {
+    private static final Logger LOG = LoggerFactory.getLogger(LineProtocolUdpWriter.class);
+    static final String SCHEME = "udp://";
+    private static final int MAX_DATAGRAM_BYTES = 65507;
+
+    private final InetSocketAddress address;
+    private final int maxDatagramBytes;
+    private final DatagramChannel channel;
+    private final ByteBuffer datagram;
+
+    LineProtocolUdpWriter(String influxdbUrl, int maxDatagramBytes) {
+        URI uri = URI.create(influxdbUrl);
+        if (uri.getHost() == null || uri.getPort() < 0) {
+            throw new IllegalArgumentException("Expected udp://host:port, got " + influxdbUrl);
+        }
+        if (maxDatagramBytes <= 0 || maxDatagramBytes > MAX_DATAGRAM_BYTES) {
+            throw new IllegalArgumentException("Datagram size must be between 1 and " + MAX_DATAGRAM_BYTES + ", got " + maxDatagramBytes);
+        }
+        this.address = new InetSocketAddress(uri.getHost(), uri.getPort());
+        this.maxDatagramBytes = maxDatagramBytes;
+        this.datagram = ByteBuffer.allocateDirect(maxDatagramBytes);
+        try {
+            this.channel = DatagramChannel.open();
+            this.channel.connect(this.address);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to open UDP channel to " + this.address, e);
+        }
+    }
+
+    static boolean isUdp(String influxdbUrl) {
+        return influxdbUrl.regionMatches(true, 0, SCHEME, 0, SCHEME.length());
+    }
+
+    synchronized void write(LineProtocolBuffer lines) {
+        byte[] array = lines.array();
+        int size = lines.size();
+        int start = 0;
+        while (start < size) {
+            // take whole lines while they fit, a line longer than a datagram is sent alone
+            int end = start;
+            while (end < size) {
+                int lineEnd = endOfLine(array, end, size);
+                if (lineEnd - start > this.maxDatagramBytes && end > start) {
+                    break;
+                }
+                end = lineEnd;
+            }
+            this.send(array, start, end - start);
+            start = end;
+        }
+    }
+
+    private void send(byte[] array, int offset, int length) {
+        if (length > MAX_DATAGRAM_BYTES) {
+            LOG.warn("{}: Dropping {} bytes of line protocol to {}, a point must fit in one datagram",
+                    new Object[]{this.getClass().getSimpleName(), length, this.address});
+            return;
+        }
+        ByteBuffer buffer;
+        if (length <= this.datagram.capacity()) {
+            buffer = this.datagram;
+            buffer.clear();
+            buffer.put(array, offset, length);
+            buffer.flip();
+        } else {
+            buffer = ByteBuffer.wrap(array, offset, length);
+        }
+        try {
+            this.channel.write(buffer);
+        } catch (PortUnreachableException e) {
+            // an ICMP error for an earlier datagram, nothing is listening on the port right now
+            LOG.debug("{}: Nothing listening on {}", this.getClass().getSimpleName(), this.address);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to send datagram to " + this.address, e);
+        }
+    }
+
+    private static int endOfLine(byte[] array, int from, int size) {
+        for (int i = from; i < size; i++) {
+            if (array[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return size;
+    }
+
+    void close() {
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            LOG.warn("{}: Unable to close UDP channel to {}", this.getClass().getSimpleName(), this.address, e);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.shinet.storm.influxdb.client;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of non negative longs with HDR style log-linear buckets: every power of two is split
+ * in {@value #SUB_BUCKETS} linear buckets, so the reported percentiles are within about 3% of the recorded values.
+ * Recording is a few atomic adds, taking a snapshot resets the histogram.
+ */
+public final class LogHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        this.counts.incrementAndGet(bucketOf(value));
+        this.sum.add(value);
+        this.max.accumulate(value);
+    }
+
+    /**
+     * Take the recorded values since the previous snapshot and reset the histogram.
+     * Values recorded while the snapshot is taken end up either in this snapshot or in the next one.
+     */
+    public Snapshot snapshotAndReset() {
+        long[] snapshotCounts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (this.counts.get(i) != 0) {
+                snapshotCounts[i] = this.counts.getAndSet(i, 0);
+                count += snapshotCounts[i];
+            }
+        }
+        return new Snapshot(snapshotCounts, count, this.sum.sumThenReset(), this.max.getThenReset());
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long lowestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    /**
+     * Recorded values of one reporting interval.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return this.count;
+        }
+
+        public long getMax() {
+            return this.max;
+        }
+
+        public double getMean() {
+            return this.count == 0 ? 0 : (double) this.sum / this.count;
+        }
+
+        /**
+         * Retrieve the value at the given quantile, between 0 and 1, as the middle of its bucket.
+         */
+        public double getValue(double quantile) {
+            if (this.count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * this.count);
+            long seen = 0;
+            for (int i = 0; i < this.counts.length; i++) {
+                seen += this.counts[i];
+                if (seen >= Math.max(rank, 1)) {
+                    long lowest = lowestValueOf(i);
+                    long width = i + 1 < this.counts.length ? lowestValueOf(i + 1) - lowest : 1;
+                    return Math.min(lowest + (width - 1) / 2.0, this.max);
+                }
+            }
+            return this.max;
+        }
+    }
+}
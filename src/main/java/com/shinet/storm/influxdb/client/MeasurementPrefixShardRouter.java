@@ -0,0 +1,56 @@
+package com.shinet.storm.influxdb.client;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Routes measurements by the longest matching prefix of an explicit prefix to endpoint map,
+ * measurements without a matching prefix are routed by the fallback router.
+ */
+public class MeasurementPrefixShardRouter implements ShardRouter {
+    private static final int MAX_CACHED_ROUTES = 10000;
+
+    private final String[] prefixes;
+    private final int[] prefixEndpoints;
+    private final ShardRouter fallback;
+    private final Map<String, Integer> routes = new HashMap<>();
+
+    public MeasurementPrefixShardRouter(List<String> endpoints, Map<String, String> prefixToEndpoint, ShardRouter fallback) {
+        this.prefixes = new String[prefixToEndpoint.size()];
+        this.prefixEndpoints = new int[prefixToEndpoint.size()];
+        int i = 0;
+        for (Map.Entry<String, String> prefix : prefixToEndpoint.entrySet()) {
+            int endpoint = endpoints.indexOf(prefix.getValue());
+            if (endpoint < 0) {
+                throw new IllegalArgumentException("Prefix " + prefix.getKey() + " is routed to unknown endpoint " + prefix.getValue());
+            }
+            this.prefixes[i] = prefix.getKey();
+            this.prefixEndpoints[i] = endpoint;
+            i++;
+        }
+        this.fallback = fallback;
+    }
+
+    @Override
+    public int route(String measurement, Map<String, String> tags) {
+        Integer route = this.routes.get(measurement);
+        if (route == null) {
+            int longestPrefix = -1;
+            for (int i = 0; i < this.prefixes.length; i++) {
+                if (measurement.startsWith(this.prefixes[i]) && (longestPrefix < 0 || this.prefixes[i].length() > this.prefixes[longestPrefix].length())) {
+                    longestPrefix = i;
+                }
+            }
+            if (longestPrefix < 0) {
+                return this.fallback.route(measurement, tags);
+            }
+            route = this.prefixEndpoints[longestPrefix];
+            if (this.routes.size() >= MAX_CACHED_ROUTES) {
+                this.routes.clear();
+            }
+            this.routes.put(measurement, route);
+        }
+        return route;
+    }
+}
@@ -0,0 +1,207 @@
+package com.shinet.storm.influxdb.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Maps the error InfluxDB answered to a write back to the lines it rejected.
+ * InfluxDB 1.x names the offending line text, measurement, field or tag; InfluxDB 2.x gives line numbers.
+ */
+final class PartialWriteErrors {
+    private static final Pattern LINE_NUMBER = Pattern.compile("line (\\d+):");
+    private static final Pattern UNABLE_TO_PARSE = Pattern.compile("unable to parse '(.*?)': ");
+    private static final Pattern FIELD_TYPE_CONFLICT = Pattern.compile(
+            "field type conflict: input field \"(.*?)\" on measurement \"(.*?)\" is type (\\w+)");
+    private static final Pattern TAG_VALUE_LIMIT = Pattern.compile(
+            "max-values-per-tag limit exceeded \\(\\d+/\\d+\\): measurement=\"(.*?)\" tag=\"(.*?)\" value=\"(.*?)\"");
+    private static final String BEYOND_RETENTION_POLICY = "points beyond retention policy dropped=";
+
+    private PartialWriteErrors() {
+    }
+
+    /**
+     * Find the lines the error refers to. Every line error must map back to at least one line of the write,
+     * otherwise the rejected points cannot be told apart and the whole write is reported as failed.
+     * @param message the error InfluxDB answered
+     * @param lines the lines of the rejected write, in request order
+     * @return the indexes of the rejected lines, empty when the rejected points were dropped for good
+     *         (beyond the retention policy), null when the error is not a partial write of identifiable lines
+     */
+    static BitSet rejectedLines(String message, String[] lines) {
+        if (message == null) {
+            return null;
+        }
+        BitSet rejected = new BitSet(lines.length);
+        boolean identified = false;
+
+        Matcher lineNumber = LINE_NUMBER.matcher(message);
+        while (lineNumber.find()) {
+            int line = Integer.parseInt(lineNumber.group(1)) - 1;
+            if (line < 0 || line >= lines.length) {
+                return null;
+            }
+            rejected.set(line);
+            identified = true;
+        }
+        Matcher unableToParse = UNABLE_TO_PARSE.matcher(message);
+        while (unableToParse.find()) {
+            final String text = unableToParse.group(1);
+            if (!reject(rejected, lines, line -> line.equals(text))) {
+                return null;
+            }
+            identified = true;
+        }
+        Matcher fieldTypeConflict = FIELD_TYPE_CONFLICT.matcher(message);
+        while (fieldTypeConflict.find()) {
+            final String field = fieldTypeConflict.group(1);
+            final String measurement = fieldTypeConflict.group(2);
+            final String type = fieldTypeConflict.group(3);
+            if (!reject(rejected, lines, line -> measurement.equals(measurement(line)) && type.equals(fieldType(section(line, 1), field)))) {
+                return null;
+            }
+            identified = true;
+        }
+        Matcher tagValueLimit = TAG_VALUE_LIMIT.matcher(message);
+        while (tagValueLimit.find()) {
+            final String measurement = tagValueLimit.group(1);
+            final String tag = tagValueLimit.group(2);
+            final String tagValue = tagValueLimit.group(3);
+            if (!reject(rejected, lines, line -> measurement.equals(measurement(line)) && hasKey(section(line, 0), tag, tagValue))) {
+                return null;
+            }
+            identified = true;
+        }
+        // only points beyond the retention policy are dropped without naming their lines
+        return identified || message.contains(BEYOND_RETENTION_POLICY) ? rejected : null;
+    }
+
+    /**
+     * Mark the lines matching an error.
+     * @return false when no line matches
+     */
+    private static boolean reject(BitSet rejected, String[] lines, Predicate<String> matches) {
+        boolean found = false;
+        for (int i = 0; i < lines.length; i++) {
+            if (matches.test(lines[i])) {
+                rejected.set(i);
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Split an encoded buffer back into its lines, only used on the error path.
+     */
+    static String[] lines(LineProtocolBuffer buffer) {
+        return lines(new String(buffer.array(), 0, buffer.size(), StandardCharsets.UTF_8));
+    }
+
+    static String[] lines(String lineProtocol) {
+        return lineProtocol.isEmpty() ? new String[0] : lineProtocol.split("\n");
+    }
+
+    /**
+     * Retrieve the unescaped measurement of a line.
+     */
+    private static String measurement(String line) {
+        StringBuilder measurement = new StringBuilder();
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && i + 1 < line.length()) {
+                measurement.append(line.charAt(++i));
+            } else if (c == ',' || c == ' ') {
+                break;
+            } else {
+                measurement.append(c);
+            }
+        }
+        return measurement.toString();
+    }
+
+    /**
+     * Retrieve the series key (section 0, measurement and tags) or the field set (section 1) of a line,
+     * still escaped and with a leading ',' so every key can be looked up as ",key=".
+     */
+    private static String section(String line, int section) {
+        int start = 0;
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ' ' && !quoted) {
+                if (section == 0) {
+                    return line.substring(0, i);
+                }
+                if (start > 0) {
+                    return "," + line.substring(start, i);
+                }
+                start = i + 1;
+            }
+        }
+        return section == 0 ? line : "," + line.substring(start);
+    }
+
+    /**
+     * Retrieve the InfluxDB type name of a field of the field set, null when the line has no such field.
+     */
+    private static String fieldType(String fieldSet, String field) {
+        StringBuilder key = new StringBuilder(",");
+        appendEscaped(key, field);
+        key.append('=');
+        int index = fieldSet.indexOf(key.toString());
+        if (index < 0 || index + key.length() >= fieldSet.length()) {
+            return null;
+        }
+        char first = fieldSet.charAt(index + key.length());
+        if (first == '"') {
+            return "string";
+        }
+        int end = fieldSet.indexOf(',', index + key.length());
+        String value = fieldSet.substring(index + key.length(), end < 0 ? fieldSet.length() : end);
+        if (value.endsWith("i")) {
+            return "integer";
+        } else if (value.endsWith("u")) {
+            return "unsigned";
+        } else if (first == 't' || first == 'T' || first == 'f' || first == 'F') {
+            return "boolean";
+        }
+        return "float";
+    }
+
+    /**
+     * Look up the tag ",key=value" in a series key.
+     */
+    private static boolean hasKey(String section, String key, String tagValue) {
+        StringBuilder pair = new StringBuilder(",");
+        appendEscaped(pair, key);
+        pair.append('=');
+        appendEscaped(pair, tagValue);
+        int from = 0;
+        int index;
+        while ((index = section.indexOf(pair.toString(), from)) >= 0) {
+            int end = index + pair.length();
+            if (end == section.length() || section.charAt(end) == ',') {
+                return true;
+            }
+            from = index + 1;
+        }
+        return false;
+    }
+
+    private static void appendEscaped(StringBuilder out, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == ',' || c == ' ' || c == '=') {
+                out.append('\\');
+            }
+            out.append(c);
+        }
+    }
+}
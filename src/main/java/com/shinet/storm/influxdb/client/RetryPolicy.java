@@ -0,0 +1,59 @@
+package com.shinet.storm.influxdb.client;
+
+import org.influxdb.InfluxDBException;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether and when a failed write is attempted again: only transient errors (5xx responses, timeouts,
+ * connection resets) are retried, with an exponential backoff and full jitter, within maxAttempts and maxRetryMillis.
+ * Rejected points and 4xx errors would fail the same way again and are never retried.
+ */
+final class RetryPolicy {
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final long maxRetryNanos;
+
+    RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis, long maxRetryMillis) {
+        this.maxAttempts = Math.max(maxAttempts, 1);
+        this.initialBackoffMillis = Math.max(initialBackoffMillis, 1);
+        this.maxBackoffMillis = Math.max(maxBackoffMillis, this.initialBackoffMillis);
+        this.maxRetryNanos = maxRetryMillis * 1000000L;
+    }
+
+    boolean isEnabled() {
+        return this.maxAttempts > 1;
+    }
+
+    static boolean isRetryable(RuntimeException error) {
+        if (error instanceof InfluxdbPartialWriteException) {
+            return false;
+        }
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException) {
+                return true;
+            }
+        }
+        return error instanceof InfluxDBException && ((InfluxDBException) error).isRetryWorth();
+    }
+
+    /**
+     * Retrieve the backoff before the next attempt.
+     * @param attempt the number of attempts made so far
+     * @param startNanos the start of the first attempt
+     * @return the backoff in milliseconds, -1 when the write must not be attempted again
+     */
+    long backoffMillis(int attempt, long startNanos) {
+        if (attempt >= this.maxAttempts) {
+            return -1;
+        }
+        long ceiling = this.initialBackoffMillis << Math.min(attempt - 1, 30);
+        long backoff = ThreadLocalRandom.current().nextLong(Math.min(ceiling, this.maxBackoffMillis) + 1);
+        if (System.nanoTime() + backoff * 1000000L - startNanos > this.maxRetryNanos) {
+            return -1;
+        }
+        return backoff;
+    }
+}
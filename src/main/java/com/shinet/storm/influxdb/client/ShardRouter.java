@@ -0,0 +1,14 @@
+package com.shinet.storm.influxdb.client;
+
+import java.util.Map;
+
+/**
+ * Chooses the endpoint a data point is written to when the client writes to several InfluxDB nodes.
+ */
+public interface ShardRouter {
+    /**
+     * @param measurement the metric name, without measurement prefix
+     * @return the index of the endpoint in the configured endpoint list
+     */
+    int route(String measurement, Map<String, String> tags);
+}
@@ -0,0 +1,360 @@
+package com.shinet.storm.influxdb.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writer shared by every {@link InfluxdbClient} of a worker built with the same configuration: the clients keep
+ * encoding their own points and hand the detached batches over a lock free queue, a few I/O threads coalesce the
+ * queued batches into one request per endpoint, database and retention policy of up to maxRequestBytes.
+ * Fewer, larger requests on one set of connections, points rejected in a coalesced request are reported back
+ * to the batch they came from. A failed request is attempted again from a timer once its backoff elapsed, so the
+ * I/O threads never sleep on one failing endpoint. Reference counted, the last client closing releases the connections,
+ * the requests still waiting on a backoff then fail so that every batch is reported.
+ */
+final class SharedInfluxdbWriter {
+    private static final Logger LOG = LoggerFactory.getLogger(SharedInfluxdbWriter.class);
+    private static final Map<Map<Object, Object>, SharedInfluxdbWriter> WRITERS = new HashMap<>();
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Map<Object, Object> config;
+    private final InfluxdbClient connection;
+    private final long maxRequestBytes;
+    private final Queue<Submission> submissions = new ConcurrentLinkedQueue<>();
+    private final Queue<Request> retries = new ConcurrentLinkedQueue<>();
+    private final Set<Request> backingOff = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService retryTimer;
+    private final AtomicBoolean metricsTaken = new AtomicBoolean();
+    private final Thread[] ioThreads;
+    private final AtomicIntegerArray parked;
+    private volatile boolean running = true;
+    private int references;
+
+    private SharedInfluxdbWriter(Map<Object, Object> config, int ioThreads, long maxRequestBytes) {
+        this.config = config;
+        Map<Object, Object> connectionConfig = new HashMap<>(config);
+        connectionConfig.put(InfluxdbClient.KEY_INFLUXDB_SHARED_WRITER, false);
+        connectionConfig.put(InfluxdbClient.KEY_INFLUXDB_LINE_PROTOCOL, true);
+        this.connection = new InfluxdbClient(connectionConfig);
+        this.maxRequestBytes = maxRequestBytes;
+        this.retryTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "influxdb-shared-writer-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ioThreads = new Thread[Math.max(ioThreads, 1)];
+        this.parked = new AtomicIntegerArray(this.ioThreads.length);
+        for (int i = 0; i < this.ioThreads.length; i++) {
+            final int index = i;
+            this.ioThreads[i] = new Thread(() -> this.writeSubmissions(index), "influxdb-shared-writer-" + (i + 1));
+            this.ioThreads[i].setDaemon(true);
+            this.ioThreads[i].start();
+        }
+    }
+
+    /**
+     * Retrieve the writer of the configuration, creating it on first use.
+     */
+    static SharedInfluxdbWriter acquire(Map<Object, Object> config, int ioThreads, long maxRequestBytes) {
+        synchronized (WRITERS) {
+            SharedInfluxdbWriter writer = WRITERS.get(config);
+            if (writer == null) {
+                LOG.info("{}: Starting shared writer with {} I/O threads", SharedInfluxdbWriter.class.getSimpleName(), ioThreads);
+                writer = new SharedInfluxdbWriter(new HashMap<>(config), ioThreads, maxRequestBytes);
+                WRITERS.put(writer.config, writer);
+            }
+            writer.references++;
+            return writer;
+        }
+    }
+
+    /**
+     * Release a reference taken with {@link #acquire}, the last release writes the queued batches, fails the requests
+     * still waiting on a backoff and closes the connections.
+     */
+    void release() {
+        synchronized (WRITERS) {
+            if (--this.references > 0) {
+                return;
+            }
+            WRITERS.remove(this.config);
+        }
+        this.running = false;
+        this.wakeUp(true);
+        for (Thread ioThread : this.ioThreads) {
+            try {
+                ioThread.join(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        this.retryTimer.shutdownNow();
+        try {
+            this.retryTimer.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        UncheckedIOException closed = closedError();
+        for (Request request : this.backingOff) {
+            if (this.backingOff.remove(request)) {
+                this.complete(request, closed);
+            }
+        }
+        Request retry;
+        while ((retry = this.retries.poll()) != null) {
+            this.complete(retry, closed);
+        }
+        this.connection.closeConnection();
+    }
+
+    InfluxdbEndpoint[] getEndpoints() {
+        return this.connection.getEndpoints();
+    }
+
+    /**
+     * Retrieve the metrics of the coalesced requests for the first caller only, so that they are reported once per worker.
+     */
+    InfluxdbClientMetrics takeMetrics() {
+        return this.metricsTaken.compareAndSet(false, true) ? this.connection.getMetrics() : null;
+    }
+
+    /**
+     * Queue a batch detached from a client, its buffers are given back to the client once the coalesced request
+     * holding them is written or failed.
+     * The listener is called on an I/O thread as each part is written.
+     */
+    void submit(InfluxdbClient client, InfluxdbBatch batch, InfluxdbBatch.PartListener listener) {
+        Submission submission = new Submission(client, batch, listener);
+        this.submissions.offer(submission);
+        this.wakeUp(false);
+    }
+
+    private void wakeUp(boolean all) {
+        for (int i = 0; i < this.ioThreads.length; i++) {
+            if (all || this.parked.get(i) != 0) {
+                LockSupport.unpark(this.ioThreads[i]);
+                if (!all) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private void writeSubmissions(int index) {
+        // once released, the requests waiting on a backoff are failed by release() rather than waited for
+        while (this.running || !this.submissions.isEmpty() || !this.retries.isEmpty()) {
+            Request retry = this.retries.poll();
+            if (retry != null) {
+                this.write(retry);
+                continue;
+            }
+            Submission first = this.submissions.poll();
+            if (first == null) {
+                this.parked.set(index, 1);
+                if (this.submissions.isEmpty() && this.retries.isEmpty()) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                this.parked.set(index, 0);
+                continue;
+            }
+            // coalesce what is queued right now, requests grow with the backlog
+            Map<RequestKey, List<Entry>> requests = new LinkedHashMap<>();
+            long bytes = 0;
+            Submission submission = first;
+            while (submission != null) {
+                for (int i = 0; i < submission.batch.parts.size(); i++) {
+                    InfluxdbBatch.Part part = submission.batch.parts.get(i);
+                    requests.computeIfAbsent(new RequestKey(part), key -> new ArrayList<>()).add(new Entry(submission, i, part));
+                    bytes += part.lineProtocol.size();
+                }
+                submission = bytes < this.maxRequestBytes ? this.submissions.poll() : null;
+            }
+            for (Map.Entry<RequestKey, List<Entry>> request : requests.entrySet()) {
+                this.write(this.merge(request.getKey(), request.getValue()));
+            }
+        }
+    }
+
+    private Request merge(RequestKey key, List<Entry> entries) {
+        InfluxdbBatch.Part merged = new InfluxdbBatch.Part(key.endpoint, key.database, key.retentionPolicy,
+                this.connection.takeIdleBuffer());
+        int[] offsets = new int[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            InfluxdbBatch.Part part = entries.get(i).part;
+            offsets[i] = merged.size();
+            merged.lineProtocol.writeLines(ByteBuffer.wrap(part.lineProtocol.array(), 0, part.lineProtocol.size()),
+                    part.lineProtocol.size(), part.size());
+            for (int line = 0; line < part.size(); line++) {
+                // the source of a merged line is its index, mapped back to the part it came from on rejection
+                merged.lineAdded(offsets[i] + line);
+            }
+        }
+        return new Request(merged, entries, offsets, this.connection.getMetrics().writeStarted());
+    }
+
+    /**
+     * Attempt a request, scheduling the next attempt after the backoff of a transient failure.
+     */
+    private void write(Request request) {
+        long backoffMillis;
+        try {
+            backoffMillis = this.connection.attemptWrite(request.merged, ++request.attempts, request.startNanos);
+        } catch (RuntimeException e) {
+            this.complete(request, e);
+            return;
+        }
+        if (backoffMillis < 0) {
+            this.complete(request, null);
+            return;
+        }
+        this.backingOff.add(request);
+        try {
+            this.retryTimer.schedule(() -> {
+                // release() fails the requests it removes first
+                if (this.backingOff.remove(request)) {
+                    this.retries.offer(request);
+                    this.wakeUp(false);
+                }
+            }, backoffMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the writer is closing, fail the request unless release() already did
+            if (this.backingOff.remove(request)) {
+                this.complete(request, closedError());
+            }
+        }
+    }
+
+    private static UncheckedIOException closedError() {
+        // retryable, so that the points are spooled when the endpoint has a spool
+        return new UncheckedIOException(new InterruptedIOException("Shared writer closed while retrying a write"));
+    }
+
+    private void complete(Request request, RuntimeException writeError) {
+        List<Entry> entries = request.entries;
+        int[] entryPoints = new int[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            entryPoints[i] = entries.get(i).part.size();
+        }
+        RuntimeException error = this.connection.completePart(request.merged, request.startNanos, writeError);
+        BitSet rejectedLines = null;
+        if (error instanceof InfluxdbPartialWriteException) {
+            rejectedLines = new BitSet();
+            for (int line : ((InfluxdbPartialWriteException) error).getRejectedSources()) {
+                rejectedLines.set(line);
+            }
+        }
+
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            RuntimeException entryError = error;
+            if (rejectedLines != null) {
+                BitSet entryRejectedLines = rejectedLines.get(request.offsets[i], request.offsets[i] + entryPoints[i]);
+                entryError = entryRejectedLines.isEmpty() ? null : new InfluxdbPartialWriteException(error.getMessage(),
+                        entry.part.sourcesOf(entryRejectedLines), entryRejectedLines.cardinality(), error.getCause());
+            }
+            // the write metrics of a client cover its own points, with the latency of the coalesced request
+            entry.submission.client.getMetrics().recordWrite(request.startNanos, entryPoints[i],
+                    entry.part.lineProtocol.size(), writeError == null && entryError == null);
+            entry.submission.client.recycle(entry.part);
+            entry.submission.listener.partWritten(entry.partIndex, entryError);
+        }
+    }
+
+    /**
+     * Endpoint, database and retention policy of a coalesced request.
+     */
+    private static final class RequestKey {
+        private final InfluxdbEndpoint endpoint;
+        private final String database;
+        private final String retentionPolicy;
+
+        private RequestKey(InfluxdbBatch.Part part) {
+            this.endpoint = part.endpoint;
+            this.database = part.database;
+            this.retentionPolicy = part.retentionPolicy;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RequestKey)) {
+                return false;
+            }
+            RequestKey that = (RequestKey) o;
+            return this.endpoint == that.endpoint && this.database.equals(that.database)
+                    && Objects.equals(this.retentionPolicy, that.retentionPolicy);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * System.identityHashCode(this.endpoint) + this.database.hashCode()) + Objects.hashCode(this.retentionPolicy);
+        }
+    }
+
+    /**
+     * The parts of several submissions merged into one request, and the attempts made so far.
+     */
+    private static final class Request {
+        private final InfluxdbBatch.Part merged;
+        private final List<Entry> entries;
+        private final int[] offsets;
+        private final long startNanos;
+        private int attempts;
+
+        private Request(InfluxdbBatch.Part merged, List<Entry> entries, int[] offsets, long startNanos) {
+            this.merged = merged;
+            this.entries = entries;
+            this.offsets = offsets;
+            this.startNanos = startNanos;
+        }
+    }
+
+    private static final class Entry {
+        private final Submission submission;
+        private final int partIndex;
+        private final InfluxdbBatch.Part part;
+
+        private Entry(Submission submission, int partIndex, InfluxdbBatch.Part part) {
+            this.submission = submission;
+            this.partIndex = partIndex;
+            this.part = part;
+        }
+    }
+
+    /**
+     * A batch of one client, each of its parts is reported to the listener once the request holding it is written.
+     */
+    private static final class Submission {
+        private final InfluxdbClient client;
+        private final InfluxdbBatch batch;
+        private final InfluxdbBatch.PartListener listener;
+
+        private Submission(InfluxdbClient client, InfluxdbBatch batch, InfluxdbBatch.PartListener listener) {
+            this.client = client;
+            this.batch = batch;
+            this.listener = listener;
+        }
+    }
+}
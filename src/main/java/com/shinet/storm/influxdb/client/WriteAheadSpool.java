@@ -0,0 +1,279 @@
+package com.shinet.storm.influxdb.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * Durable spool for batches that could not be written to InfluxDB.
+ * Batches are appended to segment files with {@link FileChannel} and forced to disk before {@link #append} returns.
+ * A background drainer replays the segments oldest first once InfluxDB answers again, and the oldest
+ * segments are evicted when the spool grows over its size cap.
+ * Each client locks its own slot directory below the configured directory, so several tasks of one worker
+ * can share the same configuration and a restarted task picks up the segments left behind.
+ */
+public class WriteAheadSpool {
+    private static final Logger LOG = LoggerFactory.getLogger(WriteAheadSpool.class);
+    private static final String SEGMENT_PREFIX = "spool-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int RECORD_HEADER_BYTES = 8;
+
+    /**
+     * Receives the spooled batches while draining.
+     */
+    public interface Replayer {
+        void replay(String database, String retentionPolicy, LineProtocolBuffer lines);
+    }
+
+    private final File slotDirectory;
+    private final long maxBytes;
+    private final long segmentBytes;
+    private final FileChannel lockChannel;
+    private final FileLock slotLock;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final ScheduledExecutorService drainer;
+    private final CRC32 appendCrc = new CRC32();
+    private long spooledBytes;
+    private long nextSequence;
+    private FileChannel activeChannel;
+
+    public WriteAheadSpool(File directory, long maxBytes, long segmentBytes) throws IOException {
+        this.maxBytes = maxBytes;
+        this.segmentBytes = Math.min(segmentBytes, maxBytes);
+
+        File slot = null;
+        FileChannel channel = null;
+        FileLock lock = null;
+        for (int i = 0; lock == null; i++) {
+            slot = new File(directory, String.valueOf(i));
+            Files.createDirectories(slot.toPath());
+            channel = FileChannel.open(new File(slot, "lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                channel.close();
+            }
+        }
+        this.slotDirectory = slot;
+        this.lockChannel = channel;
+        this.slotLock = lock;
+
+        File[] files = this.slotDirectory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        Arrays.sort(files);
+        for (File file : files) {
+            Segment segment = new Segment(file);
+            this.segments.addLast(segment);
+            this.spooledBytes += file.length();
+            this.nextSequence = segment.sequence + 1;
+        }
+        if (!this.segments.isEmpty()) {
+            LOG.info("{}: Recovered {} bytes in {} segments from {}",
+                    new Object[]{this.getClass().getSimpleName(), this.spooledBytes, this.segments.size(), this.slotDirectory});
+        }
+
+        this.drainer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "influxdb-spool-drainer-" + this.slotDirectory.getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start replaying the spooled batches every drainIntervalSeconds, as long as healthCheck answers true.
+     */
+    public void startDraining(final Replayer replayer, final BooleanSupplier healthCheck, long drainIntervalSeconds) {
+        this.drainer.scheduleWithFixedDelay(() -> {
+            try {
+                if (this.getSpooledBytes() > 0 && healthCheck.getAsBoolean()) {
+                    this.drain(replayer);
+                }
+            } catch (RuntimeException e) {
+                LOG.warn("{}: Spool replay stopped, will retry: {}", this.getClass().getSimpleName(), e.getMessage());
+            }
+        }, drainIntervalSeconds, drainIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Append a batch and force it to disk.
+     * @throws IOException when the batch could not be made durable
+     */
+    public synchronized void append(String database, String retentionPolicy, byte[] lines, int length, int lineCount) throws IOException {
+        byte[] databaseBytes = database.getBytes(StandardCharsets.UTF_8);
+        byte[] retentionPolicyBytes = retentionPolicy.getBytes(StandardCharsets.UTF_8);
+        int payloadBytes = 4 + 2 + databaseBytes.length + 2 + retentionPolicyBytes.length + length;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + payloadBytes);
+        record.position(RECORD_HEADER_BYTES);
+        record.putInt(lineCount);
+        record.putShort((short) databaseBytes.length).put(databaseBytes);
+        record.putShort((short) retentionPolicyBytes.length).put(retentionPolicyBytes);
+        record.put(lines, 0, length);
+        this.appendCrc.reset();
+        this.appendCrc.update(record.array(), RECORD_HEADER_BYTES, payloadBytes);
+        record.putInt(0, payloadBytes);
+        record.putInt(4, (int) this.appendCrc.getValue());
+        record.flip();
+
+        this.evictFor(record.remaining());
+        if (this.activeChannel == null || this.activeChannel.size() >= this.segmentBytes) {
+            this.rollSegment();
+        }
+        while (record.hasRemaining()) {
+            this.activeChannel.write(record);
+        }
+        this.activeChannel.force(false);
+        this.segments.peekLast().bytes += record.limit();
+        this.spooledBytes += record.limit();
+    }
+
+    public synchronized long getSpooledBytes() {
+        return this.spooledBytes;
+    }
+
+    /**
+     * Replay the segments oldest first, stopping at the first batch the replayer rejects.
+     */
+    void drain(Replayer replayer) {
+        LineProtocolBuffer lines = new LineProtocolBuffer();
+        Segment segment;
+        while ((segment = this.oldestSegment()) != null) {
+            ByteBuffer content;
+            try {
+                content = ByteBuffer.wrap(Files.readAllBytes(segment.file.toPath()));
+            } catch (IOException e) {
+                LOG.error("{}: Unable to read spool segment {}, dropping it", this.getClass().getSimpleName(), segment.file, e);
+                this.removeSegment(segment);
+                continue;
+            }
+            content.position((int) Math.min(segment.replayedBytes, content.limit()));
+            CRC32 crc = new CRC32();
+            while (content.remaining() >= RECORD_HEADER_BYTES) {
+                int recordStart = content.position();
+                int payloadBytes = content.getInt();
+                int checksum = content.getInt();
+                if (payloadBytes < 0 || payloadBytes > content.remaining()) {
+                    LOG.warn("{}: Truncated record at {} in {}", new Object[]{this.getClass().getSimpleName(), recordStart, segment.file});
+                    break;
+                }
+                crc.reset();
+                crc.update(content.array(), content.position(), payloadBytes);
+                if ((int) crc.getValue() != checksum) {
+                    LOG.warn("{}: Corrupt record at {} in {}", new Object[]{this.getClass().getSimpleName(), recordStart, segment.file});
+                    break;
+                }
+                int payloadEnd = content.position() + payloadBytes;
+                int lineCount = content.getInt();
+                String database = readString(content);
+                String retentionPolicy = readString(content);
+                lines.reset();
+                lines.writeLines(content, payloadEnd - content.position(), lineCount);
+
+                replayer.replay(database, retentionPolicy, lines);
+                segment.replayedBytes = payloadEnd;
+            }
+            LOG.info("{}: Replayed spool segment {}", this.getClass().getSimpleName(), segment.file);
+            this.removeSegment(segment);
+        }
+    }
+
+    public void close() {
+        this.drainer.shutdownNow();
+        synchronized (this) {
+            try {
+                if (this.activeChannel != null) {
+                    this.activeChannel.close();
+                }
+                this.slotLock.release();
+                this.lockChannel.close();
+            } catch (IOException e) {
+                LOG.warn("{}: Unable to close spool {}", this.getClass().getSimpleName(), this.slotDirectory, e);
+            }
+        }
+    }
+
+    /**
+     * Retrieve the oldest segment, sealing the active one when it is the only one left.
+     */
+    private synchronized Segment oldestSegment() {
+        Segment oldest = this.segments.peekFirst();
+        if (oldest != null && oldest == this.segments.peekLast() && this.activeChannel != null) {
+            try {
+                this.activeChannel.close();
+            } catch (IOException e) {
+                LOG.warn("{}: Unable to close spool segment {}", this.getClass().getSimpleName(), oldest.file, e);
+            }
+            this.activeChannel = null;
+        }
+        return oldest;
+    }
+
+    private synchronized void removeSegment(Segment segment) {
+        if (this.segments.remove(segment)) {
+            this.spooledBytes -= segment.bytes;
+            if (!segment.file.delete()) {
+                LOG.warn("{}: Unable to delete spool segment {}", this.getClass().getSimpleName(), segment.file);
+            }
+        }
+    }
+
+    private void evictFor(long recordBytes) throws IOException {
+        while (this.spooledBytes + recordBytes > this.maxBytes && !this.segments.isEmpty()) {
+            Segment oldest = this.segments.peekFirst();
+            if (oldest == this.segments.peekLast() && this.activeChannel != null) {
+                this.activeChannel.close();
+                this.activeChannel = null;
+            }
+            LOG.warn("{}: Spool is over {} bytes, evicting segment {}", new Object[]{this.getClass().getSimpleName(), this.maxBytes, oldest.file});
+            this.removeSegment(oldest);
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        if (this.activeChannel != null) {
+            this.activeChannel.close();
+        }
+        File file = new File(this.slotDirectory, String.format("%s%020d%s", SEGMENT_PREFIX, this.nextSequence++, SEGMENT_SUFFIX));
+        this.activeChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.segments.addLast(new Segment(file));
+    }
+
+    private static String readString(ByteBuffer content) {
+        int length = content.getShort();
+        String value = new String(content.array(), content.position(), length, StandardCharsets.UTF_8);
+        content.position(content.position() + length);
+        return value;
+    }
+
+    private static final class Segment {
+        private final File file;
+        private final long sequence;
+        private long bytes;
+        private long replayedBytes;
+
+        private Segment(File file) {
+            this.file = file;
+            String name = file.getName();
+            this.sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            this.bytes = file.length();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.shinet.storm.influxdb.metric;
+
+import com.shinet.storm.influxdb.client.InfluxdbBatch;
+import com.shinet.storm.influxdb.client.InfluxdbClient;
+import org.apache.storm.Config;
+import org.apache.storm.metric.api.IMetricsConsumer;
+import org.apache.storm.task.IErrorReporter;
+import org.apache.storm.task.TopologyContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ships Storm's own worker metrics to InfluxDB.
+ * Every data point becomes a point tagged with topology, component, task, host and port, map valued data points
+ * become one point per entry named metric.key. Points are batched across {@link #handleDataPoints} calls
+ * and written by a background thread, so the metrics consumer thread never waits for InfluxDB.
+ *
+ * <pre>
+ * Map&lt;String, Object&gt; influxdbConfig = new HashMap&lt;&gt;();
+ * influxdbConfig.put(InfluxdbClient.KEY_INFLUXDB_URL, "http://172.24.4.138:8086");
+ * influxdbConfig.put(InfluxdbClient.KEY_INFLUXDB_DATABASE, "storm");
+ * conf.registerMetricsConsumer(InfluxdbMetricsConsumer.class, influxdbConfig, 1);
+ * </pre>
+ */
+public class InfluxdbMetricsConsumer implements IMetricsConsumer {
+    private static final Logger LOG = LoggerFactory.getLogger(InfluxdbMetricsConsumer.class);
+    public static final String KEY_PREFIX = "metrics.influxdb.";
+    public static final String KEY_INFLUXDB_BATCH_SIZE = "metrics.influxdb.batch.size";
+    public static final String KEY_INFLUXDB_FLUSH_INTERVAL_SECS = "metrics.influxdb.flush.interval.secs";
+    public static final String KEY_INFLUXDB_MAX_PENDING_BATCHES = "metrics.influxdb.max.pending.batches";
+    public static final Integer DEFAULT_INFLUXDB_BATCH_SIZE = 5000;
+    public static final Integer DEFAULT_INFLUXDB_FLUSH_INTERVAL_SECS = 10;
+    public static final Integer DEFAULT_INFLUXDB_MAX_PENDING_BATCHES = 16;
+
+    private InfluxdbClient influxdbClient;
+    private ThreadPoolExecutor writeExecutor;
+    private String topologyName;
+    private int batchSize;
+    private long flushIntervalNanos;
+    private int pendingPoints;
+    private long lastFlushNanos;
+
+    @Override
+    public void prepare(Map<String, Object> topoConf, Object registrationArgument, TopologyContext context, IErrorReporter errorReporter) {
+        Map<Object, Object> config = new HashMap<>();
+        for (Map.Entry<String, Object> entry : topoConf.entrySet()) {
+            if (entry.getKey().startsWith(KEY_PREFIX)) {
+                config.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (registrationArgument instanceof Map) {
+            config.putAll((Map<?, ?>) registrationArgument);
+        }
+
+        this.topologyName = String.valueOf(topoConf.get(Config.TOPOLOGY_NAME));
+        this.batchSize = ((Number) getOrDefault(config, KEY_INFLUXDB_BATCH_SIZE, DEFAULT_INFLUXDB_BATCH_SIZE)).intValue();
+        this.flushIntervalNanos = TimeUnit.SECONDS.toNanos(
+                ((Number) getOrDefault(config, KEY_INFLUXDB_FLUSH_INTERVAL_SECS, DEFAULT_INFLUXDB_FLUSH_INTERVAL_SECS)).longValue());
+        int maxPendingBatches = ((Number) getOrDefault(config, KEY_INFLUXDB_MAX_PENDING_BATCHES, DEFAULT_INFLUXDB_MAX_PENDING_BATCHES)).intValue();
+
+        this.influxdbClient = new InfluxdbClient(config);
+        this.writeExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(maxPendingBatches),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "influxdb-metrics-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (runnable, executor) -> LOG.warn("{}: {} batches are waiting for InfluxDB, dropping metrics",
+                        this.getClass().getSimpleName(), executor.getQueue().size()));
+        this.lastFlushNanos = System.nanoTime();
+    }
+
+    @Override
+    public void handleDataPoints(TaskInfo taskInfo, Collection<DataPoint> dataPoints) {
+        Map<String, String> tags = new HashMap<>();
+        tags.put("topology", this.topologyName);
+        tags.put("component", taskInfo.srcComponentId);
+        tags.put("task", String.valueOf(taskInfo.srcTaskId));
+        tags.put("host", taskInfo.srcWorkerHost);
+        tags.put("port", String.valueOf(taskInfo.srcWorkerPort));
+        long time = TimeUnit.SECONDS.toNanos(taskInfo.timestamp);
+
+        for (DataPoint dataPoint : dataPoints) {
+            this.prepareDataPoint(dataPoint.name, dataPoint.value, tags, time);
+        }
+
+        if (this.pendingPoints >= this.batchSize || System.nanoTime() - this.lastFlushNanos >= this.flushIntervalNanos) {
+            this.flush();
+        }
+    }
+
+    private void prepareDataPoint(String name, Object value, Map<String, String> tags, long time) {
+        if (value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                this.prepareDataPoint(name + "." + entry.getKey(), entry.getValue(), tags, time);
+            }
+        } else if (value instanceof Number || value instanceof String || value instanceof Boolean) {
+            this.influxdbClient.prepareDataPoint(name, tags, Collections.<String, Object>emptyMap(), value, time);
+            this.pendingPoints++;
+        } else if (value != null) {
+            LOG.debug("{}: Skipping metric {} of type {}", new Object[]{this.getClass().getSimpleName(), name, value.getClass().getName()});
+        }
+    }
+
+    private void flush() {
+        final InfluxdbBatch batch = this.influxdbClient.takeBatch();
+        this.pendingPoints = 0;
+        this.lastFlushNanos = System.nanoTime();
+        if (batch == null) {
+            return;
+        }
+        this.writeExecutor.execute(() -> {
+            try {
+                this.influxdbClient.sendBatch(batch);
+            } catch (RuntimeException e) {
+                LOG.error("{}: Unable to write {} metric points: {}", new Object[]{this.getClass().getSimpleName(), batch.size(), e.getMessage()});
+            }
+        });
+    }
+
+    @Override
+    public void cleanup() {
+        this.flush();
+        this.writeExecutor.shutdown();
+        try {
+            this.writeExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.influxdbClient.closeConnection();
+    }
+
+    private static Object getOrDefault(Map<Object, Object> config, String key, Object defaultValue) {
+        Object value = config.get(key);
+        return value != null ? value : defaultValue;
+    }
+}
@@ -0,0 +1,189 @@
+package com.shinet.storm.influxdb.metric;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.shinet.storm.influxdb.client.InfluxdbClient;
+import org.apache.storm.Config;
+import org.apache.storm.metrics2.reporters.ScheduledStormReporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storm 2.x metrics2 reporter writing the worker's metric registry to InfluxDB.
+ * Storm metric names of the form storm.topology.{id}.{host}.{component}.{task}.{port}-{name} are split into
+ * the measurement name and topology, host, component, task and port tags.
+ *
+ * <pre>
+ * topology.metrics.reporters:
+ *   - class: "com.shinet.storm.influxdb.metric.InfluxdbStormReporter"
+ *     report.period: 10
+ *     report.period.units: "SECONDS"
+ *     metrics.influxdb.url: "http://172.24.4.138:8086"
+ *     metrics.influxdb.database: "storm"
+ * </pre>
+ */
+public class InfluxdbStormReporter extends ScheduledStormReporter {
+    private static final Logger LOG = LoggerFactory.getLogger(InfluxdbStormReporter.class);
+    private static final String STORM_ID = "storm.id";
+    private static final String STORM_LOCAL_HOSTNAME = "storm.local.hostname";
+
+    @Override
+    public void prepare(MetricRegistry metricsRegistry, Map<String, Object> topoConf, Map<String, Object> reporterConf) {
+        Map<Object, Object> config = new HashMap<>();
+        for (Map.Entry<String, Object> entry : topoConf.entrySet()) {
+            if (entry.getKey().startsWith(InfluxdbMetricsConsumer.KEY_PREFIX)) {
+                config.put(entry.getKey(), entry.getValue());
+            }
+        }
+        config.putAll(reporterConf);
+
+        this.reportingPeriod = getReportPeriod(reporterConf);
+        this.reportingPeriodUnit = getReportPeriodUnit(reporterConf);
+        this.reporter = new InfluxdbReporter(metricsRegistry, new InfluxdbClient(config),
+                String.valueOf(topoConf.get(Config.TOPOLOGY_NAME)), String.valueOf(topoConf.get(STORM_ID)), hostname(topoConf));
+    }
+
+    private static String hostname(Map<String, Object> topoConf) {
+        Object localHostname = topoConf.get(STORM_LOCAL_HOSTNAME);
+        if (localHostname != null) {
+            return localHostname.toString();
+        }
+        try {
+            return InetAddress.getLocalHost().getCanonicalHostName();
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
+    static final class InfluxdbReporter extends ScheduledReporter {
+        private final InfluxdbClient influxdbClient;
+        private final String topologyName;
+        private final String workerPrefix;
+        private final String hostname;
+        private final Map<String, Object> fields = new HashMap<>();
+        private final Map<String, Map<String, String>> tagsByMetric = new HashMap<>();
+        private final Map<String, String> measurementByMetric = new HashMap<>();
+
+        InfluxdbReporter(MetricRegistry registry, InfluxdbClient influxdbClient, String topologyName, String topologyId, String hostname) {
+            super(registry, "influxdb-reporter", MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS);
+            this.influxdbClient = influxdbClient;
+            this.topologyName = topologyName;
+            this.workerPrefix = "storm.topology." + topologyId + "." + hostname + ".";
+            this.hostname = hostname;
+        }
+
+        @Override
+        public void report(SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters, SortedMap<String, Histogram> histograms,
+                           SortedMap<String, Meter> meters, SortedMap<String, Timer> timers) {
+            long time = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+
+            for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+                Object value = gauge.getValue().getValue();
+                if (value instanceof Number || value instanceof Boolean || value instanceof String) {
+                    this.fields.clear();
+                    this.prepare(gauge.getKey(), value, time);
+                }
+            }
+            for (Map.Entry<String, Counter> counter : counters.entrySet()) {
+                this.fields.clear();
+                this.prepare(counter.getKey(), counter.getValue().getCount(), time);
+            }
+            for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+                this.fields.clear();
+                this.fields.put("count", histogram.getValue().getCount());
+                Snapshot snapshot = histogram.getValue().getSnapshot();
+                this.putSnapshot(snapshot, false);
+                this.prepare(histogram.getKey(), snapshot.getMean(), time);
+            }
+            for (Map.Entry<String, Meter> meter : meters.entrySet()) {
+                this.fields.clear();
+                this.putRates(meter.getValue().getCount(), meter.getValue().getOneMinuteRate(), meter.getValue().getMeanRate());
+                this.prepare(meter.getKey(), meter.getValue().getCount(), time);
+            }
+            for (Map.Entry<String, Timer> timer : timers.entrySet()) {
+                this.fields.clear();
+                this.putRates(timer.getValue().getCount(), timer.getValue().getOneMinuteRate(), timer.getValue().getMeanRate());
+                Snapshot snapshot = timer.getValue().getSnapshot();
+                this.putSnapshot(snapshot, true);
+                this.prepare(timer.getKey(), this.convertDuration(snapshot.getMean()), time);
+            }
+
+            try {
+                this.influxdbClient.sendPoints();
+            } catch (RuntimeException e) {
+                LOG.error("{}: Unable to report metrics: {}", this.getClass().getSimpleName(), e.getMessage());
+            }
+        }
+
+        @Override
+        public void stop() {
+            super.stop();
+            this.influxdbClient.closeConnection();
+        }
+
+        private void putSnapshot(Snapshot snapshot, boolean durations) {
+            this.fields.put("min", durations ? this.convertDuration(snapshot.getMin()) : snapshot.getMin());
+            this.fields.put("max", durations ? this.convertDuration(snapshot.getMax()) : snapshot.getMax());
+            this.fields.put("mean", durations ? this.convertDuration(snapshot.getMean()) : snapshot.getMean());
+            this.fields.put("stddev", durations ? this.convertDuration(snapshot.getStdDev()) : snapshot.getStdDev());
+            this.fields.put("p50", durations ? this.convertDuration(snapshot.getMedian()) : snapshot.getMedian());
+            this.fields.put("p75", durations ? this.convertDuration(snapshot.get75thPercentile()) : snapshot.get75thPercentile());
+            this.fields.put("p95", durations ? this.convertDuration(snapshot.get95thPercentile()) : snapshot.get95thPercentile());
+            this.fields.put("p99", durations ? this.convertDuration(snapshot.get99thPercentile()) : snapshot.get99thPercentile());
+            this.fields.put("p999", durations ? this.convertDuration(snapshot.get999thPercentile()) : snapshot.get999thPercentile());
+        }
+
+        private void putRates(long count, double oneMinuteRate, double meanRate) {
+            this.fields.put("count", count);
+            this.fields.put("m1_rate", this.convertRate(oneMinuteRate));
+            this.fields.put("mean_rate", this.convertRate(meanRate));
+        }
+
+        private void prepare(String metricName, Object value, long time) {
+            if (!this.measurementByMetric.containsKey(metricName)) {
+                this.parseMetricName(metricName);
+            }
+            this.influxdbClient.prepareDataPoint(this.measurementByMetric.get(metricName), this.tagsByMetric.get(metricName),
+                    this.fields, value, time);
+        }
+
+        /**
+         * Split storm.topology.{id}.{host}.{component}.{task}.{port}-{name} into measurement and tags,
+         * names in any other format are written as they are with topology and host tags.
+         */
+        private void parseMetricName(String metricName) {
+            Map<String, String> tags = new HashMap<>();
+            tags.put("topology", this.topologyName);
+            tags.put("host", this.hostname);
+            String measurement = metricName;
+            if (metricName.startsWith(this.workerPrefix)) {
+                String remainder = metricName.substring(this.workerPrefix.length());
+                int componentEnd = remainder.indexOf('.');
+                int taskEnd = componentEnd < 0 ? -1 : remainder.indexOf('.', componentEnd + 1);
+                int portEnd = taskEnd < 0 ? -1 : remainder.indexOf('-', taskEnd + 1);
+                if (portEnd > 0) {
+                    tags.put("component", remainder.substring(0, componentEnd));
+                    tags.put("task", remainder.substring(componentEnd + 1, taskEnd));
+                    tags.put("port", remainder.substring(taskEnd + 1, portEnd));
+                    measurement = remainder.substring(portEnd + 1);
+                }
+            }
+            this.tagsByMetric.put(metricName, tags);
+            this.measurementByMetric.put(metricName, measurement);
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package com.shinet.storm.influxdb.spout;
+
+import com.shinet.storm.influxdb.client.InfluxdbClient;
+import com.shinet.storm.influxdb.client.InfluxdbClient.Builder;
+import org.apache.storm.spout.SpoutOutputCollector;
+import org.apache.storm.state.KeyValueState;
+import org.apache.storm.state.StateFactory;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.topology.OutputFieldsDeclarer;
+import org.apache.storm.topology.base.BaseRichSpout;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Values;
+import org.influxdb.dto.Cancellable;
+import org.influxdb.dto.QueryResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tails a measurement: every poll interval the points written since the last poll, up to lagMillis ago to let late
+ * writes land, are queried and streamed in chunks, then emitted with the field layout of
+ * {@link com.shinet.storm.influxdb.bolt.TupleInfluxdbFieldsDatapointMapper#DEFAULT_MAPPER}, timestamps in epoch
+ * nanoseconds so that the rows written back keep their time and precision. The time cursor only moves
+ * past a poll window once all of its tuples are acked, and is kept in the Storm state of the component: with a
+ * persistent topology.state.provider a restarted topology resumes from the cursor. Failed tuples are emitted again.
+ * A single task reads the measurement, the other tasks of the component stay idle.
+ */
+public class InfluxdbSpout extends BaseRichSpout {
+    private static final Logger LOG = LoggerFactory.getLogger(InfluxdbSpout.class);
+    public static final Fields OUTPUT_FIELDS = new Fields("metric", "timestamp", "tags", "fields", "value");
+    private static final String CURSOR_KEY = "cursor";
+    private static final String TIME_COLUMN = "time";
+    private static final String VALUE_COLUMN = "value";
+    private final Builder influxdbClientBuilder;
+    private final String measurement;
+    private String condition;
+    private long startMillis;
+    private long pollIntervalMillis = 10000;
+    private long lagMillis = 10000;
+    private int chunkSize = 10000;
+    private int maxBufferedRows = 10000;
+    private InfluxdbClient influxdbClient;
+    private SpoutOutputCollector collector;
+    private KeyValueState<String, Long> cursorState;
+    private BlockingQueue<Object> queryResults;
+    private final Deque<Window> windows = new ArrayDeque<>();
+    private volatile Cancellable cancellable;
+    private boolean reading;
+    private boolean queryInFlight;
+    private long queryCursorMillis;
+    private long lastPollMillis;
+
+    public InfluxdbSpout(Builder influxdbClientBuilder, String measurement) {
+        this.influxdbClientBuilder = influxdbClientBuilder;
+        this.measurement = measurement;
+    }
+
+    /**
+     * Only read the points matching an InfluxQL condition, e.g. {@code "host" = 'server-01'}.
+     */
+    public InfluxdbSpout withCondition(String condition) {
+        this.condition = condition;
+        return this;
+    }
+
+    /**
+     * Start reading after the given epoch milliseconds when there is no cursor yet, instead of the first point.
+     */
+    public InfluxdbSpout withStartTime(long startMillis) {
+        this.startMillis = startMillis;
+        return this;
+    }
+
+    /**
+     * Poll every pollIntervalMillis for the points older than lagMillis.
+     */
+    public InfluxdbSpout withPollInterval(long pollIntervalMillis, long lagMillis) {
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.lagMillis = lagMillis;
+        return this;
+    }
+
+    /**
+     * Stream the query results in chunks of chunkSize rows, reading the next chunk once fewer than maxBufferedRows
+     * rows wait to be emitted.
+     */
+    public InfluxdbSpout withChunkSize(int chunkSize, int maxBufferedRows) {
+        this.chunkSize = chunkSize;
+        this.maxBufferedRows = maxBufferedRows;
+        return this;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void open(Map<String, Object> conf, TopologyContext context, SpoutOutputCollector collector) {
+        this.collector = collector;
+        this.reading = context.getThisTaskIndex() == 0;
+        if (!this.reading) {
+            LOG.warn("{}: Task {} stays idle, a single task reads measurement {}",
+                    new Object[]{this.getClass().getSimpleName(), context.getThisTaskId(), this.measurement});
+            return;
+        }
+        this.influxdbClient = this.influxdbClientBuilder.build();
+        this.queryResults = new LinkedBlockingQueue<>(Math.max(this.maxBufferedRows, 1));
+        this.cursorState = (KeyValueState<String, Long>) StateFactory.getState(
+                "influxdb-spout-" + context.getThisComponentId() + "-" + this.measurement, conf, context);
+        this.queryCursorMillis = this.cursorState.get(CURSOR_KEY, this.startMillis);
+        LOG.info("{}: Reading measurement {} after {}", new Object[]{this.getClass().getSimpleName(), this.measurement,
+                Instant.ofEpochMilli(this.queryCursorMillis)});
+    }
+
+    @Override
+    public void nextTuple() {
+        if (!this.reading) {
+            return;
+        }
+        final Object queryResult = this.queryResults.poll();
+        if (queryResult instanceof Row) {
+            final Row row = (Row) queryResult;
+            row.window.emitted++;
+            this.collector.emit(row.values, row);
+        } else if (queryResult instanceof Window) {
+            // the end of a failed query, its window is read again by another one
+            if (((Window) queryResult).failed) {
+                return;
+            }
+            this.queryInFlight = false;
+            ((Window) queryResult).complete = true;
+            this.advanceCursor();
+        } else if (queryResult instanceof QueryFailure) {
+            final QueryFailure failure = (QueryFailure) queryResult;
+            // a query failed by a chunk is failed again by its cancellation
+            if (failure.window.failed) {
+                return;
+            }
+            failure.window.failed = true;
+            LOG.warn("{}: Failed to read measurement {} after {}, retrying", new Object[]{this.getClass().getSimpleName(),
+                    this.measurement, Instant.ofEpochMilli(failure.window.fromMillis), failure.error});
+            this.collector.reportError(failure.error);
+            // the window is read again from its start, its rows already emitted are emitted twice
+            this.windows.remove(failure.window);
+            this.queryCursorMillis = failure.window.fromMillis;
+            this.queryInFlight = false;
+        } else if (!this.queryInFlight && System.currentTimeMillis() - this.lastPollMillis >= this.pollIntervalMillis) {
+            this.startQuery();
+        }
+    }
+
+    private void startQuery() {
+        this.lastPollMillis = System.currentTimeMillis();
+        final long toMillis = this.lastPollMillis - this.lagMillis;
+        if (toMillis <= this.queryCursorMillis) {
+            return;
+        }
+        final Window window = new Window(this.queryCursorMillis, toMillis);
+        final StringBuilder query = new StringBuilder("SELECT * FROM \"")
+                .append(this.measurement.replace("\"", "\\\""))
+                .append("\" WHERE time > ").append(window.fromMillis).append("ms AND time <= ").append(window.toMillis).append("ms");
+        if (this.condition != null) {
+            query.append(" AND (").append(this.condition).append(')');
+        }
+        query.append(" GROUP BY *");
+        this.windows.add(window);
+        this.queryCursorMillis = toMillis;
+        this.queryInFlight = true;
+        try {
+            this.influxdbClient.queryChunked(query.toString(), this.chunkSize, (cancellable, chunk) -> {
+                this.cancellable = cancellable;
+                try {
+                    this.addRows(window, chunk);
+                } catch (RuntimeException e) {
+                    cancellable.cancel();
+                    this.addQueryResult(new QueryFailure(window, e));
+                }
+            }, () -> this.addQueryResult(window), e -> this.addQueryResult(new QueryFailure(window, e)));
+        } catch (RuntimeException e) {
+            this.addQueryResult(new QueryFailure(window, e));
+        }
+    }
+
+    /**
+     * Queue the rows of a chunk, called on an OkHttp thread which blocks while maxBufferedRows rows are queued.
+     */
+    private void addRows(Window window, QueryResult chunk) {
+        if (chunk.getResults() == null) {
+            return;
+        }
+        for (QueryResult.Result result : chunk.getResults()) {
+            if (result.getSeries() == null) {
+                continue;
+            }
+            for (QueryResult.Series series : result.getSeries()) {
+                final Map<String, String> tags = series.getTags() != null ? series.getTags() : Collections.emptyMap();
+                final List<String> columns = series.getColumns();
+                for (List<Object> columnValues : series.getValues()) {
+                    final Row row = this.toRow(window, series.getName(), tags, columns, columnValues);
+                    if (row != null) {
+                        this.addQueryResult(row);
+                    }
+                }
+            }
+        }
+    }
+
+    private Row toRow(Window window, String metric, Map<String, String> tags, List<String> columns, List<Object> columnValues) {
+        Object time = null;
+        Number value = null;
+        final Map<String, Object> fields = new HashMap<>();
+        for (int i = 0; i < columns.size(); i++) {
+            final Object columnValue = columnValues.get(i);
+            if (TIME_COLUMN.equals(columns.get(i))) {
+                time = columnValue;
+            } else if (VALUE_COLUMN.equals(columns.get(i)) && columnValue instanceof Number) {
+                value = (Number) columnValue;
+            } else if (columnValue != null) {
+                fields.put(columns.get(i), columnValue);
+            }
+        }
+        if (time == null || (value == null && fields.isEmpty())) {
+            return null;
+        }
+        return new Row(window, new Values(metric, toEpochNanos(time), tags, fields, value));
+    }
+
+    /**
+     * The nanosecond timestamp the points are written with by {@link InfluxdbClient}, from the RFC3339 time of a row.
+     */
+    private static long toEpochNanos(Object time) {
+        if (time instanceof Number) {
+            // only returned when the query asks for an epoch precision, nanoseconds by default
+            return ((Number) time).longValue();
+        }
+        final Instant instant = Instant.parse(time.toString());
+        return TimeUnit.SECONDS.toNanos(instant.getEpochSecond()) + instant.getNano();
+    }
+
+    private void addQueryResult(Object queryResult) {
+        try {
+            this.queryResults.put(queryResult);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Move the cursor past the oldest windows read and acked, and persist it.
+     */
+    private void advanceCursor() {
+        Long cursorMillis = null;
+        while (!this.windows.isEmpty() && this.windows.peek().complete && this.windows.peek().acked >= this.windows.peek().emitted) {
+            cursorMillis = this.windows.poll().toMillis;
+        }
+        if (cursorMillis != null) {
+            this.cursorState.put(CURSOR_KEY, cursorMillis);
+            this.cursorState.commit();
+        }
+    }
+
+    @Override
+    public void ack(Object msgId) {
+        ((Row) msgId).window.acked++;
+        this.advanceCursor();
+    }
+
+    @Override
+    public void fail(Object msgId) {
+        final Row row = (Row) msgId;
+        this.collector.emit(row.values, row);
+    }
+
+    @Override
+    public void close() {
+        if (!this.reading) {
+            return;
+        }
+        final Cancellable cancellable = this.cancellable;
+        if (cancellable != null) {
+            cancellable.cancel();
+        }
+        // unblocks the OkHttp thread adding rows
+        this.queryResults.clear();
+        this.influxdbClient.closeConnection();
+    }
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+        declarer.declare(OUTPUT_FIELDS);
+    }
+
+    /**
+     * The points of a query, between fromMillis excluded and toMillis included.
+     */
+    private static final class Window {
+        private final long fromMillis;
+        private final long toMillis;
+        private boolean complete;
+        private boolean failed;
+        private int emitted;
+        private int acked;
+
+        private Window(long fromMillis, long toMillis) {
+            this.fromMillis = fromMillis;
+            this.toMillis = toMillis;
+        }
+    }
+
+    private static final class Row {
+        private final Window window;
+        private final Values values;
+
+        private Row(Window window, Values values) {
+            this.window = window;
+            this.values = values;
+        }
+    }
+
+    private static final class QueryFailure {
+        private final Window window;
+        private final Throwable error;
+
+        private QueryFailure(Window window, Throwable error) {
+            this.window = window;
+            this.error = error;
+        }
+    }
+}
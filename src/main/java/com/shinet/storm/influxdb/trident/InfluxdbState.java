@@ -0,0 +1,112 @@
+package com.shinet.storm.influxdb.trident;
+
+import com.shinet.storm.influxdb.InfluxdbMetricDatapoint;
+import com.shinet.storm.influxdb.bolt.ITupleInfluxdbDataPointMapper;
+import com.shinet.storm.influxdb.client.InfluxdbClient;
+import com.shinet.storm.influxdb.client.InfluxdbBatch;
+import com.shinet.storm.influxdb.client.InfluxdbClientMetrics;
+import com.shinet.storm.influxdb.client.InfluxdbPartialWriteException;
+import org.apache.storm.topology.FailedException;
+import org.apache.storm.trident.operation.TridentCollector;
+import org.apache.storm.trident.state.State;
+import org.apache.storm.trident.tuple.TridentTuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Trident {@link State} writing the data points of a whole Trident batch with a single request in {@link #commit(Long)}.
+ * InfluxDB overwrites a point with the same series and timestamp, so a replayed batch overwrites
+ * the points of the failed attempt instead of duplicating them. Points InfluxDB rejects are rejected again on replay,
+ * so they are logged and discarded and the rest of the batch is committed.
+ */
+public class InfluxdbState implements State {
+    private static final Logger LOG = LoggerFactory.getLogger(InfluxdbState.class);
+    private final InfluxdbClient.Builder influxdbClientBuilder;
+    private final List<? extends ITupleInfluxdbDataPointMapper> tupleInfluxdbDatapointMappers;
+    private final List<InfluxdbMetricDatapoint> preparedPoints = new ArrayList<>();
+    private InfluxdbClient influxdbClient;
+
+    public InfluxdbState(InfluxdbClient.Builder influxdbClientBuilder, List<? extends ITupleInfluxdbDataPointMapper> tupleInfluxdbDatapointMappers) {
+        this.influxdbClientBuilder = influxdbClientBuilder;
+        this.tupleInfluxdbDatapointMappers = tupleInfluxdbDatapointMappers;
+    }
+
+    public void prepare() {
+        this.influxdbClient = this.influxdbClientBuilder.build();
+    }
+
+    /**
+     * Retrieve the write path metrics of the state's client.
+     */
+    public InfluxdbClientMetrics getMetrics() {
+        return this.influxdbClient.getMetrics();
+    }
+
+    /**
+     * Retrieve the metrics of the shared writer of the state's client, null unless this state is the first of the worker.
+     */
+    public InfluxdbClientMetrics takeSharedWriterMetrics() {
+        return this.influxdbClient.takeSharedWriterMetrics();
+    }
+
+    @Override
+    public void beginCommit(Long txid) {
+        // drop points left over from an attempt that failed while updating
+        this.influxdbClient.discardPoints();
+        this.preparedPoints.clear();
+    }
+
+    /**
+     * Prepare the data points of the tuples, they are written on {@link #commit(Long)}.
+     */
+    public void update(List<TridentTuple> tuples, TridentCollector collector) {
+        for (TridentTuple tuple : tuples) {
+            for (ITupleInfluxdbDataPointMapper tupleInfluxdbDataPointMapper : this.tupleInfluxdbDatapointMappers) {
+                InfluxdbMetricDatapoint metricDataPoint = tupleInfluxdbDataPointMapper.getMetricPoint(tuple);
+                if (metricDataPoint.getValue() != null || !metricDataPoint.getFields().isEmpty()) {
+                    this.influxdbClient.prepareDataPoint(metricDataPoint.getDatabase(), metricDataPoint.getRetentionPolicy(),
+                            metricDataPoint.getMetric(), metricDataPoint.getTags(), metricDataPoint.getFields(),
+                            metricDataPoint.getValue(), metricDataPoint.getTimestamp(), this.preparedPoints.size());
+                    this.preparedPoints.add(metricDataPoint);
+                } else {
+                    this.influxdbClient.getMetrics().discardedNull();
+                    LOG.warn("{}: Discarding dataPoint: {}, value is null", this.getClass().getSimpleName(), metricDataPoint.getMetric());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void commit(Long txid) {
+        final InfluxdbBatch batch = this.influxdbClient.takeBatch();
+        if (batch == null) {
+            this.preparedPoints.clear();
+            return;
+        }
+        LOG.debug("{}: Writing points of transaction {}", this.getClass().getSimpleName(), txid);
+        try {
+            this.influxdbClient.sendBatch(batch);
+        } catch (InfluxdbPartialWriteException e) {
+            // replaying the batch would only have the same points rejected again
+            for (int source : e.getRejectedSources()) {
+                LOG.warn("{}: Discarding dataPoint: {} of transaction {}, rejected by InfluxDB",
+                        new Object[]{this.getClass().getSimpleName(), this.preparedPoints.get(source), txid});
+            }
+            LOG.warn("{}: InfluxDB rejected {} points of transaction {}: {}", new Object[]{this.getClass().getSimpleName(),
+                    e.getRejectedPoints(), txid, e.getMessage()});
+            this.influxdbClient.getMetrics().discardedRejected(e.getRejectedPoints());
+        } catch (RuntimeException e) {
+            LOG.error("the metric points of transaction " + txid + " failed with details: " + e.getMessage());
+            throw new FailedException(e);
+        } finally {
+            this.preparedPoints.clear();
+        }
+    }
+
+    public void close() {
+        this.influxdbClient.closeConnection();
+    }
+}
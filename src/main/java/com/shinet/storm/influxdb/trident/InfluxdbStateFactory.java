@@ -0,0 +1,47 @@
+package com.shinet.storm.influxdb.trident;
+
+import com.shinet.storm.influxdb.bolt.ITupleInfluxdbDataPointMapper;
+import com.shinet.storm.influxdb.bolt.InfluxdbBolt;
+import com.shinet.storm.influxdb.client.InfluxdbClient;
+import com.shinet.storm.influxdb.client.InfluxdbClientMetrics;
+import org.apache.storm.Config;
+import org.apache.storm.metric.api.IMetric;
+import org.apache.storm.task.IMetricsContext;
+import org.apache.storm.trident.state.State;
+import org.apache.storm.trident.state.StateFactory;
+import org.apache.storm.utils.ObjectReader;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates an {@link InfluxdbState} per Trident partition.
+ */
+public class InfluxdbStateFactory implements StateFactory {
+    private final InfluxdbClient.Builder influxdbClientBuilder;
+    private final List<? extends ITupleInfluxdbDataPointMapper> tupleInfluxdbDatapointMappers;
+
+    public InfluxdbStateFactory(InfluxdbClient.Builder influxdbClientBuilder, ITupleInfluxdbDataPointMapper tupleInfluxdbDatapointMapper) {
+        this(influxdbClientBuilder, Collections.singletonList(tupleInfluxdbDatapointMapper));
+    }
+
+    public InfluxdbStateFactory(InfluxdbClient.Builder influxdbClientBuilder, List<? extends ITupleInfluxdbDataPointMapper> tupleInfluxdbDatapointMappers) {
+        this.influxdbClientBuilder = influxdbClientBuilder;
+        this.tupleInfluxdbDatapointMappers = tupleInfluxdbDatapointMappers;
+    }
+
+    @Override
+    public State makeState(Map<String, Object> conf, IMetricsContext metrics, int partitionIndex, int numPartitions) {
+        InfluxdbState state = new InfluxdbState(this.influxdbClientBuilder, this.tupleInfluxdbDatapointMappers);
+        state.prepare();
+        metrics.registerMetric(InfluxdbBolt.METRIC_NAME, (IMetric) state.getMetrics()::getValueAndReset,
+                ObjectReader.getInt(conf.get(Config.TOPOLOGY_BUILTIN_METRICS_BUCKET_SIZE_SECS), 60));
+        InfluxdbClientMetrics sharedWriterMetrics = state.takeSharedWriterMetrics();
+        if (sharedWriterMetrics != null) {
+            metrics.registerMetric(InfluxdbBolt.SHARED_WRITER_METRIC_NAME, (IMetric) sharedWriterMetrics::getValueAndReset,
+                    ObjectReader.getInt(conf.get(Config.TOPOLOGY_BUILTIN_METRICS_BUCKET_SIZE_SECS), 60));
+        }
+        return state;
+    }
+}
@@ -0,0 +1,18 @@
+package com.shinet.storm.influxdb.trident;
+
+import org.apache.storm.trident.operation.TridentCollector;
+import org.apache.storm.trident.state.BaseStateUpdater;
+import org.apache.storm.trident.tuple.TridentTuple;
+
+import java.util.List;
+
+/**
+ * Hands the tuples of a Trident batch to {@link InfluxdbState}.
+ */
+public class InfluxdbStateUpdater extends BaseStateUpdater<InfluxdbState> {
+
+    @Override
+    public void updateState(InfluxdbState state, List<TridentTuple> tuples, TridentCollector collector) {
+        state.update(tuples, collector);
+    }
+}
@@ -0,0 +1,140 @@
+package com.shinet.storm.influxdb;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Serializes datapoints with a Kryo instance and reads them back with another one, as the tuples of a topology
+ * are read on another worker.
+ */
+public class InfluxdbMetricDatapointSerializerTest {
+    private Kryo writer;
+    private Kryo reader;
+
+    @Before
+    public void setUp() {
+        this.writer = newKryo();
+        this.reader = newKryo();
+    }
+
+    private static Kryo newKryo() {
+        Kryo kryo = new Kryo();
+        kryo.setRegistrationRequired(false);
+        kryo.register(InfluxdbMetricDatapoint.class, new InfluxdbMetricDatapointSerializer());
+        return kryo;
+    }
+
+    private Object roundTrip(Object value) {
+        Output output = new Output(256, -1);
+        this.writer.writeClassAndObject(output, value);
+        return this.reader.readClassAndObject(new Input(output.toBytes()));
+    }
+
+    private void assertRoundTrip(InfluxdbMetricDatapoint datapoint) {
+        InfluxdbMetricDatapoint read = (InfluxdbMetricDatapoint) this.roundTrip(datapoint);
+        assertEquals(datapoint, read);
+        // equals leaves the fields out
+        assertEquals(datapoint.getFields(), read.getFields());
+        if (datapoint.getValue() != null) {
+            assertEquals(datapoint.getValue().getClass(), read.getValue().getClass());
+        }
+    }
+
+    @Test
+    public void keepsTheTypeOfEveryValue() {
+        List<Number> values = Arrays.asList(42, -42L, 1.5f, -2.25d, (short) -7, (byte) 3,
+                UnsignedLong.valueOf("18446744073709551615"));
+        for (Number value : values) {
+            this.assertRoundTrip(new InfluxdbMetricDatapoint("cpu", Collections.singletonMap("host", "server-01"),
+                    1_600_000_000_000_000_000L, value));
+        }
+    }
+
+    @Test
+    public void keepsTheTypeOfEveryField() {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("null", null);
+        fields.put("integer", Integer.MIN_VALUE);
+        fields.put("long", Long.MAX_VALUE);
+        fields.put("float", Float.NaN);
+        fields.put("double", Double.MAX_VALUE);
+        fields.put("short", Short.MAX_VALUE);
+        fields.put("byte", Byte.MIN_VALUE);
+        fields.put("unsigned", UnsignedLong.valueOf(-1L));
+        fields.put("string", "say \"hi\" \u00fcn\u00efcode");
+        fields.put("boolean", true);
+        fields.put("object", new BigDecimal("12345678901234567890.5"));
+        InfluxdbMetricDatapoint datapoint = new InfluxdbMetricDatapoint("log", Collections.singletonMap("host", "server-01"),
+                fields, -1L, null, "metrics", "one_week");
+
+        InfluxdbMetricDatapoint read = (InfluxdbMetricDatapoint) this.roundTrip(datapoint);
+
+        assertEquals(datapoint, read);
+        assertEquals(fields, read.getFields());
+        assertNull(read.getValue());
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            if (field.getValue() != null) {
+                assertEquals(field.getKey(), field.getValue().getClass(), read.getFields().get(field.getKey()).getClass());
+            }
+        }
+    }
+
+    @Test
+    public void keepsAnUnsignedLongAboveTheLongRange() {
+        UnsignedLong value = UnsignedLong.valueOf("9223372036854775808");
+        assertTrue(value.longValue() < 0);
+
+        InfluxdbMetricDatapoint read = (InfluxdbMetricDatapoint) this.roundTrip(
+                new InfluxdbMetricDatapoint("bytes", Collections.emptyMap(), 1000L, value));
+
+        assertEquals(value, read.getValue());
+        assertEquals("9223372036854775808", read.getValue().toString());
+    }
+
+    @Test
+    public void keepsANullDestination() {
+        InfluxdbMetricDatapoint read = (InfluxdbMetricDatapoint) this.roundTrip(
+                new InfluxdbMetricDatapoint("cpu", Collections.singletonMap("host", "server-01"), Collections.emptyMap(), 1000L, 1.5));
+
+        assertNull(read.getDatabase());
+        assertNull(read.getRetentionPolicy());
+        this.assertRoundTrip(new InfluxdbMetricDatapoint("cpu", Collections.emptyMap(), Collections.emptyMap(), 1000L, 1.5, "metrics", null));
+        this.assertRoundTrip(new InfluxdbMetricDatapoint("cpu", Collections.emptyMap(), Collections.emptyMap(), 1000L, 1.5, null, "one_week"));
+    }
+
+    @Test
+    public void sharesTheStringsOfTheDatapointsOfOneTuple() {
+        List<InfluxdbMetricDatapoint> tuple = new ArrayList<>();
+        Map<String, String> tags = new HashMap<>();
+        tags.put("host", "server-01");
+        tags.put("region", "eu-west");
+        for (int i = 0; i < 10; i++) {
+            tuple.add(new InfluxdbMetricDatapoint("cpu", tags, Collections.emptyMap(), 1000L + i, i, "metrics", "one_week"));
+        }
+        Output first = new Output(256, -1);
+        this.writer.writeClassAndObject(first, new ArrayList<>(tuple.subList(0, 1)));
+        Output all = new Output(256, -1);
+        this.writer.writeClassAndObject(all, new ArrayList<>(tuple));
+
+        assertEquals(tuple, this.reader.readClassAndObject(new Input(all.toBytes())));
+        // the names, tags and destination are written by the first datapoint only, the next ones reference them
+        assertTrue((all.total() - first.total()) / 9 < first.total() / 3);
+        // and the next tuple starts a dictionary of its own
+        assertEquals(tuple.subList(0, 1), this.roundTrip(new ArrayList<>(tuple.subList(0, 1))));
+    }
+}
@@ -0,0 +1,87 @@
+package com.shinet.storm.influxdb.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds the JSON error bodies InfluxDB 1.x answers to a partial write through the client, checking that only the
+ * points it rejected are reported and that a client error is not retried.
+ */
+public class InfluxdbHttpExceptionTest {
+    private InfluxdbClient client;
+
+    @Before
+    public void setUp() {
+        // the points are only encoded, never sent
+        this.client = InfluxdbClient.newBuilder("", "metrics").udp("127.0.0.1", 8089).enableTypedValues().build();
+    }
+
+    @After
+    public void tearDown() {
+        this.client.closeConnection();
+    }
+
+    @Test
+    public void decodesTheErrorOfTheJsonBody() {
+        InfluxdbHttpException e = new InfluxdbHttpException(400, "{\"error\":\"partial write: field type conflict: "
+                + "input field \\\"value\\\" on measurement \\\"cpu\\\" is type integer, already exists as type float dropped=1\"}");
+
+        assertEquals("partial write: field type conflict: input field \"value\" on measurement \"cpu\" is type integer, "
+                + "already exists as type float dropped=1", e.getMessage());
+        assertFalse(e.isRetryWorth());
+        assertTrue(new InfluxdbHttpException(503, "").isRetryWorth());
+    }
+
+    @Test
+    public void reportsTheSourcesOfAFieldTypeConflict() {
+        this.client.prepareDataPoint("cpu", Collections.singletonMap("host", "server-01"), Collections.emptyMap(), 1.5, 1000L, 0);
+        this.client.prepareDataPoint("cpu", Collections.singletonMap("host", "server-02"), Collections.emptyMap(), 2L, 1000L, 1);
+        this.client.prepareDataPoint("mem", Collections.singletonMap("host", "server-01"), Collections.emptyMap(), 3L, 1000L, 2);
+        InfluxdbBatch.Part part = this.client.takeBatch().parts.get(0);
+
+        RuntimeException error = this.client.completePart(part, this.client.getMetrics().writeStarted(), new InfluxdbHttpException(400,
+                "{\"error\":\"partial write: field type conflict: input field \\\"value\\\" on measurement \\\"cpu\\\" "
+                        + "is type integer, already exists as type float dropped=1\"}"));
+
+        assertTrue(String.valueOf(error), error instanceof InfluxdbPartialWriteException);
+        assertArrayEquals(new int[]{1}, ((InfluxdbPartialWriteException) error).getRejectedSources());
+    }
+
+    @Test
+    public void reportsTheSourceOfAnUnparsableLineWithQuotes() {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("text", "say \"hi\" \\o/");
+        this.client.prepareDataPoint("cpu", Collections.singletonMap("host", "server-01"), Collections.emptyMap(), 1.5, 1000L, 0);
+        this.client.prepareDataPoint("log", Collections.singletonMap("host", "server-01"), fields, 1.5, 1000L, 1);
+        InfluxdbBatch.Part part = this.client.takeBatch().parts.get(0);
+        String line = PartialWriteErrors.lines(part.lineProtocol)[1];
+
+        RuntimeException error = this.client.completePart(part, this.client.getMetrics().writeStarted(), new InfluxdbHttpException(400,
+                "{\"error\":\"unable to parse '" + line.replace("\\", "\\\\").replace("\"", "\\\"") + "': invalid field format\"}"));
+
+        assertTrue(String.valueOf(error), error instanceof InfluxdbPartialWriteException);
+        assertArrayEquals(new int[]{1}, ((InfluxdbPartialWriteException) error).getRejectedSources());
+    }
+
+    @Test
+    public void failsTheWholePartWhenTheErrorNamesNoLineOfIt() {
+        this.client.prepareDataPoint("cpu", Collections.singletonMap("host", "server-01"), Collections.emptyMap(), 1.5, 1000L, 0);
+        InfluxdbBatch.Part part = this.client.takeBatch().parts.get(0);
+
+        RuntimeException error = this.client.completePart(part, this.client.getMetrics().writeStarted(), new InfluxdbHttpException(400,
+                "{\"error\":\"partial write: field type conflict: input field \\\"value\\\" on measurement \\\"disk\\\" "
+                        + "is type integer, already exists as type float dropped=1\"}"));
+
+        assertTrue(String.valueOf(error), error instanceof InfluxdbHttpException);
+    }
+}
@@ -0,0 +1,105 @@
+package com.shinet.storm.influxdb.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends line protocol to a UDP listener bound on localhost and checks how the lines are packed into datagrams.
+ */
+public class LineProtocolUdpWriterTest {
+    private static final int DATAGRAM_BYTES = 200;
+    private static final long RECEIVE_TIMEOUT_MILLIS = 2000;
+
+    private DatagramChannel listener;
+    private LineProtocolUdpWriter writer;
+
+    @Before
+    public void setUp() throws IOException {
+        this.listener = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        this.listener.configureBlocking(false);
+        int port = ((InetSocketAddress) this.listener.getLocalAddress()).getPort();
+        this.writer = new LineProtocolUdpWriter("udp://127.0.0.1:" + port, DATAGRAM_BYTES);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.writer.close();
+        this.listener.close();
+    }
+
+    @Test
+    public void packsWholeLinesIntoDatagramsOfAtMostTheDatagramSize() throws Exception {
+        LineProtocolEncoder encoder = new LineProtocolEncoder("");
+        LineProtocolBuffer lines = new LineProtocolBuffer(64);
+        List<String> expectedLines = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            // lines of different lengths so that datagrams end at different offsets
+            String host = "server-" + new String(new char[i % 13]).replace('\0', 'x') + i;
+            int start = lines.size();
+            assertTrue(encoder.encode(lines, "cpu", Collections.singletonMap("host", host), null, i * 1.5, 1000L + i));
+            expectedLines.add(new String(lines.array(), start, lines.size() - start, StandardCharsets.UTF_8));
+        }
+
+        this.writer.write(lines);
+
+        List<String> receivedLines = new ArrayList<>();
+        int receivedBytes = 0;
+        int datagrams = 0;
+        while (receivedBytes < lines.size()) {
+            String datagram = this.receive();
+            datagrams++;
+            assertTrue("datagram of " + datagram.length() + " bytes", datagram.length() <= DATAGRAM_BYTES);
+            assertTrue("datagram ending mid line: " + datagram, datagram.endsWith("\n"));
+            receivedBytes += datagram.length();
+            for (String line : datagram.split("(?<=\n)")) {
+                receivedLines.add(line);
+            }
+        }
+        assertEquals(expectedLines, receivedLines);
+        assertTrue("lines sent one per datagram", datagrams < expectedLines.size());
+    }
+
+    @Test
+    public void sendsALineLongerThanTheDatagramSizeAloneAndWhole() throws Exception {
+        LineProtocolEncoder encoder = new LineProtocolEncoder("");
+        LineProtocolBuffer lines = new LineProtocolBuffer(64);
+        assertTrue(encoder.encode(lines, "cpu", null, null, 1, 1000L));
+        int firstLineEnd = lines.size();
+        String longTag = new String(new char[DATAGRAM_BYTES]).replace('\0', 'x');
+        assertTrue(encoder.encode(lines, "cpu", Collections.singletonMap("host", longTag), null, 2, 1001L));
+        int longLineEnd = lines.size();
+        assertTrue(encoder.encode(lines, "cpu", null, null, 3, 1002L));
+
+        this.writer.write(lines);
+
+        byte[] array = lines.array();
+        assertEquals(new String(array, 0, firstLineEnd, StandardCharsets.UTF_8), this.receive());
+        assertEquals(new String(array, firstLineEnd, longLineEnd - firstLineEnd, StandardCharsets.UTF_8), this.receive());
+        assertEquals(new String(array, longLineEnd, lines.size() - longLineEnd, StandardCharsets.UTF_8), this.receive());
+    }
+
+    private String receive() throws Exception {
+        ByteBuffer datagram = ByteBuffer.allocate(65536);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RECEIVE_TIMEOUT_MILLIS);
+        while (this.listener.receive(datagram) == null) {
+            assertTrue("no datagram received", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        datagram.flip();
+        return StandardCharsets.UTF_8.decode(datagram).toString();
+    }
+}
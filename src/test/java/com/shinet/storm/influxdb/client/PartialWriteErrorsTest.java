@@ -0,0 +1,87 @@
+package com.shinet.storm.influxdb.client;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Maps the errors InfluxDB 1.x and 2.x answer to partial writes back to the rejected lines. The result decides
+ * which tuples are acked, so an error naming lines the write does not hold must be a failure of the whole write.
+ */
+public class PartialWriteErrorsTest {
+    private static final String[] LINES = {
+            "cpu,host=server-01 value=1.5 1000",
+            "cpu,host=server-02 value=2i 1000",
+            "mem,host=server-01 value=3i 1000",
+            "cpu,host=server\\ 03 value=4.5,text=\"say \\\"hi\\\"\" 1000",
+    };
+
+    @Test
+    public void mapsAFieldTypeConflictToTheLinesWithTheConflictingType() {
+        BitSet rejected = PartialWriteErrors.rejectedLines("partial write: field type conflict: input field \"value\" "
+                + "on measurement \"cpu\" is type integer, already exists as type float dropped=1", LINES);
+        assertEquals(bits(1), rejected);
+    }
+
+    @Test
+    public void mapsAnUnparsableLineToTheLineItQuotes() {
+        BitSet rejected = PartialWriteErrors.rejectedLines("unable to parse '" + LINES[3] + "': invalid field format", LINES);
+        assertEquals(bits(3), rejected);
+    }
+
+    @Test
+    public void mapsATagValueLimitToTheLinesOfTheSeries() {
+        BitSet rejected = PartialWriteErrors.rejectedLines("partial write: max-values-per-tag limit exceeded (100000/100000): "
+                + "measurement=\"cpu\" tag=\"host\" value=\"server 03\" dropped=1", LINES);
+        assertEquals(bits(3), rejected);
+    }
+
+    @Test
+    public void mapsTheLineNumbersOfInfluxdb2() {
+        BitSet rejected = PartialWriteErrors.rejectedLines("failed to parse line protocol: errors encountered on line(s):\n"
+                + "line 2: invalid number\nline 4: missing field value", LINES);
+        assertEquals(bits(1, 3), rejected);
+    }
+
+    @Test
+    public void reportsPointsBeyondTheRetentionPolicyAsDroppedForGood() {
+        BitSet rejected = PartialWriteErrors.rejectedLines("partial write: points beyond retention policy dropped=2", LINES);
+        assertTrue(rejected.isEmpty());
+    }
+
+    @Test
+    public void failsTheWholeWriteWhenALineErrorMatchesNoLine() {
+        assertNull(PartialWriteErrors.rejectedLines("partial write: field type conflict: input field \"value\" "
+                + "on measurement \"disk\" is type integer, already exists as type float dropped=1", LINES));
+        assertNull(PartialWriteErrors.rejectedLines("unable to parse 'cpu value=': missing field value", LINES));
+        assertNull(PartialWriteErrors.rejectedLines("partial write: max-values-per-tag limit exceeded (10/10): "
+                + "measurement=\"cpu\" tag=\"host\" value=\"server-99\" dropped=1", LINES));
+        assertNull(PartialWriteErrors.rejectedLines("failed to parse line protocol: errors encountered on line(s):\n"
+                + "line 9: invalid number", LINES));
+    }
+
+    @Test
+    public void failsTheWholeWriteWhenOneOfSeveralLineErrorsMatchesNoLine() {
+        assertNull(PartialWriteErrors.rejectedLines("partial write: field type conflict: input field \"value\" on measurement "
+                + "\"cpu\" is type integer, already exists as type float; unable to parse 'cpu value=': missing field value "
+                + "dropped=2", LINES));
+    }
+
+    @Test
+    public void leavesOtherErrorsToTheWholeWrite() {
+        assertNull(PartialWriteErrors.rejectedLines("database not found: \"metrics\"", LINES));
+        assertNull(PartialWriteErrors.rejectedLines("timeout", LINES));
+    }
+
+    private static BitSet bits(int... indexes) {
+        BitSet bits = new BitSet();
+        for (int index : indexes) {
+            bits.set(index);
+        }
+        return bits;
+    }
+}